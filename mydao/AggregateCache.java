@@ -0,0 +1,76 @@
+package mydao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a cache of aggregate query results, such as counts and histograms, which
+ * expire after a fixed time to live. Aggregates are not invalidated on writes; the time to live is
+ * supposed to be short enough for dashboards to not care. Cached values must be immutable, since
+ * they are shared by all callers.
+ * <p>
+ * It is enabled by the 'name.aggregate.ttl' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class AggregateCache {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long ttl;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an aggregate cache with the given time to live.
+     * @param ttl The time to live of cached aggregates in milliseconds.
+     */
+    AggregateCache(long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached aggregate with the given key, or null if it is absent or expired.
+     * @param key The key of the aggregate, usually the SQL query along with its parameters.
+     * @return The cached aggregate with the given key, or null if it is absent or expired.
+     */
+    Object get(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        } else if (System.nanoTime() - entry.expires > 0) {
+            entries.remove(key, entry);
+            return null;
+        } else {
+            return entry.value;
+        }
+    }
+
+    /**
+     * Cache the given immutable aggregate under the given key.
+     * @param key The key of the aggregate, usually the SQL query along with its parameters.
+     * @param value The immutable aggregate.
+     */
+    void put(String key, Object value) {
+        entries.put(key, new Entry(value, System.nanoTime() + ttl));
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    private static final class Entry {
+        private final Object value;
+        private final long expires;
+
+        private Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
\ No newline at end of file
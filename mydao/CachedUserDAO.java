@@ -0,0 +1,473 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Flow;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents a caching decorator of another {@link UserDAO}. Lookups by ID, by username
+ * and the existence checks are served from the {@link UserCache} whenever possible. Lists are
+ * obtained from the decorated DAO, unless the list cache is enabled. Every write is passed to the
+ * decorated DAO and then invalidated in the cache, which also publishes the invalidation to the
+ * other nodes.
+ * <p>
+ * Concurrent cache misses of the same ID, username or existence check share one query by a
+ * {@link SingleFlight}, so that an expired popular user does not cause a stampede of identical
+ * queries. A lookup only joins a query which was started after the last invalidation, so that a
+ * caller always sees its own writes.
+ * <p>
+ * Lists are optionally served from the {@link ListCache} as long as no write or invalidation has
+ * taken place since they were loaded. Cached lists are shared by all callers, so they and the
+ * users in them cannot be modified. They can be updated and deleted as they are though: that
+ * is done on an unshared copy, so the ID and version of the shared user are left as they are.
+ * <p>
+ * Expired users which have a version are revalidated by {@link UserDAO#findIfChanged(User)}, which
+ * only probes the version as long as the user is not changed, and are then cached anew.
+ * <p>
+ * It is enabled by the 'name.cache.maxstaleness' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class CachedUserDAO implements UserDAO {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String KIND_ID = "id";
+    private static final String KIND_USERNAME = "username";
+    private static final String KIND_EMAIL = "email";
+    private static final String KIND_LIST = "list";
+    private static final String KEY_LIST_ALL = "list()";
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private UserDAO userDAO;
+    private UserCache cache;
+    private ListCache lists;
+    private SingleFlight<Key, User> userLoads = new SingleFlight<Key, User>();
+    private SingleFlight<Key, Boolean> existChecks = new SingleFlight<Key, Boolean>();
+    private SingleFlight<Key, List<User>> listLoads = new SingleFlight<Key, List<User>>();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a caching User DAO for the given User DAO and cache. Package private so that it can
+     * be constructed inside the DAO package only.
+     * @param userDAO The User DAO to be decorated.
+     * @param cache The cache to be used.
+     */
+    CachedUserDAO(UserDAO userDAO, UserCache cache) {
+        this(userDAO, cache, null);
+    }
+
+    /**
+     * Construct a caching User DAO for the given User DAO, cache and list cache. Package private so
+     * that it can be constructed inside the DAO package only.
+     * @param userDAO The User DAO to be decorated.
+     * @param cache The cache to be used.
+     * @param lists The list cache to be used, or null if lists are not to be cached.
+     */
+    CachedUserDAO(UserDAO userDAO, UserCache cache, ListCache lists) {
+        this.userDAO = userDAO;
+        this.cache = cache;
+        this.lists = lists;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public User find(final Long id) throws DAOException {
+        User user = cache.get(id);
+
+        if (user == null) {
+            final long generation = cache.generation();
+            user = load(userLoads.execute(new Key(KIND_ID, id, generation),
+                new SingleFlight.Query<User>() {
+                    public User execute() throws DAOException {
+                        User expired = cache.getExpired(id);
+                        return cache(expired != null
+                            ? userDAO.findIfChanged(expired) : userDAO.find(id), generation);
+                    }
+                }));
+        }
+
+        return user;
+    }
+
+    /**
+     * Returns the user from the database which matches the given username and password. The user
+     * is looked up by username only, so that it shares the query with {@link #findByName(String)},
+     * and then the password is compared.
+     * @param username The username of the user to be returned.
+     * @param password The password of the user to be returned.
+     * @return The user from the database which matches the given username and password, otherwise
+     * null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User find(String username, String password) throws DAOException {
+        User user = findByName(username);
+        return user != null && user.getPassword().equals(hashMD5(password)) ? user : null;
+    }
+
+    @Override
+    public User findByName(final String username) throws DAOException {
+        User user = cache.getByUsername(username);
+
+        if (user == null) {
+            final long generation = cache.generation();
+            user = load(userLoads.execute(new Key(KIND_USERNAME, username, generation),
+                new SingleFlight.Query<User>() {
+                    public User execute() throws DAOException {
+                        User expired = cache.getExpiredByUsername(username);
+                        if (expired != null && userDAO.findIfChanged(expired) == expired) {
+                            return cache(expired, generation);
+                        }
+                        return cache(userDAO.findByName(username), generation);
+                    }
+                }));
+        }
+
+        return user;
+    }
+
+    /**
+     * Returns the given user itself if its version is still the one of the cached user, otherwise
+     * the user as {@link #find(Long)} returns it. The cached user may thus be as stale as the
+     * maximum staleness, like all cached users.
+     * @param user The user with the ID and version as obtained before.
+     * @return The given user itself if it is not changed, otherwise the current user matching its
+     * ID, or null if it does not exist anymore.
+     * @throws IllegalArgumentException If the user ID is null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        User current = find(user.getId());
+        return current != null && user.getVersion() != null
+            && user.getVersion().equals(current.getVersion()) ? user : current;
+    }
+
+    @Override
+    public List<User> list() throws DAOException {
+        if (lists == null) {
+            return userDAO.list();
+        }
+
+        return list(KEY_LIST_ALL, new SingleFlight.Query<List<User>>() {
+            public List<User> execute() throws DAOException {
+                return userDAO.list();
+            }
+        });
+    }
+
+    @Override
+    public List<User> list(final UserCriteria criteria) throws DAOException {
+        if (lists == null) {
+            return userDAO.list(criteria);
+        }
+
+        return list(criteria.getKey(), new SingleFlight.Query<List<User>>() {
+            public List<User> execute() throws DAOException {
+                return userDAO.list(criteria);
+            }
+        });
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        userDAO.scan(criteria, handler);
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return userDAO.listCompact(criteria);
+    }
+
+    @Override
+    public List<User> list(final UserCriteria criteria, final Set<UserField> fields)
+        throws DAOException
+    {
+        if (lists == null) {
+            return userDAO.list(criteria, fields);
+        }
+
+        Set<UserField> key = EnumSet.noneOf(UserField.class);
+        key.addAll(fields);
+        return list(Arrays.asList(criteria.getKey(), key), new SingleFlight.Query<List<User>>() {
+            public List<User> execute() throws DAOException {
+                return userDAO.list(criteria, fields);
+            }
+        });
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        userDAO.scan(criteria, fields, handler);
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return userDAO.listLazy(criteria, fields);
+    }
+
+    @Override
+    public Flow.Publisher<User> publish(UserCriteria criteria) {
+        return userDAO.publish(criteria);
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        userDAO.scan(handler);
+    }
+
+    @Override
+    public void parallelScan(int parallelism, UserHandler handler) throws DAOException {
+        userDAO.parallelScan(parallelism, handler);
+    }
+
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        userDAO.create(user);
+        invalidate(user.getId(), user);
+    }
+
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        userDAO.createAll(users);
+        for (User user : users) {
+            invalidate(user.getId(), user);
+        }
+    }
+
+    @Override
+    public void update(User user) throws IllegalArgumentException, DAOException {
+        User unshared = ListCache.unshared(user);
+
+        try {
+            userDAO.update(unshared);
+        } finally {
+            // Also on failure, since an outdated version may have caused it.
+            if (unshared.getId() != null) {
+                invalidate(unshared.getId(), unshared);
+            }
+        }
+    }
+
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        List<User> unshared = unshared(users);
+
+        try {
+            userDAO.updateAll(unshared);
+        } finally {
+            // Also on failure, since an outdated version may have caused it.
+            for (User user : unshared) {
+                if (user.getId() != null) {
+                    invalidate(user.getId(), user);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    @Override
+    public void delete(User user) throws DAOException {
+        User unshared = ListCache.unshared(user);
+        Long id = unshared.getId();
+        try {
+            userDAO.delete(unshared);
+        } finally {
+            // Also on failure, since an outdated version may have caused it.
+            if (id != null) {
+                invalidate(id, unshared);
+            }
+        }
+    }
+
+    @Override
+    public boolean existUsername(final String username) throws DAOException {
+        if (cache.getByUsername(username) != null) {
+            return true;
+        }
+
+        return existChecks.execute(new Key(KIND_USERNAME, username, cache.generation()),
+            new SingleFlight.Query<Boolean>() {
+                public Boolean execute() throws DAOException {
+                    return userDAO.existUsername(username);
+                }
+            });
+    }
+
+    @Override
+    public boolean existEmail(final String email) throws DAOException {
+        if (cache.containsEmail(email)) {
+            return true;
+        }
+
+        return existChecks.execute(new Key(KIND_EMAIL, email, cache.generation()),
+            new SingleFlight.Query<Boolean>() {
+                public Boolean execute() throws DAOException {
+                    return userDAO.existEmail(email);
+                }
+            });
+    }
+
+    @Override
+    public long count() throws DAOException {
+        return userDAO.count();
+    }
+
+    @Override
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException {
+        return userDAO.countByAgeRange(minAge, maxAge);
+    }
+
+    @Override
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth)
+        throws IllegalArgumentException, DAOException
+    {
+        return userDAO.ageHistogram(bucketWidth);
+    }
+
+    @Override
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        return userDAO.emailDomainCounts();
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Invalidate the given user ID along with the username and email address of the given user.
+     * @param id The user ID to be invalidated.
+     * @param user The user whose username and email address are to be invalidated.
+     */
+    private void invalidate(Long id, User user) {
+        cache.invalidate(new Invalidation(id, user.getUsername(), user.getEmail()));
+    }
+
+    /**
+     * Cache the given loaded user, if any, unless an invalidation has taken place since the given
+     * generation.
+     * @param user The loaded user, may be null.
+     * @param generation The generation as obtained before loading.
+     * @return The given user.
+     */
+    private User cache(User user, long generation) {
+        if (user != null) {
+            cache.put(user, generation);
+        }
+
+        return user;
+    }
+
+    /**
+     * Returns the cached list of the given key, or loads it by the given query and caches it. The
+     * concurrent loads of the same list share one query.
+     * @param key The key of the list, which must identify the query shape and parameters.
+     * @param query The query to load the list with.
+     * @return The shared, unmodifiable list of the given key.
+     * @throws DAOException If something fails at database level.
+     */
+    private List<User> list(final Object key, final SingleFlight.Query<List<User>> query)
+        throws DAOException
+    {
+        final long generation = cache.generation();
+        List<User> users = lists.get(key, generation);
+
+        if (users == null) {
+            users = listLoads.execute(new Key(KIND_LIST, key, generation),
+                new SingleFlight.Query<List<User>>() {
+                    public List<User> execute() throws DAOException {
+                        return lists.put(key, query.execute(), generation);
+                    }
+                });
+        }
+
+        return users;
+    }
+
+    /**
+     * Returns the given users, whereby the shared users of cached lists are replaced by unshared
+     * copies.
+     * @param users The users which may be shared.
+     * @return The given users, of which none is shared.
+     */
+    private static List<User> unshared(List<User> users) {
+        List<User> unshared = new ArrayList<User>(users.size());
+
+        for (User user : users) {
+            unshared.add(ListCache.unshared(user));
+        }
+
+        return unshared;
+    }
+
+    /**
+     * Returns a copy of the given user as loaded by a query which may be shared with other callers.
+     * @param user The shared user, may be null.
+     * @return A copy of the given user, or null if it is null.
+     */
+    private static User load(User user) {
+        return user != null ? UserCache.copy(user) : null;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The key of a query which may be shared: the kind of lookup, the looked up value and the
+     * invalidation generation at which the lookup started.
+     */
+    private static final class Key {
+        private final String kind;
+        private final Object value;
+        private final long generation;
+
+        private Key(String kind, Object value, long generation) {
+            this.kind = kind;
+            this.value = value;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return kind.equals(key.kind) && generation == key.generation
+                && (value != null ? value.equals(key.value) : key.value == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return (kind.hashCode() * 31 + (value != null ? value.hashCode() : 0)) * 31
+                + (int) (generation ^ (generation >>> 32));
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,226 @@
+package mydao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents the detector of connections which are held too long, usually because the
+ * caller forgot to close them or does slow work while holding them. Every connection handed out by
+ * the {@link DAOFactory} is wrapped in a proxy which registers the acquisition and deregisters it
+ * on close. A daemon thread periodically reports the connections held longer than the threshold to
+ * the stderr, each of them once, and optionally reclaims connections held longer than the reclaim
+ * time by closing them, after which the proxy refuses any further use.
+ * <p>
+ * Capturing the stack trace of the acquisition is the expensive part, so it is only done for every
+ * n-th acquisition. A leaking code path is usually hit often, so it shows up in the sampled
+ * reports soon enough. The other costs are a proxy and a map entry per acquisition.
+ * <p>
+ * It is enabled by the 'name.leak.threshold' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class ConnectionLeakDetector {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final Method CLOSE;
+    private static final Method IS_CLOSED;
+
+    static {
+        try {
+            CLOSE = Connection.class.getMethod("close");
+            IS_CLOSED = Connection.class.getMethod("isClosed");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final String name;
+    private final long threshold;
+    private final long reclaimTime;
+    private final int samplingRate;
+    private final ConcurrentMap<Long, Lease> leases = new ConcurrentHashMap<Long, Lease>();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final ScheduledExecutorService reporter;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct and start a connection leak detector with the given thresholds.
+     * @param name The database name, used in the reports.
+     * @param threshold The hold time in milliseconds after which a connection is reported.
+     * @param reclaimTime The hold time in milliseconds after which a connection is forcibly
+     * closed, or 0 to never reclaim connections.
+     * @param samplingRate Capture the stack trace of every n-th acquisition, 1 for all of them.
+     * @param reportInterval The interval in milliseconds between checks for held connections.
+     */
+    ConnectionLeakDetector(final String name, long threshold, long reclaimTime, int samplingRate,
+        long reportInterval)
+    {
+        this.name = name;
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        this.reclaimTime = TimeUnit.MILLISECONDS.toNanos(reclaimTime);
+        this.samplingRate = Math.max(1, samplingRate);
+        this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectionLeakDetector-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns a tracking proxy of the given freshly acquired connection.
+     * @param connection The connection to be tracked.
+     * @return A tracking proxy of the given connection.
+     */
+    Connection track(Connection connection) {
+        long id = acquisitions.incrementAndGet();
+        Throwable stack = id % samplingRate == 0 ? new Throwable("Acquired here") : null;
+        Lease lease = new Lease(id, connection, stack);
+        leases.put(id, lease);
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, lease);
+    }
+
+    /**
+     * Returns the amount of outstanding connections.
+     * @return The amount of outstanding connections.
+     */
+    int getOutstanding() {
+        return leases.size();
+    }
+
+    /**
+     * Stop the detector. Outstanding connections are left alone.
+     */
+    void close() {
+        reporter.shutdownNow();
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Report the connections held longer than the threshold, and reclaim the ones held longer than
+     * the reclaim time.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        int held = 0;
+
+        for (Lease lease : leases.values()) {
+            long holdTime = now - lease.acquired;
+
+            if (reclaimTime > 0 && holdTime > reclaimTime) {
+                report(lease, holdTime, "reclaimed after being held");
+                lease.reclaim();
+            } else if (holdTime > threshold) {
+                held++;
+                if (!lease.reported) {
+                    lease.reported = true;
+                    report(lease, holdTime, "held");
+                }
+            }
+        }
+
+        if (held > 0) {
+            System.err.println("DAOFactory '" + name + "': " + leases.size()
+                + " connections outstanding, " + held + " of them held longer than "
+                + TimeUnit.NANOSECONDS.toMillis(threshold) + " ms.");
+        }
+    }
+
+    private void report(Lease lease, long holdTime, String what) {
+        System.err.println("DAOFactory '" + name + "': connection #" + lease.id + " " + what
+            + " for " + TimeUnit.NANOSECONDS.toMillis(holdTime) + " ms by thread '"
+            + lease.thread + "'." + (lease.stack == null ? " Acquisition stack not sampled." : ""));
+
+        if (lease.stack != null) {
+            lease.stack.printStackTrace();
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * An acquired connection, which is also the invocation handler of its proxy.
+     */
+    private final class Lease implements InvocationHandler {
+        private final long id;
+        private final Connection connection;
+        private final Throwable stack;
+        private final String thread = Thread.currentThread().getName();
+        private final long acquired = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean reclaimed;
+        private boolean reported; // Only accessed by the reporter thread.
+
+        private Lease(long id, Connection connection, Throwable stack) {
+            this.id = id;
+            this.connection = connection;
+            this.stack = stack;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.equals(CLOSE)) {
+                release();
+                return null;
+            } else if (reclaimed) {
+                if (method.equals(IS_CLOSED)) {
+                    return true;
+                }
+                throw new SQLException("Connection was reclaimed by the leak detector, since it was"
+                    + " held longer than " + TimeUnit.NANOSECONDS.toMillis(reclaimTime) + " ms.");
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void reclaim() {
+            reclaimed = true;
+
+            try {
+                release();
+            } catch (SQLException e) {
+                System.err.println("Reclaiming connection failed: " + e.getMessage());
+            }
+        }
+
+        private void release() throws SQLException {
+            if (released.compareAndSet(false, true)) {
+                leases.remove(id);
+                connection.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+package mydao;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This class holds the JDK Flight Recorder events of the DAO layer: the acquisition of a
+ * connection by the {@link DAOFactory} and the preparation, execution and row mapping of the
+ * statements of {@link UserDAOJDBC}. They are recorded when a recording is started with these
+ * events enabled, e.g. by <code>java -XX:StartFlightRecording ...</code>, and show up under the
+ * 'DAO' category in JDK Mission Control. The SQL query serves as statement ID, since the queries
+ * are constants which the recorder stores only once per recording.
+ * <p>
+ * JFR records the duration, start time, thread and stack trace of every event by itself. The
+ * events additionally record whether the thread is a virtual thread, which is always false before
+ * Java 21. When no recording is running, an event costs a few non-taken branches, and the event
+ * object is usually not even allocated, because it does not escape. The fields of an event are
+ * only set when it is actually committed.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class DAOEvents {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private DAOEvents() {
+        // Holder class, hide constructor.
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the Thread#isVirtual() method, or null if the JVM is older than Java 21.
+     */
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the current thread is a virtual thread. Only invoked for committed events.
+     */
+    private static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The acquisition of a connection by {@link DAOFactory#getConnection()}, including the wait
+     * for a pooled connection and the leak detection, if any.
+     */
+    @Name("mydao.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Category("DAO")
+    @Description("Acquisition of a database connection by the DAOFactory.")
+    static final class ConnectionAcquire extends Event {
+
+        @Label("Virtual Thread")
+        boolean virtualThread;
+
+        /**
+         * End this event and commit it if it is recorded.
+         */
+        void finish() {
+            end();
+            if (shouldCommit()) {
+                virtualThread = isVirtualThread();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The preparation of a statement and the setting of its parameter values.
+     */
+    @Name("mydao.StatementPrepare")
+    @Label("Statement Prepare")
+    @Category("DAO")
+    @Description("Preparation of a statement and the setting of its parameter values.")
+    static final class StatementPrepare extends Event {
+
+        @Label("SQL")
+        String sql;
+
+        @Label("Virtual Thread")
+        boolean virtualThread;
+
+        /**
+         * End this event and commit it with the given SQL query if it is recorded.
+         * @param sql The SQL query of the statement.
+         */
+        void finish(String sql) {
+            end();
+            if (shouldCommit()) {
+                this.sql = sql;
+                virtualThread = isVirtualThread();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The execution of a statement, until the first rows of a query are available or until the
+     * rows of an update or batch are affected.
+     */
+    @Name("mydao.StatementExecute")
+    @Label("Statement Execute")
+    @Category("DAO")
+    @Description("Execution of a statement, without the reading of the rows of a query.")
+    static final class StatementExecute extends Event {
+
+        @Label("SQL")
+        String sql;
+
+        @Label("Row Count")
+        @Description("Affected rows of an update or batch, or -1 for a query or a failure.")
+        long rowCount;
+
+        @Label("Virtual Thread")
+        boolean virtualThread;
+
+        /**
+         * End this event and commit it with the given SQL query and row count if it is recorded.
+         * @param sql The SQL query of the statement.
+         * @param rowCount The affected rows, or -1 for a query or a failure.
+         */
+        void finish(String sql, long rowCount) {
+            end();
+            if (shouldCommit()) {
+                this.sql = sql;
+                this.rowCount = rowCount;
+                virtualThread = isVirtualThread();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The reading of the rows of a query and the mapping of them to users or aggregates, including
+     * the work of the handler of a scan.
+     */
+    @Name("mydao.RowMapping")
+    @Label("Row Mapping")
+    @Category("DAO")
+    @Description("Reading and mapping of the rows of a query, including the handler of a scan.")
+    static final class RowMapping extends Event {
+
+        @Label("SQL")
+        String sql;
+
+        @Label("Row Count")
+        long rowCount;
+
+        @Label("Virtual Thread")
+        boolean virtualThread;
+
+        /**
+         * End this event and commit it with the given SQL query and row count if it is recorded.
+         * @param sql The SQL query of the statement.
+         * @param rowCount The amount of rows read.
+         */
+        void finish(String sql, long rowCount) {
+            end();
+            if (shouldCommit()) {
+                this.sql = sql;
+                this.rowCount = rowCount;
+                virtualThread = isVirtualThread();
+                commit();
+            }
+        }
+    }
+
+}
@@ -1,8 +1,22 @@
 package mydao;
 
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -34,6 +48,145 @@ import javax.sql.DataSource;
  * If you specify the driver property, then the url property will be assumed as JDBC URL. If you
  * omit the driver property, then the url property will be assumed as JNDI name. When using JNDI
  * with username/password preconfigured, you can omit the username and password properties as well.
+ * If the url property starts with 'memory:', then no database is used at all and the users are kept
+ * in memory by {@link UserDAOMemory}. All DAO factories with the same memory url share the same
+ * data. This is useful as fast stand-in for unit tests and as baseline in load tests.
+ * <p>
+ * If the url property starts with 'sharded:', then it must be followed by a comma separated list
+ * of the database names of the shards, each of which is configured with its own properties. The
+ * users are then spread over the shards by {@link ShardedUserDAO}, which requires that shard i of
+ * n (counting from 1) generates only IDs i, i + n, i + 2n, etc. In MySQL this is configured by
+ * setting the 'auto_increment_offset' variable to i and the 'auto_increment_increment' variable to
+ * n. Memory shards and ID generators are configured with the following properties instead:
+ * <pre>
+ * name.autoincrement.offset
+ * name.autoincrement.increment
+ * </pre>
+ * <ul>
+ * <li>The 'name.autoincrement.offset' must represent the first generated ID. Defaults to 1.</li>
+ * <li>The 'name.autoincrement.increment' must represent the difference between subsequently
+ * generated IDs. Defaults to 1.</li>
+ * </ul>
+ * User IDs can optionally be assigned before the insert by an {@link IdGenerator} instead of by
+ * the AUTO_INCREMENT of the database with the following properties:
+ * <pre>
+ * name.id.generator
+ * name.id.blocksize
+ * name.id.node
+ * </pre>
+ * <ul>
+ * <li>The 'name.id.generator' enables the ID generator and must represent either 'hilo' for
+ * {@link HiLoIdGenerator}, 'time' for {@link TimeIdGenerator} or the full qualified class name of
+ * a custom implementation.</li>
+ * <li>The 'name.id.blocksize' must represent the amount of IDs the 'hilo' generator reserves at
+ * once. Defaults to 100.</li>
+ * <li>The 'name.id.node' must represent the node ID of the 'time' generator, which must be unique
+ * per application node. Defaults to 0.</li>
+ * </ul>
+ * <p>
+ * Users can optionally be cached in-process by {@link CachedUserDAO} with the following properties:
+ * <pre>
+ * name.cache.maxstaleness
+ * name.cache.maxsize
+ * name.cache.invalidation
+ * </pre>
+ * <ul>
+ * <li>The 'name.cache.maxstaleness' enables the cache and must represent the maximum time in
+ * milliseconds a cached user may be served without having been reloaded from the database.</li>
+ * <li>The 'name.cache.maxsize' must represent the maximum amount of cached users. Defaults to
+ * 10000.</li>
+ * <li>The 'name.cache.invalidation' must represent the {@link InvalidationChannel} on which
+ * invalidations are exchanged with other application nodes. This is either a multicast URL as
+ * described in {@link MulticastInvalidationChannel} or the full qualified class name of a custom
+ * implementation. If omitted, the cache only sees the writes of the own node.</li>
+ * </ul>
+ * The cache can optionally keep a persistent second tier in a memory-mapped file by
+ * {@link MappedUserCache}, so that it is not cold after a restart, with the following properties:
+ * <pre>
+ * name.cache.file
+ * name.cache.file.maxsize
+ * name.cache.file.maxstaleness
+ * </pre>
+ * <ul>
+ * <li>The 'name.cache.file' enables the second tier and must represent the path of the file. It
+ * may be used by one process at a time.</li>
+ * <li>The 'name.cache.file.maxsize' must represent the maximum amount of users in the file.
+ * Defaults to 100000.</li>
+ * <li>The 'name.cache.file.maxstaleness' must represent the maximum time in milliseconds a user
+ * in the file may be served without having been reloaded from the database, also across
+ * restarts. Defaults to the 'name.cache.maxstaleness'.</li>
+ * </ul>
+ * The cache can optionally also cache the results of lists by {@link ListCache}, as long as no
+ * user is written or invalidated, with the following property:
+ * <pre>
+ * name.cache.lists.maxsize
+ * </pre>
+ * <ul>
+ * <li>The 'name.cache.lists.maxsize' enables the list cache and must represent the maximum amount
+ * of cached lists. Cached lists and their users are shared and cannot be modified. Updating or
+ * deleting them leaves their ID and version as they are.</li>
+ * </ul>
+ * Aggregates such as {@link UserDAO#count()} are computed by the database. Their results can
+ * optionally be cached as well with the following property:
+ * <pre>
+ * name.aggregate.ttl
+ * </pre>
+ * <ul>
+ * <li>The 'name.aggregate.ttl' enables the aggregate cache and must represent the time in
+ * milliseconds an aggregate result may be reused. Writes do not invalidate cached aggregates.</li>
+ * </ul>
+ * Updates can optionally be buffered and written in batches by {@link WriteBehindUserDAO} with the
+ * following properties:
+ * <pre>
+ * name.writebehind.maxdelay
+ * name.writebehind.batchsize
+ * </pre>
+ * <ul>
+ * <li>The 'name.writebehind.maxdelay' enables the write-behind and must represent the maximum time
+ * in milliseconds an update may be buffered before it is written. Buffered updates are lost when
+ * the JVM crashes, and are written regardless of the version.</li>
+ * <li>The 'name.writebehind.batchsize' must represent the maximum amount of users to write at
+ * once. A full batch is written right away. Defaults to 1000.</li>
+ * </ul>
+ * Concurrent updates of the same user can optionally be detected with the following property:
+ * <pre>
+ * name.versioned
+ * </pre>
+ * <ul>
+ * <li>The 'name.versioned' enables optimistic locking when set to 'true'. It requires a 'version'
+ * column in the 'user' table which is created as 'version BIGINT UNSIGNED NOT NULL DEFAULT 0'.
+ * Every update then increments the version, and an update or delete of a user whose version is
+ * not the current one fails with {@link OptimisticLockException}. Memory stores always keep
+ * versions.</li>
+ * </ul>
+ * DAO factories obtained from a {@link DAOFactoryRegistry} can be warmed up with the following
+ * property:
+ * <pre>
+ * name.warmup.connections
+ * </pre>
+ * <ul>
+ * <li>The 'name.warmup.connections' must represent the amount of connections to warm up as
+ * described in {@link #warmUp(int)} when the registry creates the DAO factory.</li>
+ * </ul>
+ * Connections which are held too long can be detected by {@link ConnectionLeakDetector} with the
+ * following properties:
+ * <pre>
+ * name.leak.threshold
+ * name.leak.reclaim
+ * name.leak.sampling
+ * name.leak.interval
+ * </pre>
+ * <ul>
+ * <li>The 'name.leak.threshold' enables the leak detection and must represent the time in
+ * milliseconds after which a connection which is not closed yet is reported to the stderr.</li>
+ * <li>The 'name.leak.reclaim' must represent the time in milliseconds after which a connection
+ * which is not closed yet is forcibly closed. Defaults to 0, which means never. Use with care,
+ * since the holder may still be using the connection.</li>
+ * <li>The 'name.leak.sampling' must represent n in "capture the stack trace of every n-th
+ * connection acquisition". Defaults to 100. Set it to 1 to find a particular leak.</li>
+ * <li>The 'name.leak.interval' must represent the interval in milliseconds between checks for
+ * held connections. Defaults to the threshold.</li>
+ * </ul>
  * <p>
  * Here are basic examples of valid properties for a database with the name 'javabase':
  * <pre>
@@ -45,16 +198,35 @@ import javax.sql.DataSource;
  * <pre>
  * javabase.jndi.url = jdbc/javabase
  * </pre>
+ * <pre>
+ * javabase.memory.url = memory:javabase
+ * </pre>
+ * <pre>
+ * javabase.cached.url = jdbc/javabase
+ * javabase.cached.cache.maxstaleness = 30000
+ * javabase.cached.cache.invalidation = multicast://230.0.0.1:4446
+ * </pre>
+ * <pre>
+ * javabase.sharded.url = sharded:javabase.shard1,javabase.shard2
+ * javabase.shard1.url = memory:shard1
+ * javabase.shard1.autoincrement.offset = 1
+ * javabase.shard1.autoincrement.increment = 2
+ * javabase.shard2.url = memory:shard2
+ * javabase.shard2.autoincrement.offset = 2
+ * javabase.shard2.autoincrement.increment = 2
+ * </pre>
  * Here is a basic use example:
  * <pre>
  * DAOFactory javabase = DAOFactory.getInstance("javabase.jdbc");
  * UserDAO userDAO = javabase.getUserDAO();
  * </pre>
+ * Every call to {@link #getInstance(String)} creates a new DAOFactory. Applications should rather
+ * share the DAO factories through a {@link DAOFactoryRegistry}, and close them on shutdown.
  *
  * @author BalusC
  * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
  */
-public abstract class DAOFactory {
+public abstract class DAOFactory implements AutoCloseable {
 
     // Constants ----------------------------------------------------------------------------------
 
@@ -63,6 +235,51 @@ public abstract class DAOFactory {
     private static final String PROPERTY_USERNAME = "username";
     private static final String PROPERTY_PASSWORD = "password";
     private static final String JNDI_ROOT = "java:comp/env/";
+    private static final String MEMORY_PREFIX = "memory:";
+    private static final String SHARDED_PREFIX = "sharded:";
+    static final String PROPERTY_AUTO_INCREMENT_OFFSET = "autoincrement.offset";
+    static final String PROPERTY_AUTO_INCREMENT_INCREMENT = "autoincrement.increment";
+    private static final String PROPERTY_ID_GENERATOR = "id.generator";
+    private static final String PROPERTY_ID_BLOCK_SIZE = "id.blocksize";
+    private static final String PROPERTY_ID_NODE = "id.node";
+    private static final String ID_GENERATOR_HILO = "hilo";
+    private static final String ID_GENERATOR_TIME = "time";
+    private static final int DEFAULT_ID_BLOCK_SIZE = 100;
+    private static final String PROPERTY_CACHE_MAX_STALENESS = "cache.maxstaleness";
+    private static final String PROPERTY_CACHE_MAX_SIZE = "cache.maxsize";
+    private static final String PROPERTY_CACHE_INVALIDATION = "cache.invalidation";
+    private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+    private static final String PROPERTY_CACHE_FILE = "cache.file";
+    private static final String PROPERTY_CACHE_FILE_MAX_SIZE = "cache.file.maxsize";
+    private static final String PROPERTY_CACHE_FILE_MAX_STALENESS = "cache.file.maxstaleness";
+    private static final String PROPERTY_CACHE_LISTS_MAX_SIZE = "cache.lists.maxsize";
+    private static final int DEFAULT_CACHE_FILE_MAX_SIZE = 100000;
+    private static final String PROPERTY_AGGREGATE_TTL = "aggregate.ttl";
+    private static final String PROPERTY_WRITE_BEHIND_MAX_DELAY = "writebehind.maxdelay";
+    private static final String PROPERTY_WRITE_BEHIND_BATCH_SIZE = "writebehind.batchsize";
+    private static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 1000;
+    static final String PROPERTY_WARMUP_CONNECTIONS = "warmup.connections";
+    private static final String PROPERTY_VERSIONED = "versioned";
+    private static final String PROPERTY_LEAK_THRESHOLD = "leak.threshold";
+    private static final String PROPERTY_LEAK_RECLAIM = "leak.reclaim";
+    private static final String PROPERTY_LEAK_SAMPLING = "leak.sampling";
+    private static final String PROPERTY_LEAK_INTERVAL = "leak.interval";
+    private static final int DEFAULT_LEAK_SAMPLING = 100;
+    private static final String MULTICAST_SCHEME = "multicast";
+    private static final long DEFAULT_MULTICAST_INTERVAL = 20;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private DAOProperties properties;
+    private UserCache userCache;
+    private UserDAO userDAO;
+    private WriteBehindUserDAO writeBehindUserDAO;
+    private ConnectionLeakDetector leakDetector;
+    private volatile boolean closed;
+    private AggregateCache aggregateCache;
+    private IdGenerator idGenerator;
+    private final List<UserDAOListener> userDAOListeners =
+        new CopyOnWriteArrayList<UserDAOListener>();
 
     // Actions ------------------------------------------------------------------------------------
 
@@ -86,8 +303,19 @@ public abstract class DAOFactory {
         String username = properties.getProperty(PROPERTY_USERNAME, password != null);
         DAOFactory instance;
 
-        // If driver is specified, then load it to let it register itself with DriverManager.
-        if (driverClassName != null) {
+        // If URL is a memory URL, then keep the data in memory.
+        if (url.startsWith(MEMORY_PREFIX)) {
+            instance = new MemoryDAOFactory(url.substring(MEMORY_PREFIX.length()));
+        }
+
+        // Else if URL is a sharded URL, then obtain a DAOFactory for each shard.
+        else if (url.startsWith(SHARDED_PREFIX)) {
+            instance = new ShardedDAOFactory(name,
+                url.substring(SHARDED_PREFIX.length()).trim().split("\\s*,\\s*"));
+        }
+
+        // Else if driver is specified, then load it to let it register itself with DriverManager.
+        else if (driverClassName != null) {
             try {
                 Class.forName(driverClassName);
             } catch (ClassNotFoundException e) {
@@ -113,29 +341,367 @@ public abstract class DAOFactory {
             }
         }
 
+        instance.properties = properties;
+        long leakThreshold = instance.getLongProperty(PROPERTY_LEAK_THRESHOLD, 0);
+        if (leakThreshold > 0) {
+            instance.leakDetector = new ConnectionLeakDetector(name, leakThreshold,
+                instance.getLongProperty(PROPERTY_LEAK_RECLAIM, 0),
+                (int) instance.getLongProperty(PROPERTY_LEAK_SAMPLING, DEFAULT_LEAK_SAMPLING),
+                instance.getLongProperty(PROPERTY_LEAK_INTERVAL, leakThreshold));
+        }
+
         return instance;
     }
 
     /**
      * Returns a connection to the database. Package private so that it can be used inside the DAO
-     * package only.
+     * package only. When leak detection is enabled, the connection is tracked until it is closed.
+     * The acquisition is recorded as {@link DAOEvents.ConnectionAcquire} event.
+     * @return A connection to the database.
+     * @throws SQLException If acquiring the connection fails.
+     */
+    final Connection getConnection() throws SQLException {
+        DAOEvents.ConnectionAcquire event = new DAOEvents.ConnectionAcquire();
+        event.begin();
+
+        try {
+            Connection connection = openConnection();
+            return leakDetector != null ? leakDetector.track(connection) : connection;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns a new or pooled connection to the database. Package private so that it can be
+     * implemented inside the DAO package only. Use {@link #getConnection()} to obtain connections.
      * @return A connection to the database.
      * @throws SQLException If acquiring the connection fails.
      */
-    abstract Connection getConnection() throws SQLException;
+    abstract Connection openConnection() throws SQLException;
+
+    /**
+     * Returns the DAOFactory instance specific optional property value associated with the given
+     * key. Package private so that it can be used inside the DAO package only.
+     * @param key The key to be associated with a DAOFactory instance specific value.
+     * @return The DAOFactory instance specific property value, or null if there is none.
+     */
+    String getProperty(String key) {
+        return properties != null ? properties.getProperty(key, false) : null;
+    }
+
+    /**
+     * Returns the DAOFactory instance specific optional property value associated with the given
+     * key as a long. Package private so that it can be used inside the DAO package only.
+     * @param key The key to be associated with a DAOFactory instance specific value.
+     * @param defaultValue The value to be returned if there is no property value.
+     * @return The DAOFactory instance specific property value, or the given default value.
+     * @throws DAOConfigurationException If the property value is not a number.
+     */
+    long getLongProperty(String key, long defaultValue) throws DAOConfigurationException {
+        String property = getProperty(key);
+
+        if (property == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(property.trim());
+        } catch (NumberFormatException e) {
+            throw new DAOConfigurationException("Property '" + key + "' is not a number.", e);
+        }
+    }
+
+    /**
+     * Returns true if the users of the current DAOFactory have a version column for optimistic
+     * locking. Package private so that it can be used inside the DAO package only.
+     * @return True if the users of the current DAOFactory have a version column.
+     */
+    boolean isVersioned() {
+        String versioned = getProperty(PROPERTY_VERSIONED);
+        return versioned != null && Boolean.parseBoolean(versioned.trim());
+    }
+
+    /**
+     * Warm up the current DAOFactory by opening the given amount of connections at the same time,
+     * preparing all statements of the User DAO on each of them and closing them again. With a
+     * connection pool, this leaves the pool filled with ready connections whose statement caches
+     * are already populated, so that the first requests do not have to wait for that.
+     * @param connections The amount of connections to warm up.
+     * @throws DAOException If something fails at database level.
+     * @throws IllegalStateException If the current DAOFactory is closed.
+     */
+    public void warmUp(int connections) throws DAOException, IllegalStateException {
+        checkNotClosed();
+        Connection[] opened = new Connection[connections];
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                opened[i] = getConnection();
+                UserDAOJDBC.prepareStatements(opened[i], isVersioned());
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            for (Connection connection : opened) {
+                DAOUtil.close(connection);
+            }
+        }
+    }
+
+    /**
+     * Close the current DAOFactory. This flushes and stops the write-behind, if any, closes the
+     * invalidation channel of the cache, if any, stops the connection leak detector, if any, and
+     * removes all User DAO listeners. The DataSource is left open, since it is managed by JNDI.
+     * Closing an already closed DAOFactory has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        if (writeBehindUserDAO != null) {
+            writeBehindUserDAO.close();
+        }
+        if (userCache != null) {
+            userCache.close();
+        }
+        if (leakDetector != null) {
+            leakDetector.close();
+        }
+        userDAOListeners.clear();
+    }
+
+    /**
+     * Returns true if the current DAOFactory is closed.
+     * @return True if the current DAOFactory is closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
 
     // DAO getters --------------------------------------------------------------------------------
 
     /**
-     * Returns the User DAO associated with the current DAOFactory.
+     * Returns the User DAO associated with the current DAOFactory. The User DAO is created on first
+     * use and shared by all callers; it is thread safe.
      * @return The User DAO associated with the current DAOFactory.
+     * @throws DAOConfigurationException If the cache is enabled and the invalidation channel
+     * cannot be created.
+     * @throws IllegalStateException If the current DAOFactory is closed.
+     */
+    public synchronized UserDAO getUserDAO()
+        throws DAOConfigurationException, IllegalStateException
+    {
+        checkNotClosed();
+
+        if (userDAO == null) {
+            UserDAO userDAO = createUserDAO();
+            UserCache userCache = getUserCache();
+            if (userCache != null) {
+                ListCache listCache = getProperty(PROPERTY_CACHE_LISTS_MAX_SIZE) == null ? null
+                    : new ListCache(getLongProperty(PROPERTY_CACHE_MAX_STALENESS, 0),
+                        (int) getLongProperty(PROPERTY_CACHE_LISTS_MAX_SIZE, 0));
+                userDAO = new CachedUserDAO(userDAO, userCache, listCache);
+            }
+            if (getProperty(PROPERTY_WRITE_BEHIND_MAX_DELAY) != null) {
+                userDAO = writeBehindUserDAO = new WriteBehindUserDAO(userDAO,
+                    getLongProperty(PROPERTY_WRITE_BEHIND_MAX_DELAY, 0),
+                    (int) getLongProperty(PROPERTY_WRITE_BEHIND_BATCH_SIZE,
+                        DEFAULT_WRITE_BEHIND_BATCH_SIZE));
+            }
+            this.userDAO = new NotifyingUserDAO(userDAO, userDAOListeners);
+        }
+
+        return userDAO;
+    }
+
+    /**
+     * Returns the write-behind User DAO of the current DAOFactory, or null if the write-behind is
+     * not enabled. It can be used to flush the buffered updates and to obtain the metrics of the
+     * buffer.
+     * @return The write-behind User DAO of the current DAOFactory, or null if it is not enabled.
+     * @throws IllegalStateException If the current DAOFactory is closed.
+     */
+    public synchronized WriteBehindUserDAO getWriteBehindUserDAO() throws IllegalStateException {
+        getUserDAO();
+        return writeBehindUserDAO;
+    }
+
+    /**
+     * Add the given listener of the writes through the User DAOs of the current DAOFactory. This
+     * also applies to User DAOs which are obtained before.
+     * @param listener The listener to be added.
      */
-    public UserDAO getUserDAO() {
-        return new UserDAO(this);
+    public void addUserDAOListener(UserDAOListener listener) {
+        userDAOListeners.add(listener);
+    }
+
+    /**
+     * Remove the given listener of the writes through the User DAOs of the current DAOFactory.
+     * @param listener The listener to be removed.
+     */
+    public void removeUserDAOListener(UserDAOListener listener) {
+        userDAOListeners.remove(listener);
     }
 
     // You can add more DAO getters here.
 
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new uncached User DAO for the current DAOFactory. Package private so that it can be
+     * overridden inside the DAO package only.
+     * @return A new uncached User DAO for the current DAOFactory.
+     */
+    UserDAO createUserDAO() {
+        return new UserDAOJDBC(this);
+    }
+
+    private void checkNotClosed() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("DAOFactory is closed.");
+        }
+    }
+
+    /**
+     * Returns the user cache of the current DAOFactory, or null if the cache is not enabled. The
+     * cache is created on first use and shared by all User DAOs of the current DAOFactory.
+     * @return The user cache of the current DAOFactory, or null if the cache is not enabled.
+     * @throws DAOConfigurationException If the invalidation channel cannot be created.
+     */
+    private synchronized UserCache getUserCache() throws DAOConfigurationException {
+        if (userCache == null && getProperty(PROPERTY_CACHE_MAX_STALENESS) != null) {
+            long maxStaleness = getLongProperty(PROPERTY_CACHE_MAX_STALENESS, 0);
+            String fileName = getProperty(PROPERTY_CACHE_FILE);
+            MappedUserCache secondTier = fileName == null ? null : new MappedUserCache(fileName,
+                (int) getLongProperty(PROPERTY_CACHE_FILE_MAX_SIZE, DEFAULT_CACHE_FILE_MAX_SIZE),
+                getLongProperty(PROPERTY_CACHE_FILE_MAX_STALENESS, maxStaleness),
+                getProperty(PROPERTY_URL) + ";versioned=" + isVersioned());
+            String channelName = getProperty(PROPERTY_CACHE_INVALIDATION);
+
+            try {
+                userCache = new UserCache(maxStaleness,
+                    (int) getLongProperty(PROPERTY_CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE),
+                    channelName != null ? createInvalidationChannel(channelName) : null,
+                    secondTier);
+            } catch (DAOConfigurationException e) {
+                if (secondTier != null) {
+                    secondTier.close();
+                }
+                throw e;
+            }
+        }
+
+        return userCache;
+    }
+
+    /**
+     * Returns the aggregate cache of the current DAOFactory, or null if it is not enabled. The
+     * cache is created on first use. Package private so that it can be used inside the DAO package
+     * only.
+     * @return The aggregate cache of the current DAOFactory, or null if it is not enabled.
+     * @throws DAOConfigurationException If the time to live is not a number.
+     */
+    synchronized AggregateCache getAggregateCache() throws DAOConfigurationException {
+        if (aggregateCache == null && getProperty(PROPERTY_AGGREGATE_TTL) != null) {
+            aggregateCache = new AggregateCache(getLongProperty(PROPERTY_AGGREGATE_TTL, 0));
+        }
+
+        return aggregateCache;
+    }
+
+    /**
+     * Returns the ID generator of the current DAOFactory, or null if the IDs are generated by the
+     * database. The generator is created on first use. Package private so that it can be used
+     * inside the DAO package only.
+     * @return The ID generator of the current DAOFactory, or null if it is not enabled.
+     * @throws DAOConfigurationException If the generator cannot be created.
+     */
+    synchronized IdGenerator getIdGenerator() throws DAOConfigurationException {
+        String generatorName = getProperty(PROPERTY_ID_GENERATOR);
+
+        if (idGenerator == null && generatorName != null) {
+            long offset = getLongProperty(PROPERTY_AUTO_INCREMENT_OFFSET, 1);
+            long increment = getLongProperty(PROPERTY_AUTO_INCREMENT_INCREMENT, 1);
+
+            if (generatorName.equals(ID_GENERATOR_HILO)) {
+                long blockSize = getLongProperty(PROPERTY_ID_BLOCK_SIZE, DEFAULT_ID_BLOCK_SIZE);
+                idGenerator = createHiLoIdGenerator(blockSize, offset, increment);
+            } else if (generatorName.equals(ID_GENERATOR_TIME)) {
+                idGenerator = new TimeIdGenerator(
+                    getLongProperty(PROPERTY_ID_NODE, 0), offset, increment);
+            } else {
+                try {
+                    idGenerator = (IdGenerator)
+                        Class.forName(generatorName).getDeclaredConstructor().newInstance();
+                } catch (Exception e) {
+                    throw new DAOConfigurationException(
+                        "ID generator '" + generatorName + "' cannot be created.", e);
+                }
+            }
+        }
+
+        return idGenerator;
+    }
+
+    /**
+     * Returns a new hi/lo ID generator for the current DAOFactory. Package private so that it can
+     * be overridden inside the DAO package only.
+     * @param blockSize The amount of IDs to reserve at once.
+     * @param offset The ID of sequence value 0.
+     * @param increment The difference between the IDs of subsequent sequence values.
+     * @return A new hi/lo ID generator for the current DAOFactory.
+     */
+    IdGenerator createHiLoIdGenerator(long blockSize, long offset, long increment) {
+        return new HiLoIdGenerator(this, blockSize, offset, increment);
+    }
+
+    /**
+     * Returns a new invalidation channel for the given multicast URL or class name.
+     * @param channelName The multicast URL or the full qualified class name of the channel.
+     * @return A new invalidation channel for the given multicast URL or class name.
+     * @throws DAOConfigurationException If the channel cannot be created.
+     */
+    private static InvalidationChannel createInvalidationChannel(String channelName)
+        throws DAOConfigurationException
+    {
+        if (!channelName.startsWith(MULTICAST_SCHEME + "://")) {
+            try {
+                return (InvalidationChannel)
+                    Class.forName(channelName).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new DAOConfigurationException(
+                    "Invalidation channel '" + channelName + "' cannot be created.", e);
+            }
+        }
+
+        try {
+            URI uri = new URI(channelName);
+            long interval = DEFAULT_MULTICAST_INTERVAL;
+            NetworkInterface networkInterface = null;
+
+            if (uri.getQuery() != null) {
+                for (String parameter : uri.getQuery().split("&")) {
+                    String[] pair = parameter.split("=", 2);
+                    if (pair[0].equals("interval") && pair.length == 2) {
+                        interval = Long.parseLong(pair[1]);
+                    } else if (pair[0].equals("interface") && pair.length == 2) {
+                        networkInterface = NetworkInterface.getByName(pair[1]);
+                    }
+                }
+            }
+
+            return new MulticastInvalidationChannel(
+                InetAddress.getByName(uri.getHost()), uri.getPort(), networkInterface, interval);
+        } catch (Exception e) {
+            throw new DAOConfigurationException(
+                "Invalidation channel '" + channelName + "' cannot be created.", e);
+        }
+    }
+
 }
 
 // Default DAOFactory implementations -------------------------------------------------------------
@@ -154,7 +720,7 @@ class DriverManagerDAOFactory extends DAOFactory {
         this.password = password;
     }
 
-    Connection getConnection() throws SQLException {
+    Connection openConnection() throws SQLException {
         return DriverManager.getConnection(url, username, password);
     }
 }
@@ -169,7 +735,7 @@ class DataSourceDAOFactory extends DAOFactory {
         this.dataSource = dataSource;
     }
 
-    Connection getConnection() throws SQLException {
+    Connection openConnection() throws SQLException {
         return dataSource.getConnection();
     }
 }
@@ -188,7 +754,124 @@ class DataSourceWithLoginDAOFactory extends DAOFactory {
         this.password = password;
     }
 
-    Connection getConnection() throws SQLException {
+    Connection openConnection() throws SQLException {
         return dataSource.getConnection(username, password);
     }
-}
\ No newline at end of file
+}
+
+/**
+ * The in-memory DAOFactory. The data is shared per memory store name, so that all DAOFactory
+ * instances for the same store operate on the same data.
+ */
+class MemoryDAOFactory extends DAOFactory {
+    private static final ConcurrentMap<String, UserDAOMemory> STORES =
+        new ConcurrentHashMap<String, UserDAOMemory>();
+    private static final ConcurrentMap<String, AtomicLong> SEQUENCES =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    private String storeName;
+
+    MemoryDAOFactory(String storeName) {
+        this.storeName = storeName;
+    }
+
+    Connection openConnection() throws SQLException {
+        throw new SQLFeatureNotSupportedException("In-memory DAOFactory has no connections.");
+    }
+
+    UserDAO createUserDAO() {
+        // The ID generation of a new store is configured by the properties of its first DAOFactory.
+        if (!STORES.containsKey(storeName)) {
+            IdGenerator idGenerator = getIdGenerator();
+            STORES.putIfAbsent(storeName, idGenerator != null
+                ? new UserDAOMemory(idGenerator)
+                : new UserDAOMemory(getLongProperty(PROPERTY_AUTO_INCREMENT_OFFSET, 1),
+                    getLongProperty(PROPERTY_AUTO_INCREMENT_INCREMENT, 1)));
+        }
+
+        return STORES.get(storeName);
+    }
+
+    IdGenerator createHiLoIdGenerator(long blockSize, long offset, long increment) {
+        // The sequence table of a memory store is just a counter.
+        SEQUENCES.putIfAbsent(storeName, new AtomicLong());
+        final AtomicLong sequence = SEQUENCES.get(storeName);
+
+        return new HiLoIdGenerator(this, blockSize, offset, increment) {
+            long reserve(long amount) {
+                return sequence.getAndAdd(amount);
+            }
+        };
+    }
+
+    public void warmUp(int connections) {
+        // Nothing to warm up.
+    }
+}
+
+/**
+ * The sharded DAOFactory. It has no connections of its own; the users are spread over the DAO
+ * factories of the shards by {@link ShardedUserDAO}, which queries them in parallel by a shared
+ * thread pool.
+ */
+class ShardedDAOFactory extends DAOFactory {
+    private List<DAOFactory> shards = new ArrayList<DAOFactory>();
+    private ExecutorService executor;
+
+    ShardedDAOFactory(final String name, String[] shardNames) throws DAOConfigurationException {
+        try {
+            for (String shardName : shardNames) {
+                if (shardName.isEmpty() || shardName.equals(name)) {
+                    throw new DAOConfigurationException(
+                        "Sharded DAOFactory '" + name + "' has an invalid shard name.");
+                }
+                shards.add(DAOFactory.getInstance(shardName));
+            }
+        } catch (DAOConfigurationException e) {
+            for (DAOFactory shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    Connection openConnection() throws SQLException {
+        throw new SQLFeatureNotSupportedException("Sharded DAOFactory has no connections.");
+    }
+
+    UserDAO createUserDAO() {
+        List<UserDAO> userDAOs = new ArrayList<UserDAO>();
+
+        for (DAOFactory shard : shards) {
+            userDAOs.add(shard.getUserDAO());
+        }
+
+        return new ShardedUserDAO(userDAOs, executor);
+    }
+
+    public void warmUp(int connections) throws DAOException {
+        for (DAOFactory shard : shards) {
+            shard.warmUp(connections);
+        }
+    }
+
+    public synchronized void close() {
+        if (!isClosed()) {
+            super.close();
+            executor.shutdownNow();
+            for (DAOFactory shard : shards) {
+                shard.close();
+            }
+        }
+    }
+}
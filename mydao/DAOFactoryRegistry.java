@@ -0,0 +1,121 @@
+package mydao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents a registry of shared {@link DAOFactory} instances by database name. The
+ * first {@link #get(String)} of a name creates the DAOFactory by
+ * {@link DAOFactory#getInstance(String)} and warms it up when the 'name.warmup.connections'
+ * property is set; all subsequent calls return the very same instance, so the properties lookup,
+ * the driver loading and the JNDI lookup happen only once per name. Closing the registry closes
+ * all DAO factories it has created.
+ * <p>
+ * Here is a basic use example, e.g. in the startup and shutdown hooks of the application:
+ * <pre>
+ * DAOFactoryRegistry registry = new DAOFactoryRegistry();
+ * registry.warmUp("javabase.jdbc");
+ * // ...
+ * UserDAO userDAO = registry.get("javabase.jdbc").getUserDAO();
+ * // ...
+ * registry.close();
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class DAOFactoryRegistry implements AutoCloseable {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final Map<String, DAOFactory> factories = new LinkedHashMap<String, DAOFactory>();
+    private boolean closed;
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the shared DAOFactory instance for the given database name. It is created and warmed
+     * up on first use. A failing warm-up is printed to the stderr, but does not fail this call,
+     * since the DAOFactory works fine without it.
+     * @param name The database name to return the shared DAOFactory instance for.
+     * @return The shared DAOFactory instance for the given database name.
+     * @throws DAOConfigurationException If the DAOFactory cannot be created, see
+     * {@link DAOFactory#getInstance(String)}.
+     * @throws IllegalStateException If the registry is closed.
+     */
+    public synchronized DAOFactory get(String name)
+        throws DAOConfigurationException, IllegalStateException
+    {
+        if (closed) {
+            throw new IllegalStateException("DAOFactoryRegistry is closed.");
+        }
+
+        DAOFactory factory = factories.get(name);
+
+        if (factory == null) {
+            factory = DAOFactory.getInstance(name);
+            int connections = (int) factory.getLongProperty(
+                DAOFactory.PROPERTY_WARMUP_CONNECTIONS, 0);
+
+            if (connections > 0) {
+                try {
+                    factory.warmUp(connections);
+                } catch (DAOException e) {
+                    System.err.println("Warming up DAOFactory '" + name + "' failed: "
+                        + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+
+            factories.put(name, factory);
+        }
+
+        return factory;
+    }
+
+    /**
+     * Create and warm up the shared DAOFactory instances for the given database names right away,
+     * instead of on their first use.
+     * @param names The database names to create and warm up the DAOFactory instances for.
+     * @throws DAOConfigurationException If a DAOFactory cannot be created.
+     * @throws IllegalStateException If the registry is closed.
+     */
+    public void warmUp(String... names) throws DAOConfigurationException, IllegalStateException {
+        for (String name : names) {
+            get(name).getUserDAO();
+        }
+    }
+
+    /**
+     * Returns the database names of the DAOFactory instances created so far, in creation order.
+     * @return The database names of the DAOFactory instances created so far.
+     */
+    public synchronized List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<String>(factories.keySet()));
+    }
+
+    /**
+     * Close all DAOFactory instances created by this registry, in reverse creation order, and
+     * refuse to create new ones. Closing an already closed registry has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        List<DAOFactory> created = new ArrayList<DAOFactory>(factories.values());
+        Collections.reverse(created);
+
+        for (DAOFactory factory : created) {
+            factory.close();
+        }
+
+        factories.clear();
+    }
+
+}
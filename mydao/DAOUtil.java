@@ -8,6 +8,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import mymodel.CompactUserList;
+import mymodel.User;
 
 /**
  * Utility class for DAO's. This class contains commonly used DAO logic which is been refactored in
@@ -19,6 +26,12 @@ import java.sql.Statement;
  */
 public final class DAOUtil {
 
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String MYSQL = "MySQL";
+    private static final int STREAMING_FETCH_SIZE = 1000;
+    private static final Pattern MD5_HASH = Pattern.compile("[a-f0-9]{32}");
+
     // Constructors -------------------------------------------------------------------------------
 
     private DAOUtil() {
@@ -40,10 +53,134 @@ public final class DAOUtil {
         (Connection connection, String sql, boolean returnGeneratedKeys, Object... values)
             throws SQLException
     {
-        PreparedStatement preparedStatement = connection.prepareStatement(sql,
-            returnGeneratedKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
-        setValues(preparedStatement, values);
-        return preparedStatement;
+        DAOEvents.StatementPrepare event = new DAOEvents.StatementPrepare();
+        event.begin();
+
+        try {
+            int autoGeneratedKeys = returnGeneratedKeys
+                ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
+            PreparedStatement preparedStatement =
+                connection.prepareStatement(sql, autoGeneratedKeys);
+            setValues(preparedStatement, values);
+            return preparedStatement;
+        } finally {
+            event.finish(sql);
+        }
+    }
+
+    /**
+     * Returns a forward-only, read-only PreparedStatement of the given connection, set with the
+     * given SQL query and the given parameter values, whose ResultSet streams the rows instead of
+     * loading them all in memory. MySQL only streams with a fetch size of Integer.MIN_VALUE, other
+     * databases fetch the rows in chunks of the regular fetch size.
+     * @param connection The Connection to create the PreparedStatement from.
+     * @param sql The SQL query to construct the PreparedStatement with.
+     * @param values The parameter values to be set in the created PreparedStatement.
+     * @throws SQLException If something fails during creating the PreparedStatement.
+     */
+    public static PreparedStatement prepareStreamingStatement
+        (Connection connection, String sql, Object... values)
+            throws SQLException
+    {
+        DAOEvents.StatementPrepare event = new DAOEvents.StatementPrepare();
+        event.begin();
+
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(sql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(
+                isMySQL(connection) ? Integer.MIN_VALUE : STREAMING_FETCH_SIZE);
+            setValues(preparedStatement, values);
+            return preparedStatement;
+        } finally {
+            event.finish(sql);
+        }
+    }
+
+    /**
+     * Execute the given query PreparedStatement and returns its ResultSet, recording the execution
+     * as {@link DAOEvents.StatementExecute} event. Package private so that it can be used inside
+     * the DAO package only.
+     * @param preparedStatement The PreparedStatement to be executed.
+     * @param sql The SQL query of the PreparedStatement, which identifies it in the event.
+     * @return The ResultSet of the given PreparedStatement.
+     * @throws SQLException If something fails during executing the PreparedStatement.
+     */
+    static ResultSet executeQuery(PreparedStatement preparedStatement, String sql)
+        throws SQLException
+    {
+        DAOEvents.StatementExecute event = new DAOEvents.StatementExecute();
+        event.begin();
+
+        try {
+            return preparedStatement.executeQuery();
+        } finally {
+            event.finish(sql, -1);
+        }
+    }
+
+    /**
+     * Execute the given update PreparedStatement and returns the amount of affected rows,
+     * recording the execution as {@link DAOEvents.StatementExecute} event. Package private so that
+     * it can be used inside the DAO package only.
+     * @param preparedStatement The PreparedStatement to be executed.
+     * @param sql The SQL query of the PreparedStatement, which identifies it in the event.
+     * @return The amount of affected rows.
+     * @throws SQLException If something fails during executing the PreparedStatement.
+     */
+    static int executeUpdate(PreparedStatement preparedStatement, String sql)
+        throws SQLException
+    {
+        DAOEvents.StatementExecute event = new DAOEvents.StatementExecute();
+        event.begin();
+        int affectedRows = -1;
+
+        try {
+            affectedRows = preparedStatement.executeUpdate();
+            return affectedRows;
+        } finally {
+            event.finish(sql, affectedRows);
+        }
+    }
+
+    /**
+     * Execute the batch of the given PreparedStatement and returns the amount of affected rows per
+     * batched statement, recording the execution as {@link DAOEvents.StatementExecute} event with
+     * the total of affected rows. Package private so that it can be used inside the DAO package
+     * only.
+     * @param preparedStatement The PreparedStatement whose batch is to be executed.
+     * @param sql The SQL query of the PreparedStatement, which identifies it in the event.
+     * @return The amount of affected rows per batched statement.
+     * @throws SQLException If something fails during executing the batch.
+     */
+    static int[] executeBatch(PreparedStatement preparedStatement, String sql)
+        throws SQLException
+    {
+        DAOEvents.StatementExecute event = new DAOEvents.StatementExecute();
+        event.begin();
+        long totalAffectedRows = -1;
+
+        try {
+            int[] affectedRows = preparedStatement.executeBatch();
+            totalAffectedRows = 0;
+            for (int rows : affectedRows) {
+                // Drivers may report Statement.SUCCESS_NO_INFO (-2) instead of a count.
+                totalAffectedRows += Math.max(0, rows);
+            }
+            return affectedRows;
+        } finally {
+            event.finish(sql, totalAffectedRows);
+        }
+    }
+
+    /**
+     * Returns true if the given connection is a MySQL connection.
+     * @param connection The Connection to be checked.
+     * @return True if the given connection is a MySQL connection.
+     * @throws SQLException If obtaining the database metadata fails.
+     */
+    public static boolean isMySQL(Connection connection) throws SQLException {
+        return MYSQL.equals(connection.getMetaData().getDatabaseProductName());
     }
 
     /**
@@ -155,4 +292,93 @@ public final class DAOUtil {
         return hex.toString();
     }
 
+    /**
+     * Generate MD5 hash for the given password if necessary. That is, if it is not already hashed.
+     * Package private so that all UserDAO implementations hash the same way.
+     * @param password The password to generate a hash for if necessary.
+     * @return The hash of the given password or the same value if it is already hashed.
+     */
+    static String hashMD5IfNecessary(String password) {
+        return !MD5_HASH.matcher(password).matches() ? hashMD5(password) : password;
+    }
+
+    /**
+     * Returns a compact list of the users of the given DAO matching the given criteria, collected
+     * from {@link UserDAO#scan(UserCriteria, UserHandler)} so that no User DTO is created at all.
+     * Package private so that all UserDAO implementations collect the same way.
+     * @param userDAO The DAO to scan the users from.
+     * @param criteria The criteria the users must match.
+     * @return A compact list of the users of the given DAO matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    static CompactUserList listCompact(UserDAO userDAO, UserCriteria criteria)
+        throws DAOException
+    {
+        final CompactUserList.Builder builder = new CompactUserList.Builder();
+        userDAO.scan(criteria, new UserHandler() {
+            @Override
+            public void handle(long id, String username, String password, String email,
+                Integer age)
+            {
+                builder.add(id, username, password, email, age);
+            }
+        });
+        return builder.build();
+    }
+
+    /**
+     * Returns a list of the users of the given DAO matching the given criteria, with the ID and the
+     * given fields only, collected from {@link UserDAO#scan(UserCriteria, Set, UserHandler)}.
+     * Package private so that all UserDAO implementations collect the same way.
+     * @param userDAO The DAO to scan the users from.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to select besides the ID.
+     * @return A list of the users of the given DAO matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    static List<User> list(UserDAO userDAO, UserCriteria criteria, Set<UserField> fields)
+        throws DAOException
+    {
+        final List<User> users = new ArrayList<User>();
+        userDAO.scan(criteria, fields, new UserHandler() {
+            @Override
+            public void handle(long id, String username, String password, String email,
+                Integer age)
+            {
+                users.add(new User(id, username, password, email, age));
+            }
+        });
+        return users;
+    }
+
+    /**
+     * Returns a handler which passes the ID and the given fields to the given handler, and null
+     * instead of the other fields. This is the given handler itself if the given fields are all
+     * fields. Package private so that all UserDAO implementations project the same way.
+     * @param fields The fields to pass besides the ID.
+     * @param handler The handler to pass the ID and the given fields to.
+     * @return A handler which passes the ID and the given fields to the given handler.
+     */
+    static UserHandler project(Set<UserField> fields, final UserHandler handler) {
+        if (fields.size() == UserField.values().length) {
+            return handler;
+        }
+
+        final boolean username = fields.contains(UserField.USERNAME);
+        final boolean password = fields.contains(UserField.PASSWORD);
+        final boolean email = fields.contains(UserField.EMAIL);
+        final boolean age = fields.contains(UserField.AGE);
+
+        return new UserHandler() {
+            @Override
+            public void handle(long id, String usernameValue, String passwordValue,
+                String emailValue, Integer ageValue)
+            {
+                handler.handle(id, username ? usernameValue : null,
+                    password ? passwordValue : null, email ? emailValue : null,
+                    age ? ageValue : null);
+            }
+        };
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package mydao;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JProgressBar;
+import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
+
+/**
+ * This class represents a background worker for the DAO calls of {@link DAOgui} and
+ * {@link DAOTest}, so that the Swing event dispatch thread never waits on the database. Implement
+ * {@link #doInBackground()} to do the DAO work and return the message to be shown when done. Lines
+ * passed to {@link #publish(Object...)} are appended to the output as they come in.
+ * <p>
+ * While the worker runs, the action buttons are disabled, the progress bar is shown, and the
+ * cancel button is enabled if the worker is cancellable. The progress bar is indeterminate until
+ * the worker sets its progress. A cancellable worker should regularly check {@link #isCancelled()}
+ * and stop by throwing {@link CancellationException}, since JDBC calls can't be interrupted.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+abstract class DAOWorker extends SwingWorker<String, String> {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final JTextArea output;
+    private final JProgressBar progressBar;
+    private final JButton cancelButton;
+    private final JComponent actions;
+    private final boolean cancellable;
+    private final String failureMessage;
+    private final ActionListener cancelListener = new ActionListener() {
+        public void actionPerformed(ActionEvent event) {
+            cancel(true);
+        }
+    };
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a DAO worker for the given GUI components.
+     * @param output The text area to show the published lines and the final message in.
+     * @param progressBar The progress bar to show while the worker runs.
+     * @param cancelButton The button to cancel the worker with.
+     * @param actions The panel with the action buttons to disable while the worker runs.
+     * @param cancellable Whether the worker can be cancelled.
+     * @param failureMessage The message to show when the worker fails.
+     */
+    DAOWorker(JTextArea output, JProgressBar progressBar, JButton cancelButton,
+        JComponent actions, boolean cancellable, String failureMessage)
+    {
+        this.output = output;
+        this.progressBar = progressBar;
+        this.cancelButton = cancelButton;
+        this.actions = actions;
+        this.cancellable = cancellable;
+        this.failureMessage = failureMessage;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Update the GUI for a running worker and start the worker. Must be invoked on the EDT.
+     */
+    void start() {
+        setActionsEnabled(false);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+
+        if (cancellable) {
+            cancelButton.addActionListener(cancelListener);
+            cancelButton.setEnabled(true);
+        }
+
+        addPropertyChangeListener(new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent event) {
+                if ("progress".equals(event.getPropertyName())) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer) event.getNewValue());
+                }
+            }
+        });
+
+        execute();
+    }
+
+    @Override
+    protected void process(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+
+        output.append(text.toString());
+    }
+
+    @Override
+    protected void done() {
+        cancelButton.removeActionListener(cancelListener);
+        cancelButton.setEnabled(false);
+        progressBar.setVisible(false);
+        progressBar.setValue(0);
+        setActionsEnabled(true);
+
+        try {
+            String message = get();
+            if (message != null) {
+                output.setText(message);
+            }
+        } catch (CancellationException e) {
+            output.append("Cancelled.\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                output.append("Cancelled.\n");
+            } else {
+                output.setText(failureMessage);
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private void setActionsEnabled(boolean enabled) {
+        for (Component action : actions.getComponents()) {
+            action.setEnabled(enabled);
+        }
+    }
+
+}
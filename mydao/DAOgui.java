@@ -7,15 +7,17 @@ import java.awt.Font;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 
 import mymodel.User;
@@ -146,93 +148,123 @@ public class DAOgui {
         east.add(age,BorderLayout.EAST);
         //final User user = new User(null, "username", "password");  
         
+        final JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setVisible(false);
+        final JButton cancelButton = new JButton("cancel");
+        cancelButton.setEnabled(false);
+        JPanel north = new JPanel();
+        north.add(progressBar);
+        north.add(cancelButton);
+        pane.add(north, BorderLayout.NORTH);
+        final JPanel actions = south;
+
+        final UserTableModel tableModel = new UserTableModel(dao);
+        JTable table = new JTable(tableModel);
+        table.setFillsViewportHeight(true);
+        pane.add(new JScrollPane(table), BorderLayout.CENTER);
+
+        // The DAO calls run in DAOWorkers, so that the GUI never freezes on the database. The
+        // fields are read here on the EDT, before the worker starts.
+
         insertButton.addActionListener(new ActionListener(){
         	
             public void actionPerformed(ActionEvent ae) {
+                final User user;
                 try{
-            	User user = new User(null, name.getText(), pw.getText(), email.getText(), Integer.parseInt(age.getText()));
-                dao.create(user);
-                ta.setText("Added: " + user);
-                }catch(Exception e) {
-					// TODO Auto-generated catch block
+            	user = new User(null, name.getText(), pw.getText(), email.getText(), Integer.parseInt(age.getText()));
+                }catch(NumberFormatException e) {
                 	ta.setText("reEnter");
 					e.printStackTrace();
+					return;
 				}
 
+                new DAOWorker(ta, progressBar, cancelButton, actions, false, "reEnter") {
+                    protected String doInBackground() throws Exception {
+                        dao.create(user);
+                        return "Added: " + user;
+                    }
+                }.start();
             }
         });
         
         deleteButton.addActionListener(new ActionListener(){
             
             public void actionPerformed(ActionEvent ae) {
-            	
+            	final long userId;
             	try{
-            	User user = dao.find(Long.parseLong(id.getText()));	
-                dao.delete(user);
-                ta.setText("Deleted: \n" + user);
-            	}//catch(DAOException e) {
-					// TODO Auto-generated catch block
-            		//ta.setText("Must enter username and password!");
-					//e.printStackTrace();
-				//}
-            	catch(Exception e) {
-					// TODO Auto-generated catch block
+            	userId = Long.parseLong(id.getText());
+            	}catch(NumberFormatException e) {
             		ta.setText("reEnter");
 					e.printStackTrace();
+					return;
 				}
+
+                new DAOWorker(ta, progressBar, cancelButton, actions, false, "reEnter") {
+                    protected String doInBackground() throws Exception {
+                        User user = dao.find(userId);
+                        dao.delete(user);
+                        return "Deleted: \n" + user;
+                    }
+                }.start();
             }
         });
         
         listButton.addActionListener(new ActionListener(){
         	@Override
             public void actionPerformed(ActionEvent ae) {
-            	
-                List<User> users;
-				try {
-					users = dao.list();
-					Object[] users1 = users.toArray();
-					//ta.setText("");
-					ta.setText("current list: \n");
-					for(int i=0;i<users.size();i++)
-						ta.append((users1[i].toString() + "\n"));
-					
-					//ta.append("Thus, amount of users in database is: " + users.size());
-	                //System.out.println("List of users successfully queried: " + users.toString());
-	                //System.out.println("Thus, amount of users in database is: " + users.size());
-				} catch (DAOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
 
+                // Only the count is obtained here, the table loads the visible pages by itself.
+                new DAOWorker(ta, progressBar, cancelButton, actions, true, "reEnter") {
+                    private Long count;
+
+                    protected String doInBackground() throws Exception {
+                        count = dao.count();
+                        return "current list: \n"
+                            + "Thus, amount of users in database is: " + count;
+                    }
 
-   
+                    protected void done() {
+                        super.done();
+                        if (!isCancelled() && count != null) {
+                            tableModel.reset(count);
+                        }
+                    }
+                }.start();
             }
         });   
         
         updateButton.addActionListener(new ActionListener(){
         	
             public void actionPerformed(ActionEvent ae) {
+                final long userId;
+                final String newName = name.getText();
+                final String newPw = pw.getText();
+                final String newEmail = email.getText();
+                final Integer newAge;
                 try{
-            	User user = dao.find(Long.parseLong(id.getText()));	
-                
-            	if(name.getText() != null)
-                	user.setUsername(name.getText());
-                if(pw.getText() != null)
-                	user.setPassword(pw.getText());
-                if(email.getText() != null)
-                	user.setEmail(email.getText());
-                if(age.getText() != null)
-                	user.setAge(Integer.parseInt(age.getText()));
-                
-                dao.update(user);
-                //System.out.println("User successfully updated: " + user);
-                ta.setText("User successfully updated: \n" + user);
-                }catch(Exception e) {
-					// TODO Auto-generated catch block
+            	userId = Long.parseLong(id.getText());
+            	newAge = Integer.parseInt(age.getText());
+                }catch(NumberFormatException e) {
                 	ta.setText("Must enter id!");
 					e.printStackTrace();
+					return;
 				}
 
+                new DAOWorker(ta, progressBar, cancelButton, actions, false, "Must enter id!") {
+                    protected String doInBackground() throws Exception {
+                        User user = dao.find(userId);
+                        user.setUsername(newName);
+                        user.setPassword(newPw);
+                        user.setEmail(newEmail);
+                        user.setAge(newAge);
+                        try {
+                            dao.update(user);
+                        } catch (OptimisticLockException e) {
+                            return "User was changed by someone else in the meantime, try again.";
+                        }
+                        return "User successfully updated: \n" + user;
+                    }
+                }.start();
             }
         });
     }
@@ -246,7 +278,7 @@ public class DAOgui {
          
         //Create and set up the window.
         JFrame frame = new JFrame("Heya");
-        frame.setPreferredSize(new Dimension(600, 400));
+        frame.setPreferredSize(new Dimension(600, 600));
         
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         
@@ -269,7 +301,12 @@ public class DAOgui {
         UserDAO userDAO = javabase.getUserDAO();
         System.out.println("UserDAO successfully obtained: " + userDAO);
         
-        createAndShowGUI(userDAO);
+        final UserDAO dao = userDAO;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                createAndShowGUI(dao);
+            }
+        });
 
     }
 
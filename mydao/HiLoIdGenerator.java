@@ -0,0 +1,125 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class represents an {@link IdGenerator} which reserves blocks of IDs in a sequence table and
+ * hands them out from memory, the so called hi/lo algorithm. Only one in every block size IDs costs
+ * a database round trip. IDs of reserved blocks which are not handed out before the application
+ * stops are lost, so there will be gaps.
+ * <p>
+ * It requires a 'user_id_sequence' table with a single row which is created as follows, whereby
+ * the initial value must be at least the highest ID in the 'user' table:
+ * <pre>
+ * CREATE TABLE javabase.user_id_sequence (
+ *     next_value BIGINT UNSIGNED NOT NULL
+ * );
+ * INSERT INTO javabase.user_id_sequence (next_value)
+ *     SELECT COALESCE(MAX(id), 0) FROM javabase.user;
+ * </pre>
+ * The sequence values are mapped to IDs with the 'name.autoincrement.offset' and
+ * 'name.autoincrement.increment' properties as described in {@link DAOFactory}, so that the IDs
+ * of the shards of a sharded DAOFactory do not collide.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class HiLoIdGenerator implements IdGenerator {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String SQL_SELECT_FOR_UPDATE =
+        "SELECT next_value FROM user_id_sequence FOR UPDATE";
+    private static final String SQL_UPDATE =
+        "UPDATE user_id_sequence SET next_value = ?";
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final DAOFactory daoFactory;
+    private final long blockSize;
+    private final long offset;
+    private final long increment;
+    private long next;
+    private long end;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a hi/lo ID generator for the given DAOFactory. Package private so that it can be
+     * constructed inside the DAO package only.
+     * @param daoFactory The DAOFactory of the database with the sequence table.
+     * @param blockSize The amount of IDs to reserve at once.
+     * @param offset The ID of sequence value 0.
+     * @param increment The difference between the IDs of subsequent sequence values.
+     */
+    HiLoIdGenerator(DAOFactory daoFactory, long blockSize, long offset, long increment) {
+        this.daoFactory = daoFactory;
+        this.blockSize = Math.max(1, blockSize);
+        this.offset = offset;
+        this.increment = increment;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public synchronized long nextId() throws DAOException {
+        if (next == end) {
+            next = reserve(blockSize);
+            end = next + blockSize;
+        }
+
+        return offset + increment * next++;
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Reserve the given amount of sequence values in the sequence table and return the first one.
+     * Package private so that it can be overridden inside the DAO package only.
+     * @param amount The amount of sequence values to reserve.
+     * @return The first reserved sequence value.
+     * @throws DAOException If something fails at database level.
+     */
+    long reserve(long amount) throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                preparedStatement = connection.prepareStatement(SQL_SELECT_FOR_UPDATE);
+                resultSet = preparedStatement.executeQuery();
+                if (!resultSet.next()) {
+                    throw new SQLException("Table user_id_sequence is empty.");
+                }
+                long first = resultSet.getLong(1);
+                close(resultSet);
+                close(preparedStatement);
+
+                preparedStatement = prepareStatement(connection, SQL_UPDATE, false, first + amount);
+                preparedStatement.executeUpdate();
+                connection.commit();
+                return first;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+    }
+
+}
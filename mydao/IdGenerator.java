@@ -0,0 +1,26 @@
+package mydao;
+
+/**
+ * This interface represents a contract for a generator of user IDs which are assigned before the
+ * user is inserted, instead of by the AUTO_INCREMENT of the database. The DAO then needs no
+ * generated keys from the database, so that inserts can be batched and sent without waiting for
+ * the keys of the previous ones, see {@link UserDAO#createAll(java.util.List)}.
+ * <p>
+ * Implementations are configured by the 'name.id.generator' property as described in
+ * {@link DAOFactory}. Custom implementations need a public no-arg constructor.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public interface IdGenerator {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the next unique user ID. It must be thread safe.
+     * @return The next unique user ID.
+     * @throws DAOException If the next ID cannot be obtained from the database.
+     */
+    public long nextId() throws DAOException;
+
+}
@@ -0,0 +1,103 @@
+package mydao;
+
+/**
+ * This class represents an invalidation of cached user data as published on an
+ * {@link InvalidationChannel}. It identifies the user by ID and additionally names the username and
+ * email address which were involved in the write, so that receivers can also drop lookups by those
+ * keys. Any of the fields may be null. Invalidations are immutable and compare by value, so that a
+ * channel can coalesce duplicate invalidations of the same user.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public final class Invalidation {
+
+    // Properties ---------------------------------------------------------------------------------
+
+    private final Long id;
+    private final String username;
+    private final String email;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an invalidation for the given user ID, username and email address.
+     * @param id The ID of the user to be invalidated, may be null.
+     * @param username The username to be invalidated, may be null.
+     * @param email The email address to be invalidated, may be null.
+     */
+    public Invalidation(Long id, String username, String email) {
+        this.id = id;
+        this.username = username;
+        this.email = email;
+    }
+
+    // Getters ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the ID of the user to be invalidated.
+     * @return The ID of the user to be invalidated.
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the username to be invalidated.
+     * @return The username to be invalidated.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the email address to be invalidated.
+     * @return The email address to be invalidated.
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    // Override -----------------------------------------------------------------------------------
+
+    /**
+     * Invalidations are equal when all of their fields are equal.
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    public boolean equals(Object other) {
+        if (!(other instanceof Invalidation)) {
+            return false;
+        }
+
+        Invalidation that = (Invalidation) other;
+        return equals(id, that.id) && equals(username, that.username) && equals(email, that.email);
+    }
+
+    /**
+     * Invalidations which are equal should return same hashcode.
+     * @see java.lang.Object#hashCode()
+     */
+    public int hashCode() {
+        return 31 * (31 * hashCode(id) + hashCode(username)) + hashCode(email);
+    }
+
+    /**
+     * Returns the String representation of this Invalidation. Not required, it just pleases
+     * reading logs.
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return String.format("Invalidation[id=%d,username=%s,email=%s]", id, username, email);
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private static boolean equals(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static int hashCode(Object object) {
+        return object != null ? object.hashCode() : 0;
+    }
+
+}
\ No newline at end of file
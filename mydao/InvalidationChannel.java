@@ -0,0 +1,56 @@
+package mydao;
+
+/**
+ * This interface represents a contract for a channel which distributes {@link Invalidation}s of
+ * cached user data between application nodes. Every write through a caching {@link UserDAO}
+ * publishes an invalidation, and every invalidation received from another node is passed to the
+ * listener, which drops the affected entries from the local cache.
+ * <p>
+ * Delivery is best effort. Implementations may batch and coalesce invalidations before sending
+ * them, and messages may get lost. The cache therefore never serves entries older than its
+ * configured maximum staleness, regardless of the channel.
+ * <p>
+ * Implementations are configured by the 'name.cache.invalidation' property as described in
+ * {@link DAOFactory}. Custom implementations need a public no-arg constructor.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public interface InvalidationChannel {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Publish the given invalidation to the other nodes.
+     * @param invalidation The invalidation to be published.
+     */
+    public void publish(Invalidation invalidation);
+
+    /**
+     * Sets the listener to which invalidations received from the other nodes are to be passed.
+     * Invalidations published by this node itself shall not be passed to the listener.
+     * @param listener The listener to which received invalidations are to be passed.
+     */
+    public void setListener(Listener listener);
+
+    /**
+     * Close the channel and release any resources held by it.
+     */
+    public void close();
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The listener of invalidations received on an {@link InvalidationChannel}.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked for every invalidation received from another node.
+         * @param invalidation The received invalidation.
+         */
+        public void invalidated(Invalidation invalidation);
+
+    }
+
+}
\ No newline at end of file
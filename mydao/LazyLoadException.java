@@ -0,0 +1,29 @@
+package mydao;
+
+/**
+ * This class represents an exception which is thrown when the lazily loaded fields of an user of
+ * {@link UserDAO#listLazy(UserCriteria, java.util.Set)} cannot be loaded. It is unchecked, because
+ * the fields are loaded by the getters of the User DTO, which cannot throw a DAOException. The
+ * cause is the DAOException of the query. The next access retries the query.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class LazyLoadException extends RuntimeException {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final long serialVersionUID = 1L;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Constructs a LazyLoadException with the given detail message and root cause.
+     * @param message The detail message of the LazyLoadException.
+     * @param cause The root cause of the LazyLoadException.
+     */
+    public LazyLoadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
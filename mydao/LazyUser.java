@@ -0,0 +1,251 @@
+package mydao;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mymodel.User;
+
+/**
+ * This class represents an User DTO of {@link UserDAO#listLazy(UserCriteria, Set)} whose fields
+ * which were not selected are loaded on first access. All lazy users of the same list share one
+ * batch, so that the first access to a missing field of any of them loads the missing fields of
+ * all of them at once, by their IDs, instead of one query per user. Fields which are set before
+ * they are loaded keep the set value.
+ * <p>
+ * The batch holds on to the DAO and the users until it is loaded. Users which are deleted before
+ * the batch is loaded keep null in their missing fields.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class LazyUser extends User {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int BATCH_SIZE = 1000;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final Batch batch;
+    private final Set<UserField> assigned = EnumSet.noneOf(UserField.class);
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private LazyUser(Batch batch, long id, String username, String password, String email,
+        Integer age)
+    {
+        super(id, username, password, email, age);
+        this.batch = batch;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns a list of lazy users of the given User DAO matching the given criteria, with the
+     * given fields loaded eagerly. Package private so that all UserDAO implementations list lazy
+     * users the same way.
+     * @param userDAO The DAO to scan the users from and to load the missing fields with.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to load eagerly besides the ID.
+     * @return A list of lazy users of the given User DAO matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    static List<User> list(UserDAO userDAO, UserCriteria criteria, Set<UserField> fields)
+        throws DAOException
+    {
+        final Batch batch = new Batch(userDAO, fields);
+        final List<User> users = new ArrayList<User>();
+
+        userDAO.scan(criteria, fields, new UserHandler() {
+            public void handle
+                (long id, String username, String password, String email, Integer age)
+            {
+                LazyUser user = new LazyUser(batch, id, username, password, email, age);
+                batch.users.add(user);
+                users.add(user);
+            }
+        });
+
+        batch.loadedIfComplete();
+        return users;
+    }
+
+    // Getters ------------------------------------------------------------------------------------
+
+    @Override
+    public String getUsername() {
+        batch.load(UserField.USERNAME);
+        return super.getUsername();
+    }
+
+    @Override
+    public String getPassword() {
+        batch.load(UserField.PASSWORD);
+        return super.getPassword();
+    }
+
+    @Override
+    public String getEmail() {
+        batch.load(UserField.EMAIL);
+        return super.getEmail();
+    }
+
+    @Override
+    public Integer getAge() {
+        batch.load(UserField.AGE);
+        return super.getAge();
+    }
+
+    // Setters ------------------------------------------------------------------------------------
+
+    @Override
+    public void setUsername(String username) {
+        assign(UserField.USERNAME);
+        super.setUsername(username);
+    }
+
+    @Override
+    public void setPassword(String password) {
+        assign(UserField.PASSWORD);
+        super.setPassword(password);
+    }
+
+    @Override
+    public void setEmail(String email) {
+        assign(UserField.EMAIL);
+        super.setEmail(email);
+    }
+
+    @Override
+    public void setAge(Integer age) {
+        assign(UserField.AGE);
+        super.setAge(age);
+    }
+
+    // Override -----------------------------------------------------------------------------------
+
+    /**
+     * The hashcode of User includes the class, so return the one of an User with the same ID, as
+     * they are equal.
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return (getId() != null) ? (User.class.hashCode() + getId().hashCode()) : super.hashCode();
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private void assign(UserField field) {
+        synchronized (batch) {
+            assigned.add(field);
+        }
+    }
+
+    /**
+     * Fill the given loaded fields which are not assigned in the meantime. Invoked by the batch
+     * while it holds its lock.
+     */
+    private void fill(Set<UserField> fields, String username, String password, String email,
+        Integer age)
+    {
+        Set<UserField> missing = EnumSet.copyOf(fields);
+        missing.removeAll(assigned);
+
+        if (missing.contains(UserField.USERNAME)) {
+            super.setUsername(username);
+        }
+        if (missing.contains(UserField.PASSWORD)) {
+            super.setPassword(password);
+        }
+        if (missing.contains(UserField.EMAIL)) {
+            super.setEmail(email);
+        }
+        if (missing.contains(UserField.AGE)) {
+            super.setAge(age);
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The users of one lazy list, whose missing fields are loaded together.
+     */
+    private static final class Batch {
+        private final EnumSet<UserField> fields = EnumSet.noneOf(UserField.class);
+        private final Set<UserField> missing;
+        private UserDAO userDAO;
+        private List<LazyUser> users = new ArrayList<LazyUser>();
+        private volatile boolean loaded;
+
+        private Batch(UserDAO userDAO, Set<UserField> fields) {
+            this.userDAO = userDAO;
+            this.fields.addAll(fields);
+            this.missing = EnumSet.complementOf(this.fields);
+        }
+
+        /**
+         * Mark this batch as loaded if nothing is missing, so that the DAO and users are released.
+         */
+        private void loadedIfComplete() {
+            if (missing.isEmpty() || users.isEmpty()) {
+                release();
+            }
+        }
+
+        /**
+         * Load the missing fields of all users of this batch, unless the given field is not
+         * missing or this batch is already loaded.
+         */
+        private void load(UserField field) {
+            if (loaded || fields.contains(field)) {
+                return;
+            }
+
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+
+                try {
+                    for (int i = 0; i < users.size(); i += BATCH_SIZE) {
+                        load(users.subList(i, Math.min(i + BATCH_SIZE, users.size())));
+                    }
+                } catch (DAOException e) {
+                    throw new LazyLoadException("Loading " + missing + " of users failed.", e);
+                }
+
+                release();
+            }
+        }
+
+        private void load(List<LazyUser> chunk) throws DAOException {
+            final Map<Long, LazyUser> usersById = new HashMap<Long, LazyUser>();
+            for (LazyUser user : chunk) {
+                usersById.put(user.getId(), user);
+            }
+
+            userDAO.scan(new UserCriteria().idIn(usersById.keySet()), missing, new UserHandler() {
+                public void handle
+                    (long id, String username, String password, String email, Integer age)
+                {
+                    LazyUser user = usersById.get(id);
+                    if (user != null) {
+                        user.fill(missing, username, password, email, age);
+                    }
+                }
+            });
+        }
+
+        private void release() {
+            userDAO = null;
+            users = null;
+            loaded = true;
+        }
+    }
+
+}
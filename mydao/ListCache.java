@@ -0,0 +1,189 @@
+package mydao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import mymodel.User;
+
+/**
+ * This class represents a cache of list query results behind {@link CachedUserDAO}, keyed by the
+ * query shape and parameters. Every result is cached along with the write generation of the
+ * {@link UserCache} at which its query started, and is only served as long as that is still the
+ * current generation. Since every write and every received invalidation bumps the generation, any
+ * write to the user table invalidates all cached results at once, which is cheap because writes
+ * are supposed to be rare compared to the lists. Results are also not served longer than the
+ * maximum staleness of the user cache.
+ * <p>
+ * Cached results are shared by all callers without copying them: the lists are unmodifiable and
+ * the users in them cannot be modified either. The User DAO only modifies unshared copies of them,
+ * see {@link #unshared(User)}. When the cache is full, it is cleared, which is good enough for a
+ * cache of a handful of list screens.
+ * <p>
+ * It is enabled by the 'name.cache.lists.maxsize' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class ListCache {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long maxStaleness;
+    private final int maxSize;
+    private final ConcurrentMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a list cache with the given maximum staleness and size.
+     * @param maxStaleness The maximum staleness of cached lists in milliseconds.
+     * @param maxSize The maximum amount of cached lists.
+     */
+    ListCache(long maxStaleness, int maxSize) {
+        this.maxStaleness = TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+        this.maxSize = maxSize;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached list with the given key, or null if it is absent, too stale or of another
+     * generation than the given current generation.
+     * @param key The key of the list, which must identify the query shape and parameters.
+     * @param generation The current write generation.
+     * @return The cached list with the given key, or null if it is absent or outdated.
+     */
+    List<User> get(Object key, long generation) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        } else if (entry.generation != generation || System.nanoTime() - entry.expires > 0) {
+            entries.remove(key, entry);
+            return null;
+        } else {
+            return entry.users;
+        }
+    }
+
+    /**
+     * Cache the given list under the given key and returns the shared, unmodifiable copy of it as
+     * it is cached.
+     * @param key The key of the list, which must identify the query shape and parameters.
+     * @param users The list as loaded.
+     * @param generation The write generation as obtained before loading.
+     * @return The shared, unmodifiable copy of the given list.
+     */
+    List<User> put(Object key, List<User> users, long generation) {
+        List<User> shared = new ArrayList<User>(users.size());
+        for (User user : users) {
+            shared.add(new SharedUser(user));
+        }
+        shared = Collections.unmodifiableList(shared);
+
+        if (entries.size() >= maxSize) {
+            entries.clear();
+        }
+
+        entries.put(key, new Entry(shared, generation, System.nanoTime() + maxStaleness));
+        return shared;
+    }
+
+    /**
+     * Returns true if the given user is a shared user of a cached list, which cannot be modified.
+     * @param user The user to be checked.
+     * @return True if the given user is a shared user of a cached list.
+     */
+    static boolean isShared(User user) {
+        return user instanceof SharedUser;
+    }
+
+    /**
+     * Returns an unshared copy of the given user if it is a shared user of a cached list, else the
+     * given user itself. Writes pass the users through this before the decorated DAO sets the ID
+     * or version in them, so a write of a shared user leaves the cached one as it is.
+     * @param user The user which may be shared.
+     * @return An unshared copy of the given user, or the given user itself if it is not shared.
+     */
+    static User unshared(User user) {
+        return isShared(user) ? UserCache.copy(user) : user;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    private static final class Entry {
+        private final List<User> users;
+        private final long generation;
+        private final long expires;
+
+        private Entry(List<User> users, long generation, long expires) {
+            this.users = users;
+            this.generation = generation;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * An User DTO of a cached list, which is shared by all callers and therefore cannot be
+     * modified, not even its ID or version.
+     */
+    private static final class SharedUser extends User {
+
+        private SharedUser(User user) {
+            super(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+                user.getAge());
+            super.setVersion(user.getVersion());
+        }
+
+        @Override
+        public void setId(Long id) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setUsername(String username) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setPassword(String password) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setEmail(String email) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setAge(Integer age) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setVersion(Long version) {
+            throw unsupported();
+        }
+
+        /**
+         * The hashcode of User includes the class, so return the one of an User with the same ID,
+         * as they are equal.
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return (getId() != null) ? (User.class.hashCode() + getId().hashCode())
+                : super.hashCode();
+        }
+
+        private static UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException(
+                "User of a cached list is shared, obtain it by find() to modify it.");
+        }
+    }
+
+}
@@ -0,0 +1,628 @@
+package mydao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import mymodel.User;
+
+/**
+ * This class represents the persistent second tier of the {@link UserCache}. The users are kept
+ * off-heap in a memory-mapped file, so that they survive a restart of the application and the
+ * database does not have to take the full read load while the in-process cache fills up again.
+ * <p>
+ * The file consists of a header, an open-addressing index on ID, an open-addressing index on the
+ * hash of the username, and an append-only data area with the users in a compact binary encoding.
+ * The header holds a format version and a stamp of the database schema; if either differs on
+ * startup, or if the size does not match, the file is cleared. Every user is stored with a CRC32
+ * checksum, which is verified on startup, so that users which were half written when the
+ * operating system crashed are dropped. When the data area or an index is full, the file is
+ * cleared and fills up again, since this is a cache.
+ * <p>
+ * Lookups probe the indexes and decode the user by absolute reads on the mapped buffer, so a miss
+ * allocates nothing and a hit allocates only the decoded user. Users are stored along with the
+ * wall clock time they were loaded at, and are not returned once that is longer ago than the
+ * maximum staleness. Invalidations which are published while the application is down are lost, so
+ * this maximum staleness bounds how long a restarted node can serve outdated users.
+ * <p>
+ * It is enabled by the 'name.cache.file' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class MappedUserCache {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int MAGIC = 0x55534552; // "USER".
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_VERSION_OFFSET = 4;
+    private static final int STAMP_OFFSET = 8;
+    private static final int SLOTS_OFFSET = 16;
+    private static final int CAPACITY_OFFSET = 20;
+    private static final int POSITION_OFFSET = 24;
+    private static final int USED_ID_SLOTS_OFFSET = 28;
+    private static final int USED_NAME_SLOTS_OFFSET = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int AVERAGE_RECORD_SIZE = 160;
+    private static final int RECORD_HEADER_SIZE = 32;
+    private static final int RECORD_VERSION_OFFSET = 8;
+    private static final int RECORD_LOADED_OFFSET = 16;
+    private static final int RECORD_AGE_OFFSET = 24;
+    private static final int RECORD_CRC_OFFSET = 28;
+    private static final long NULL_VERSION = Long.MIN_VALUE;
+    private static final int NULL_AGE = Integer.MIN_VALUE;
+    private static final short NULL_STRING = -1;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long maxStaleness;
+    private final long stamp;
+    private final int slots;
+    private final int dataCapacity;
+    private final int idIndex;
+    private final int nameIndex;
+    private final int data;
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+    private final MappedByteBuffer buffer;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed; // Guarded by the write lock.
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a persistent user cache in the given file with room for the given amount of
+     * users. The file is created if it does not exist, and cleared if its format, schema stamp or
+     * size does not match.
+     * @param path The path of the file.
+     * @param maxSize The maximum amount of cached users.
+     * @param maxStaleness The maximum staleness of cached users in milliseconds.
+     * @param schema The description of the database schema, such as the URL and whether the users
+     * are versioned. The users in the file are only used when this is the same on startup.
+     * @throws DAOConfigurationException If the file cannot be mapped, or is in use by another
+     * process.
+     */
+    MappedUserCache(String path, int maxSize, long maxStaleness, String schema)
+        throws DAOConfigurationException
+    {
+        this.maxStaleness = maxStaleness;
+        this.stamp = FORMAT_VERSION * 31L + hash(schema);
+        this.slots = Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1;
+        this.dataCapacity = Math.max(1, maxSize) * AVERAGE_RECORD_SIZE;
+        this.idIndex = HEADER_SIZE;
+        this.nameIndex = idIndex + slots * SLOT_SIZE;
+        this.data = nameIndex + slots * SLOT_SIZE;
+
+        try {
+            this.file = new RandomAccessFile(new File(path), "rw");
+        } catch (IOException e) {
+            throw new DAOConfigurationException("Cache file '" + path + "' cannot be opened.", e);
+        }
+
+        try {
+            FileChannel channel = file.getChannel();
+            this.fileLock = tryLock(channel);
+            if (fileLock == null) {
+                throw new DAOConfigurationException(
+                    "Cache file '" + path + "' is in use by another process.");
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, data + dataCapacity);
+        } catch (IOException e) {
+            close(file);
+            throw new DAOConfigurationException("Cache file '" + path + "' cannot be mapped.", e);
+        } catch (DAOConfigurationException e) {
+            close(file);
+            throw e;
+        }
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC
+            || buffer.getInt(FORMAT_VERSION_OFFSET) != FORMAT_VERSION
+            || buffer.getLong(STAMP_OFFSET) != stamp
+            || buffer.getInt(SLOTS_OFFSET) != slots
+            || buffer.getInt(CAPACITY_OFFSET) != dataCapacity)
+        {
+            clear();
+        } else {
+            verify();
+        }
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the user with the given ID, or null if it is absent or too stale.
+     * @param id The ID of the user to be returned.
+     * @return The user with the given ID, or null if it is absent or too stale.
+     */
+    User get(Long id) {
+        if (id == null || id <= 0) {
+            return null;
+        }
+
+        lock.readLock().lock();
+
+        try {
+            int slot = closed ? -1 : findIdSlot(id);
+            return slot >= 0 ? decode(recordAt(slot)) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the user with the given username, or null if it is absent or too stale.
+     * @param username The username of the user to be returned.
+     * @return The user with the given username, or null if it is absent or too stale.
+     */
+    User getByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+
+        lock.readLock().lock();
+
+        try {
+            int slot = closed ? -1 : findNameSlot(username);
+            return slot >= 0 ? get(buffer.getLong(slot + 8)) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store the given user, replacing the one with the same ID, if any.
+     * @param user The user to be stored.
+     */
+    void put(User user) {
+        byte[] username = encode(user.getUsername());
+        byte[] password = encode(user.getPassword());
+        byte[] email = encode(user.getEmail());
+        int size = RECORD_HEADER_SIZE + length(username) + length(password) + length(email);
+        boolean storable = user.getId() != null && user.getId() > 0 && size <= dataCapacity
+            && fits(username) && fits(password) && fits(email);
+
+        lock.writeLock().lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            remove(user.getId());
+            remove(user.getUsername());
+
+            if (!storable) {
+                return;
+            }
+
+            int position = buffer.getInt(POSITION_OFFSET);
+            if (position + size > dataCapacity
+                || buffer.getInt(USED_ID_SLOTS_OFFSET) >= slots * 3 / 4
+                || buffer.getInt(USED_NAME_SLOTS_OFFSET) >= slots * 3 / 4)
+            {
+                clear();
+                position = 0;
+            }
+
+            int record = data + position;
+            buffer.putLong(record, user.getId());
+            buffer.putLong(record + RECORD_VERSION_OFFSET,
+                user.getVersion() != null ? user.getVersion() : NULL_VERSION);
+            buffer.putLong(record + RECORD_LOADED_OFFSET, System.currentTimeMillis());
+            buffer.putInt(record + RECORD_AGE_OFFSET,
+                user.getAge() != null ? user.getAge() : NULL_AGE);
+            int end = record + RECORD_HEADER_SIZE;
+            end = put(end, username);
+            end = put(end, password);
+            end = put(end, email);
+            buffer.putInt(record + RECORD_CRC_OFFSET, checksum(record, end));
+            buffer.putInt(POSITION_OFFSET, position + size);
+
+            insertId(user.getId(), position);
+            if (user.getUsername() != null) {
+                insertName(user.getUsername(), user.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the user with the given ID and the user with the given username, if any.
+     * @param id The ID of the user to be removed, may be null.
+     * @param username The username of the user to be removed, may be null.
+     */
+    void invalidate(Long id, String username) {
+        lock.writeLock().lock();
+
+        try {
+            if (!closed) {
+                remove(id);
+                remove(username);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the mapped buffer to the file and release the file. Subsequent lookups return null.
+     */
+    void close() {
+        lock.writeLock().lock();
+
+        try {
+            if (!closed) {
+                closed = true;
+                buffer.force();
+                close(file); // Releases the file lock. The mapping lives on until it is GC'ed.
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Clear the indexes and the data area and write a fresh header.
+     */
+    private void clear() {
+        for (int position = idIndex; position < data; position += 8) {
+            buffer.putLong(position, EMPTY);
+        }
+
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+        buffer.putLong(STAMP_OFFSET, stamp);
+        buffer.putInt(SLOTS_OFFSET, slots);
+        buffer.putInt(CAPACITY_OFFSET, dataCapacity);
+        buffer.putInt(POSITION_OFFSET, 0);
+        buffer.putInt(USED_ID_SLOTS_OFFSET, 0);
+        buffer.putInt(USED_NAME_SLOTS_OFFSET, 0);
+    }
+
+    /**
+     * Remove the users whose record is out of bounds or does not match its checksum, which can
+     * happen when the operating system crashed before all pages were written.
+     */
+    private void verify() {
+        int position = buffer.getInt(POSITION_OFFSET);
+
+        if (position < 0 || position > dataCapacity) {
+            clear();
+            return;
+        }
+
+        for (int slot = idIndex; slot < nameIndex; slot += SLOT_SIZE) {
+            long id = buffer.getLong(slot);
+            if (id == EMPTY || id == DELETED) {
+                continue;
+            }
+
+            long offset = buffer.getLong(slot + 8);
+            int record = data + (int) offset;
+            int end = offset >= 0 && offset + RECORD_HEADER_SIZE <= position
+                ? recordEnd(record, data + position) : -1;
+
+            if (end < 0 || buffer.getLong(record) != id
+                || buffer.getInt(record + RECORD_CRC_OFFSET) != checksum(record, end))
+            {
+                buffer.putLong(slot, DELETED);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the index slot of the given ID, or -1 if it is absent.
+     */
+    private int findIdSlot(long id) {
+        for (int i = index(mix(id)), probes = 0; probes < slots; probes++) {
+            int slot = idIndex + i * SLOT_SIZE;
+            long slotId = buffer.getLong(slot);
+
+            if (slotId == EMPTY) {
+                return -1;
+            } else if (slotId == id) {
+                return slot;
+            }
+
+            i = (i + 1) & (slots - 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the position of the index slot of the given username whose user still has that
+     * username, or -1 if it is absent.
+     */
+    private int findNameSlot(String username) {
+        long hash = hash(username);
+
+        for (int i = index(mix(hash)), probes = 0; probes < slots; probes++) {
+            int slot = nameIndex + i * SLOT_SIZE;
+            long id = buffer.getLong(slot + 8);
+
+            if (id == EMPTY) {
+                return -1;
+            } else if (id != DELETED && buffer.getLong(slot) == hash) {
+                int idSlot = findIdSlot(id);
+                if (idSlot >= 0 && usernameEquals(recordAt(idSlot), username)) {
+                    return slot;
+                }
+            }
+
+            i = (i + 1) & (slots - 1);
+        }
+
+        return -1;
+    }
+
+    private void insertId(long id, int position) {
+        int i = index(mix(id));
+
+        while (true) {
+            int slot = idIndex + i * SLOT_SIZE;
+            long slotId = buffer.getLong(slot);
+
+            if (slotId == EMPTY || slotId == DELETED) {
+                if (slotId == EMPTY) {
+                    increment(USED_ID_SLOTS_OFFSET);
+                }
+                buffer.putLong(slot + 8, position);
+                buffer.putLong(slot, id);
+                return;
+            }
+
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    private void insertName(String username, long id) {
+        long hash = hash(username);
+        int i = index(mix(hash));
+
+        while (true) {
+            int slot = nameIndex + i * SLOT_SIZE;
+            long slotId = buffer.getLong(slot + 8);
+
+            if (slotId == EMPTY || slotId == DELETED) {
+                if (slotId == EMPTY) {
+                    increment(USED_NAME_SLOTS_OFFSET);
+                }
+                buffer.putLong(slot, hash);
+                buffer.putLong(slot + 8, id);
+                return;
+            }
+
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    /**
+     * Remove the user with the given ID along with the index slot of its username.
+     */
+    private void remove(Long id) {
+        int slot = id != null && id > 0 ? findIdSlot(id) : -1;
+
+        if (slot >= 0) {
+            String username = decodeUsername(recordAt(slot));
+            if (username != null) {
+                int nameSlot = findNameSlot(username);
+                if (nameSlot >= 0) {
+                    buffer.putLong(nameSlot + 8, DELETED);
+                }
+            }
+            buffer.putLong(slot, DELETED);
+        }
+    }
+
+    /**
+     * Remove the user with the given username along with the index slot of its ID.
+     */
+    private void remove(String username) {
+        int nameSlot = username != null ? findNameSlot(username) : -1;
+
+        if (nameSlot >= 0) {
+            remove(buffer.getLong(nameSlot + 8));
+        }
+    }
+
+    private int recordAt(int idSlot) {
+        return data + (int) buffer.getLong(idSlot + 8);
+    }
+
+    /**
+     * Decode the user at the given record position by absolute reads, or return null if it is
+     * too stale.
+     */
+    private User decode(int record) {
+        if (System.currentTimeMillis() - buffer.getLong(record + RECORD_LOADED_OFFSET)
+            > maxStaleness)
+        {
+            return null;
+        }
+
+        int position = record + RECORD_HEADER_SIZE;
+        String username = decodeString(position);
+        position += length(buffer.getShort(position));
+        String password = decodeString(position);
+        position += length(buffer.getShort(position));
+        String email = decodeString(position);
+        long version = buffer.getLong(record + RECORD_VERSION_OFFSET);
+        int age = buffer.getInt(record + RECORD_AGE_OFFSET);
+
+        User user = new User(buffer.getLong(record), username, password, email,
+            age != NULL_AGE ? age : null);
+        user.setVersion(version != NULL_VERSION ? version : null);
+        return user;
+    }
+
+    private String decodeUsername(int record) {
+        return decodeString(record + RECORD_HEADER_SIZE);
+    }
+
+    private String decodeString(int position) {
+        short length = buffer.getShort(position);
+
+        if (length == NULL_STRING) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + 2 + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true if the username of the given record equals the given username, compared
+     * without decoding it for the usual ASCII usernames.
+     */
+    private boolean usernameEquals(int record, String username) {
+        int position = record + RECORD_HEADER_SIZE;
+        short length = buffer.getShort(position);
+
+        if (length != username.length()) {
+            return username.equals(decodeString(position)); // Not ASCII, or not equal anyway.
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + 2 + i) != username.charAt(i)) {
+                return username.equals(decodeString(position));
+            }
+        }
+
+        return true;
+    }
+
+    private int put(int position, byte[] value) {
+        if (value == null) {
+            buffer.putShort(position, NULL_STRING);
+            return position + 2;
+        }
+
+        buffer.putShort(position, (short) value.length);
+        for (int i = 0; i < value.length; i++) {
+            buffer.put(position + 2 + i, value[i]);
+        }
+
+        return position + 2 + value.length;
+    }
+
+    /**
+     * Returns the end position of the record at the given position, or -1 if it exceeds the given
+     * limit.
+     */
+    private int recordEnd(int record, int limit) {
+        int position = record + RECORD_HEADER_SIZE;
+
+        for (int i = 0; i < 3; i++) {
+            if (position + 2 > limit || buffer.getShort(position) < NULL_STRING) {
+                return -1;
+            }
+            position += length(buffer.getShort(position));
+        }
+
+        return position <= limit ? position : -1;
+    }
+
+    /**
+     * Returns the CRC32 of the record between the given positions, excluding the checksum itself.
+     */
+    private int checksum(int record, int end) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(record + RECORD_CRC_OFFSET).position(record);
+        crc.update(view);
+        view.limit(end).position(record + RECORD_HEADER_SIZE);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private void increment(int offset) {
+        buffer.putInt(offset, buffer.getInt(offset) + 1);
+    }
+
+    private int index(long hash) {
+        return (int) hash & (slots - 1);
+    }
+
+    /**
+     * Returns the given key with its bits mixed, so that sequential IDs do not cluster.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the given string.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static byte[] encode(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static boolean fits(byte[] value) {
+        return value == null || value.length <= Short.MAX_VALUE;
+    }
+
+    private static int length(byte[] value) {
+        return 2 + (value != null ? value.length : 0);
+    }
+
+    private static int length(short encodedLength) {
+        return 2 + Math.max(0, encodedLength);
+    }
+
+    /**
+     * Returns the lock of the given file channel, or null if it is locked by another process or by
+     * another cache in this process.
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Closing cache file failed: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package mydao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents an {@link InvalidationChannel} on top of UDP multicast. Multicast loopback
+ * is enabled, so that several nodes on the same machine, or even in the same JVM, receive each
+ * others invalidations. This makes it possible to test the channel on a single machine.
+ * <p>
+ * Published invalidations are not sent immediately. They are collected in a set, which coalesces
+ * duplicate invalidations, and flushed at a fixed interval in as few datagrams as possible. Each
+ * datagram carries the random ID of the sending node, so that a node ignores its own datagrams.
+ * <p>
+ * It is configured by the 'name.cache.invalidation' property as described in {@link DAOFactory}:
+ * <pre>
+ * javabase.jdbc.cache.invalidation = multicast://230.0.0.1:4446?interval=20&amp;interface=lo
+ * </pre>
+ * The interval is the flush interval in milliseconds and defaults to 20. The interface is the
+ * name of the network interface to use and defaults to the system default.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class MulticastInvalidationChannel implements InvalidationChannel {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int MAGIC = 0x55494e56; // "UINV"
+    private static final int MAX_DATAGRAM_SIZE = 1400; // Stay below the typical Ethernet MTU.
+    private static final int MAX_UDP_PAYLOAD = 65507;
+    private static final int HEADER_SIZE = 14; // Magic, node ID and count.
+    private static final int MAX_KEY_SIZE = 128; // So that any entry fits in a datagram.
+    private static final int FLAG_ID = 1;
+    private static final int FLAG_USERNAME = 2;
+    private static final int FLAG_EMAIL = 4;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long nodeId = UUID.randomUUID().getMostSignificantBits();
+    private final InetSocketAddress group;
+    private final MulticastSocket socket;
+    private final ScheduledExecutorService flusher;
+    private final Thread receiver;
+    private Set<Invalidation> pending = new LinkedHashSet<Invalidation>();
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a multicast invalidation channel on the given group address and port. It
+     * immediately starts receiving invalidations.
+     * @param groupAddress The multicast group address.
+     * @param port The UDP port.
+     * @param networkInterface The network interface to use, or null to use the system default.
+     * @param flushInterval The interval in milliseconds at which published invalidations are sent.
+     * @throws IOException If the multicast socket cannot be opened or the group cannot be joined.
+     */
+    public MulticastInvalidationChannel
+        (InetAddress groupAddress, int port, NetworkInterface networkInterface, long flushInterval)
+            throws IOException
+    {
+        group = new InetSocketAddress(groupAddress, port);
+        socket = new MulticastSocket(port);
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        socket.setTimeToLive(1);
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        socket.joinGroup(group, networkInterface);
+
+        ThreadFactory daemons = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MulticastInvalidationChannel-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        flusher = Executors.newSingleThreadScheduledExecutor(daemons);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "MulticastInvalidationChannel-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        synchronized (this) {
+            pending.add(invalidation);
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        socket.close();
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Send all pending invalidations in as few datagrams as possible. Any errors will be printed
+     * to the stderr; the lost invalidations are then covered by the maximum staleness of the cache.
+     */
+    private void flush() {
+        Set<Invalidation> invalidations;
+
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            invalidations = pending;
+            pending = new LinkedHashSet<Invalidation>();
+        }
+
+        try {
+            for (byte[] datagram : encode(invalidations)) {
+                socket.send(new DatagramPacket(datagram, datagram.length, group));
+            }
+        } catch (IOException e) {
+            System.err.println("Sending invalidations failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Receive datagrams until the channel is closed and pass the invalidations of the other nodes
+     * to the listener. Malformed datagrams are ignored.
+     */
+    private void receive() {
+        byte[] buffer = new byte[MAX_UDP_PAYLOAD];
+
+        while (!closed) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+            try {
+                socket.receive(packet);
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+                    packet.getData(), packet.getOffset(), packet.getLength()));
+                if (input.readInt() != MAGIC || input.readLong() == nodeId) {
+                    continue;
+                }
+                for (int count = input.readUnsignedShort(); count > 0; count--) {
+                    int flags = input.readUnsignedByte();
+                    Invalidation invalidation = new Invalidation(
+                        (flags & FLAG_ID) != 0 ? Long.valueOf(input.readLong()) : null,
+                        (flags & FLAG_USERNAME) != 0 ? input.readUTF() : null,
+                        (flags & FLAG_EMAIL) != 0 ? input.readUTF() : null);
+                    Listener listener = this.listener;
+                    if (listener != null) {
+                        try {
+                            listener.invalidated(invalidation);
+                        } catch (RuntimeException e) {
+                            // Must not kill the receiver, it would miss all next invalidations.
+                            System.err.println("Handling invalidation failed: " + e.getMessage());
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Receiving invalidations failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the given invalidations into one or more datagrams. An entry which does not fit in
+     * the current datagram anymore starts the next one, so that no datagram exceeds the maximum
+     * datagram size.
+     * @param invalidations The invalidations to be encoded.
+     * @return The datagrams holding the given invalidations.
+     * @throws IOException If encoding fails; not expected since it writes to memory only.
+     */
+    private List<byte[]> encode(Set<Invalidation> invalidations) throws IOException {
+        List<byte[]> datagrams = new ArrayList<byte[]>();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(MAX_DATAGRAM_SIZE);
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(entry);
+        int count = 0;
+
+        for (Invalidation invalidation : invalidations) {
+            String username = truncate(invalidation.getUsername());
+            String email = truncate(invalidation.getEmail());
+            int flags = (invalidation.getId() != null ? FLAG_ID : 0)
+                | (username != null ? FLAG_USERNAME : 0)
+                | (email != null ? FLAG_EMAIL : 0);
+            entry.reset();
+            output.writeByte(flags);
+            if (invalidation.getId() != null) {
+                output.writeLong(invalidation.getId());
+            }
+            if (username != null) {
+                output.writeUTF(username);
+            }
+            if (email != null) {
+                output.writeUTF(email);
+            }
+
+            boolean full = HEADER_SIZE + entries.size() + entry.size() > MAX_DATAGRAM_SIZE;
+            if (count > 0 && (full || count == 0xffff)) {
+                datagrams.add(datagram(count, entries));
+                entries.reset();
+                count = 0;
+            }
+
+            entry.writeTo(entries);
+            count++;
+        }
+
+        if (count > 0) {
+            datagrams.add(datagram(count, entries));
+        }
+
+        return datagrams;
+    }
+
+    /**
+     * Returns a datagram with the header followed by the given encoded entries.
+     */
+    private byte[] datagram(int count, ByteArrayOutputStream entries) throws IOException {
+        ByteArrayOutputStream datagram = new ByteArrayOutputStream(HEADER_SIZE + entries.size());
+        DataOutputStream output = new DataOutputStream(datagram);
+        output.writeInt(MAGIC);
+        output.writeLong(nodeId);
+        output.writeShort(count);
+        entries.writeTo(output);
+        return datagram.toByteArray();
+    }
+
+    /**
+     * Keys longer than the maximum key size cannot be in the database anyway, but they must not
+     * blow up the datagram either. An entry with two keys of the maximum key size takes at most
+     * 9 + 2 * (2 + 3 * 128) = 781 bytes, which fits in a datagram.
+     */
+    private static String truncate(String key) {
+        return key != null && key.length() > MAX_KEY_SIZE ? key.substring(0, MAX_KEY_SIZE) : key;
+    }
+
+}
\ No newline at end of file
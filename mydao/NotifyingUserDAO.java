@@ -0,0 +1,206 @@
+package mydao;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Flow;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents a decorator of another {@link UserDAO} which passes every successful write
+ * to the {@link UserDAOListener}s of the {@link DAOFactory}. Reads are passed to the decorated DAO
+ * as is. The listeners are looked up on every write, so listeners registered after obtaining the
+ * DAO are invoked as well.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class NotifyingUserDAO implements UserDAO {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private UserDAO userDAO;
+    private List<UserDAOListener> listeners;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a notifying User DAO for the given User DAO and listeners. Package private so that
+     * it can be constructed inside the DAO package only.
+     * @param userDAO The User DAO to be decorated.
+     * @param listeners The thread safe list of listeners, usually the one of the DAOFactory.
+     */
+    NotifyingUserDAO(UserDAO userDAO, List<UserDAOListener> listeners) {
+        this.userDAO = userDAO;
+        this.listeners = listeners;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public User find(Long id) throws DAOException {
+        return userDAO.find(id);
+    }
+
+    @Override
+    public User find(String username, String password) throws DAOException {
+        return userDAO.find(username, password);
+    }
+
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        return userDAO.findIfChanged(user);
+    }
+
+    @Override
+    public User findByName(String username) throws DAOException {
+        return userDAO.findByName(username);
+    }
+
+    @Override
+    public List<User> list() throws DAOException {
+        return userDAO.list();
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria) throws DAOException {
+        return userDAO.list(criteria);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        userDAO.scan(criteria, handler);
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return userDAO.listCompact(criteria);
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return userDAO.list(criteria, fields);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        userDAO.scan(criteria, fields, handler);
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return userDAO.listLazy(criteria, fields);
+    }
+
+    @Override
+    public Flow.Publisher<User> publish(UserCriteria criteria) {
+        return userDAO.publish(criteria);
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        userDAO.scan(handler);
+    }
+
+    @Override
+    public void parallelScan(int parallelism, UserHandler handler) throws DAOException {
+        userDAO.parallelScan(parallelism, handler);
+    }
+
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        userDAO.create(user);
+
+        for (UserDAOListener listener : listeners) {
+            listener.created(user);
+        }
+    }
+
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        userDAO.createAll(users);
+
+        for (User user : users) {
+            for (UserDAOListener listener : listeners) {
+                listener.created(user);
+            }
+        }
+    }
+
+    @Override
+    public void update(User user) throws IllegalArgumentException, DAOException {
+        userDAO.update(user);
+
+        for (UserDAOListener listener : listeners) {
+            listener.updated(user);
+        }
+    }
+
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        userDAO.updateAll(users);
+
+        for (User user : users) {
+            for (UserDAOListener listener : listeners) {
+                listener.updated(user);
+            }
+        }
+    }
+
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    @Override
+    public void delete(User user) throws DAOException {
+        Long id = user.getId();
+        userDAO.delete(user);
+
+        for (UserDAOListener listener : listeners) {
+            listener.deleted(id, user);
+        }
+    }
+
+    @Override
+    public boolean existUsername(String username) throws DAOException {
+        return userDAO.existUsername(username);
+    }
+
+    @Override
+    public boolean existEmail(String email) throws DAOException {
+        return userDAO.existEmail(email);
+    }
+
+    @Override
+    public long count() throws DAOException {
+        return userDAO.count();
+    }
+
+    @Override
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException {
+        return userDAO.countByAgeRange(minAge, maxAge);
+    }
+
+    @Override
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth)
+        throws IllegalArgumentException, DAOException
+    {
+        return userDAO.ageHistogram(bucketWidth);
+    }
+
+    @Override
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        return userDAO.emailDomainCounts();
+    }
+
+}
@@ -0,0 +1,28 @@
+package mydao;
+
+/**
+ * This class represents an exception which is thrown when an user cannot be updated or deleted
+ * because its version is not the current one anymore: another update or delete of the same user
+ * took place after the user was obtained. The caller should obtain the user again, reapply its
+ * changes if still applicable, and retry.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class OptimisticLockException extends DAOException {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final long serialVersionUID = 1L;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Constructs an OptimisticLockException with the given detail message.
+     * @param message The detail message of the OptimisticLockException.
+     */
+    public OptimisticLockException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,966 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents a {@link UserDAO} which spreads the users over the User DAOs of several
+ * shards, usually each in its own database, so that the write load is spread as well.
+ * <p>
+ * Every user lives in exactly one shard, which is determined by its ID: shard i of n (counting
+ * from 1) generates only the IDs i, i + n, i + 2n, etc, as configured in {@link DAOFactory}, so
+ * the shard of an ID is simply (ID - 1) mod n, without any lookup. New users are created in the
+ * shard determined by the hash of their username, which spreads them evenly.
+ * <p>
+ * A username or email address is first looked up in an in-process directory of the shards where
+ * they were last seen. On a miss, a username is looked up in the shard of its hash, where it
+ * usually lives, and otherwise in all shards at once, like an email address. The results are
+ * remembered in the directory, and directory entries which turn out to be stale are forgotten.
+ * <p>
+ * Lists, scans and aggregates query all shards in parallel and merge the results. Lists and scans
+ * are merged in the requested order while they stream in, so that paged criteria only fetch the
+ * first offset + limit users of each shard.
+ * <p>
+ * Note that the UNIQUE constraints on username and email address are enforced per shard only. A
+ * username is only guaranteed unique when it is created, since it is created in the shard of its
+ * hash; check {@link #existUsername(String)} and {@link #existEmail(String)} before renaming a
+ * user or changing the email address. Changing the amount of shards requires moving the users.
+ * <p>
+ * It is enabled by a 'name.url' property starting with 'sharded:' as described in
+ * {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class ShardedUserDAO implements UserDAO {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int DIRECTORY_MAX_SIZE = 100000;
+    private static final int MERGE_BUFFER_SIZE = 1024;
+    private static final long MERGE_POLL_MILLIS = 100;
+    private static final Object END = new Object();
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final List<UserDAO> shards;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Integer> usernameDirectory =
+        new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Integer> emailDirectory =
+        new ConcurrentHashMap<String, Integer>();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a sharded User DAO for the given User DAOs of the shards. Package private so that
+     * it can be constructed inside the DAO package only.
+     * @param shards The User DAOs of the shards, in the order of their ID offsets.
+     * @param executor The executor to query the shards in parallel with.
+     */
+    ShardedUserDAO(List<UserDAO> shards, ExecutorService executor) {
+        this.shards = new ArrayList<UserDAO>(shards);
+        this.executor = executor;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public User find(Long id) throws DAOException {
+        return id != null ? shards.get(shardOf(id)).find(id) : null;
+    }
+
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        return shards.get(shardOf(user.getId())).findIfChanged(user);
+    }
+
+    @Override
+    public User find(String username, String password) throws DAOException {
+        // Looked up by username only, so that a wrong password does not look like a stale entry.
+        User user = findByName(username);
+        return user != null && user.getPassword().equals(hashMD5(password)) ? user : null;
+    }
+
+    @Override
+    public User findByName(final String username) throws DAOException {
+        if (username == null) {
+            return null;
+        }
+
+        Integer cached = usernameDirectory.get(username);
+        if (cached != null) {
+            User user = shards.get(cached).findByName(username);
+            if (user != null) {
+                return user;
+            }
+            usernameDirectory.remove(username, cached); // Renamed or deleted in the meantime.
+        }
+
+        int hashed = hashShardOf(username);
+        User user = shards.get(hashed).findByName(username);
+
+        if (user == null) {
+            for (User found : scatter(new ShardCall<User>() {
+                public User call(UserDAO shard) throws DAOException {
+                    return shard.findByName(username);
+                }
+            })) {
+                if (found != null) {
+                    user = found;
+                    break;
+                }
+            }
+        }
+
+        if (user != null) {
+            remember(usernameDirectory, username, shardOf(user.getId()));
+        }
+
+        return user;
+    }
+
+    @Override
+    public List<User> list() throws DAOException {
+        return list(new UserCriteria());
+    }
+
+    /**
+     * Returns a list of the users of all shards matching the given criteria, in the order of the
+     * given criteria. Unlike {@link #scan(UserCriteria, UserHandler)}, the shards are listed as a
+     * whole, so that the users keep their version.
+     */
+    @Override
+    public List<User> list(UserCriteria criteria) throws DAOException {
+        // Every shard must deliver the users up to the requested page, the merge skips the offset.
+        long limit = criteria.getLimit() >= 0 ? criteria.getLimit() : -1;
+        long offset = criteria.getOffset();
+        final UserCriteria shardCriteria = criteria.withPaging(
+            limit >= 0 ? limit + offset : -1, 0);
+
+        List<List<User>> shardUsers = scatter(new ShardCall<List<User>>() {
+            public List<User> call(UserDAO shard) throws DAOException {
+                return shard.list(shardCriteria);
+            }
+        });
+
+        List<User> merged = new ArrayList<User>();
+        for (List<User> users : shardUsers) {
+            merged.addAll(users);
+        }
+        Collections.sort(merged, criteria.getComparator());
+
+        int from = (int) Math.min(offset, merged.size());
+        int to = limit >= 0 ? (int) Math.min(from + limit, merged.size()) : merged.size();
+        return new ArrayList<User>(merged.subList(from, to));
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        scan(new UserCriteria(), handler);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        scan(criteria, EnumSet.allOf(UserField.class), handler);
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return DAOUtil.listCompact(this, criteria);
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return DAOUtil.list(this, criteria, fields);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        // Every shard must deliver the users up to the requested page, the merge skips the offset.
+        long limit = criteria.getLimit() >= 0 ? criteria.getLimit() : -1;
+        long offset = criteria.getOffset();
+        UserCriteria shardCriteria = criteria.withPaging(
+            limit >= 0 ? limit + offset : -1, 0);
+
+        // The merge compares the users by the order column, so it must be selected anyway.
+        Set<UserField> shardFields = EnumSet.noneOf(UserField.class);
+        shardFields.addAll(fields);
+        if (criteria.getOrderField() != null) {
+            shardFields.add(criteria.getOrderField());
+        }
+
+        merge(shardCriteria, shardFields, criteria.getComparator(), offset, limit,
+            project(fields, handler));
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return LazyUser.list(this, criteria, fields);
+    }
+
+    /**
+     * Returns a publisher of the users of all shards matching the given criteria. Every
+     * subscription subscribes to the publishers of all shards and merges their users in the order
+     * of the criteria, like {@link #scan(UserCriteria, UserHandler)}, but in the requesting thread
+     * and only as far as requested. Every shard is requested as many users as are outstanding, up
+     * to 1024 at once, whenever its buffer is empty.
+     */
+    @Override
+    public Flow.Publisher<User> publish(UserCriteria criteria) {
+        // Every shard must deliver the users up to the requested page, the merge skips the offset.
+        final long limit = criteria.getLimit() >= 0 ? criteria.getLimit() : -1;
+        final long offset = criteria.getOffset();
+        final UserCriteria shardCriteria = criteria.withPaging(
+            limit >= 0 ? limit + offset : -1, 0);
+        final Comparator<User> order = criteria.getComparator();
+
+        return new UserPublisher() {
+            @Override
+            Cursor open(long demand) throws DAOException {
+                return new MergeCursor(shardCriteria, order, offset, limit);
+            }
+        };
+    }
+
+    @Override
+    public void parallelScan(int parallelism, final UserHandler handler) throws DAOException {
+        final int shardParallelism = Math.max(1, parallelism / shards.size());
+
+        scatter(new ShardCall<Void>() {
+            public Void call(UserDAO shard) throws DAOException {
+                shard.parallelScan(shardParallelism, handler);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() != null) {
+            throw new IllegalArgumentException("User is already created, the user ID is not null.");
+        }
+
+        int shard = placementOf(user);
+        shards.get(shard).create(user);
+        checkPlacement(Collections.singletonList(user));
+        remember(user, shard);
+    }
+
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        final Map<UserDAO, List<User>> usersByShard = new IdentityHashMap<UserDAO, List<User>>();
+
+        for (User user : users) {
+            if (user.getId() != null) {
+                throw new IllegalArgumentException(
+                    "User is already created, the user ID is not null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+            UserDAO shard = shards.get(placementOf(user));
+            if (!usersByShard.containsKey(shard)) {
+                usersByShard.put(shard, new ArrayList<User>());
+            }
+            usersByShard.get(shard).add(user);
+        }
+
+        try {
+            scatter(new ShardCall<Void>() {
+                public Void call(UserDAO shard) throws DAOException {
+                    List<User> shardUsers = usersByShard.get(shard);
+                    if (shardUsers != null) {
+                        shard.createAll(shardUsers);
+                    }
+                    return null;
+                }
+            });
+        } catch (DAOException e) {
+            // Every shard has its own transaction, so undo the shards which did succeed.
+            deleteCreated(users);
+            throw e;
+        }
+
+        checkPlacement(users);
+        for (User user : users) {
+            remember(user, shardOf(user.getId()));
+        }
+    }
+
+    @Override
+    public void update(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        int shard = shardOf(user.getId());
+        shards.get(shard).update(user);
+        remember(user, shard);
+    }
+
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        final Map<UserDAO, List<User>> usersByShard = new IdentityHashMap<UserDAO, List<User>>();
+
+        for (User user : users) {
+            if (user.getId() == null) {
+                throw new IllegalArgumentException(
+                    "User is not created yet, the user ID is null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+            UserDAO shard = shards.get(shardOf(user.getId()));
+            if (!usersByShard.containsKey(shard)) {
+                usersByShard.put(shard, new ArrayList<User>());
+            }
+            usersByShard.get(shard).add(user);
+        }
+
+        // Every shard has its own transaction, so this is only all or none per shard.
+        scatter(new ShardCall<Void>() {
+            public Void call(UserDAO shard) throws DAOException {
+                List<User> shardUsers = usersByShard.get(shard);
+                if (shardUsers != null) {
+                    shard.updateAll(shardUsers);
+                }
+                return null;
+            }
+        });
+
+        for (User user : users) {
+            remember(user, shardOf(user.getId()));
+        }
+    }
+
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    @Override
+    public void delete(User user) throws DAOException {
+        if (user.getId() == null) {
+            throw new DAOException("Deleting user failed, no rows affected.");
+        }
+
+        int shard = shardOf(user.getId());
+        shards.get(shard).delete(user);
+        forget(usernameDirectory, user.getUsername(), shard);
+        forget(emailDirectory, user.getEmail(), shard);
+    }
+
+    @Override
+    public boolean existUsername(String username) throws DAOException {
+        return findByName(username) != null;
+    }
+
+    @Override
+    public boolean existEmail(final String email) throws DAOException {
+        if (email == null) {
+            return false;
+        }
+
+        Integer cached = emailDirectory.get(email);
+        if (cached != null) {
+            if (shards.get(cached).existEmail(email)) {
+                return true;
+            }
+            emailDirectory.remove(email, cached); // Changed or deleted in the meantime.
+        }
+
+        List<Boolean> exists = scatter(new ShardCall<Boolean>() {
+            public Boolean call(UserDAO shard) throws DAOException {
+                return shard.existEmail(email);
+            }
+        });
+
+        int shard = exists.indexOf(Boolean.TRUE);
+        if (shard >= 0) {
+            remember(emailDirectory, email, shard);
+        }
+
+        return shard >= 0;
+    }
+
+    @Override
+    public long count() throws DAOException {
+        long count = 0;
+
+        for (Long shardCount : scatter(new ShardCall<Long>() {
+            public Long call(UserDAO shard) throws DAOException {
+                return shard.count();
+            }
+        })) {
+            count += shardCount;
+        }
+
+        return count;
+    }
+
+    @Override
+    public long countByAgeRange(final int minAge, final int maxAge) throws DAOException {
+        long count = 0;
+
+        for (Long shardCount : scatter(new ShardCall<Long>() {
+            public Long call(UserDAO shard) throws DAOException {
+                return shard.countByAgeRange(minAge, maxAge);
+            }
+        })) {
+            count += shardCount;
+        }
+
+        return count;
+    }
+
+    @Override
+    public SortedMap<Integer, Long> ageHistogram(final int bucketWidth)
+        throws IllegalArgumentException, DAOException
+    {
+        if (bucketWidth < 1) {
+            throw new IllegalArgumentException("Bucket width must be at least 1.");
+        }
+
+        SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+
+        for (SortedMap<Integer, Long> shardHistogram : scatter(
+            new ShardCall<SortedMap<Integer, Long>>()
+        {
+            public SortedMap<Integer, Long> call(UserDAO shard) throws DAOException {
+                return shard.ageHistogram(bucketWidth);
+            }
+        })) {
+            add(histogram, shardHistogram);
+        }
+
+        return Collections.unmodifiableSortedMap(histogram);
+    }
+
+    @Override
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        Map<String, Long> counts = new HashMap<String, Long>();
+
+        for (Map<String, Long> shardCounts : scatter(new ShardCall<Map<String, Long>>() {
+            public Map<String, Long> call(UserDAO shard) throws DAOException {
+                return shard.emailDomainCounts();
+            }
+        })) {
+            add(counts, shardCounts);
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+            counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                return second.getValue().compareTo(first.getValue());
+            }
+        });
+
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+
+        return Collections.unmodifiableMap(sorted);
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the shard which holds the given user ID.
+     */
+    private int shardOf(long id) {
+        return (int) Math.floorMod(id - 1, (long) shards.size());
+    }
+
+    /**
+     * Returns the index of the shard in which a user with the given username is created.
+     */
+    private int hashShardOf(String username) {
+        return Math.floorMod(username.hashCode(), shards.size());
+    }
+
+    /**
+     * Returns the index of the shard in which the given new user is to be created.
+     */
+    private int placementOf(User user) {
+        return user.getUsername() != null ? hashShardOf(user.getUsername()) : 0;
+    }
+
+    /**
+     * Check that the given created users are created in the shard which their ID belongs to.
+     * @throws DAOConfigurationException If a shard generated IDs of another shard, after deleting
+     * the given users again.
+     */
+    private void checkPlacement(List<User> users) throws DAOException {
+        for (User user : users) {
+            int shard = placementOf(user);
+            long id = user.getId();
+
+            if (shardOf(id) != shard) {
+                deleteCreated(users);
+                throw new DAOConfigurationException("Shard " + (shard + 1) + " generated ID " + id
+                    + " which belongs to shard " + (shardOf(id) + 1) + ", check its auto"
+                    + " increment offset and increment.");
+            }
+        }
+    }
+
+    /**
+     * Delete those of the given users which have an ID, from the shard in which they are created.
+     */
+    private void deleteCreated(List<User> users) {
+        for (User user : users) {
+            if (user.getId() != null) {
+                try {
+                    shards.get(placementOf(user)).delete(user);
+                } catch (DAOException e) {
+                    System.err.println("Deleting user " + user.getId() + " failed: "
+                        + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember the username and email address of the given user in the given shard.
+     */
+    private void remember(User user, int shard) {
+        remember(usernameDirectory, user.getUsername(), shard);
+        remember(emailDirectory, user.getEmail(), shard);
+    }
+
+    /**
+     * Remember the given key in the given shard. The directory is simply cleared when it is full,
+     * since it is only a shortcut.
+     */
+    private static void remember(ConcurrentMap<String, Integer> directory, String key, int shard) {
+        if (key != null) {
+            if (directory.size() >= DIRECTORY_MAX_SIZE) {
+                directory.clear();
+            }
+            directory.put(key, shard);
+        }
+    }
+
+    private static void forget(ConcurrentMap<String, Integer> directory, String key, int shard) {
+        if (key != null) {
+            directory.remove(key, shard);
+        }
+    }
+
+    /**
+     * Invoke the given call on all shards in parallel and return the results in shard order.
+     * @param call The call to invoke on every shard.
+     * @return The results of the call in shard order.
+     * @throws DAOException If the call fails on any shard.
+     */
+    private <T> List<T> scatter(final ShardCall<T> call) throws DAOException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+
+        for (final UserDAO shard : shards) {
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() throws DAOException {
+                    return call.call(shard);
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>();
+
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DAOException("Interrupted while waiting for the shards.", e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Scan all shards in parallel with the given criteria and pass the users to the given handler
+     * in the given order, which must be the order of the criteria. Every shard is scanned into a
+     * bounded buffer, and the handler is invoked in the calling thread with the smallest head of
+     * all buffers, so only a few users per shard are held in memory.
+     * @param criteria The criteria to scan every shard with.
+     * @param fields The fields to scan every shard with, which must include the order column.
+     * @param order The order of the criteria.
+     * @param offset The amount of merged users to skip.
+     * @param limit The maximum amount of merged users to pass to the handler, or -1 if unlimited.
+     * @param handler The handler to pass the column values of every merged user to.
+     * @throws DAOException If the scan fails on any shard.
+     */
+    private void merge(final UserCriteria criteria, final Set<UserField> fields,
+        final Comparator<User> order, long offset, long limit, UserHandler handler)
+        throws DAOException
+    {
+        final AtomicBoolean stopped = new AtomicBoolean();
+        List<BlockingQueue<Object>> buffers = new ArrayList<BlockingQueue<Object>>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (final UserDAO shard : shards) {
+            final BlockingQueue<Object> buffer = new ArrayBlockingQueue<Object>(MERGE_BUFFER_SIZE);
+            buffers.add(buffer);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        shard.scan(criteria, fields, new UserHandler() {
+                            public void handle
+                                (long id, String username, String password, String email,
+                                    Integer age)
+                            {
+                                offer(buffer, new User(id, username, password, email, age),
+                                    stopped);
+                            }
+                        });
+                        offer(buffer, END, stopped);
+                    } catch (CancellationException e) {
+                        // Merge is stopped, nobody is interested anymore.
+                    } catch (Throwable e) {
+                        offer(buffer, e, stopped);
+                    }
+                }
+            }));
+        }
+
+        try {
+            PriorityQueue<Head> heads = new PriorityQueue<Head>(shards.size(),
+                new Comparator<Head>() {
+                    public int compare(Head first, Head second) {
+                        return order.compare(first.user, second.user);
+                    }
+                });
+
+            for (BlockingQueue<Object> buffer : buffers) {
+                Head head = next(buffer);
+                if (head != null) {
+                    heads.add(head);
+                }
+            }
+
+            long remaining = limit >= 0 ? limit : Long.MAX_VALUE;
+
+            while (!heads.isEmpty() && remaining > 0) {
+                Head head = heads.poll();
+                User user = head.user;
+
+                if (offset > 0) {
+                    offset--;
+                } else {
+                    handler.handle(user.getId(), user.getUsername(), user.getPassword(),
+                        user.getEmail(), user.getAge());
+                    remaining--;
+                }
+
+                head = next(head.buffer);
+                if (head != null) {
+                    heads.add(head);
+                }
+            }
+        } finally {
+            stopped.set(true);
+            awaitQuietly(futures);
+        }
+    }
+
+    /**
+     * Returns the next user in the given buffer as head, or null if the buffer is at its end.
+     */
+    private static Head next(BlockingQueue<Object> buffer) throws DAOException {
+        Object item;
+
+        try {
+            item = buffer.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DAOException("Interrupted while waiting for the shards.", e);
+        }
+
+        if (item == END) {
+            return null;
+        } else if (item instanceof Throwable) {
+            throw rethrow((Throwable) item);
+        }
+
+        return new Head((User) item, buffer);
+    }
+
+    /**
+     * Offer the given item to the given buffer, waiting for space until the merge is stopped.
+     * @throws CancellationException If the merge is stopped or the thread is interrupted.
+     */
+    private static void offer(BlockingQueue<Object> buffer, Object item, AtomicBoolean stopped) {
+        try {
+            while (!buffer.offer(item, MERGE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped.get()) {
+                    throw new CancellationException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Wait until the given futures are done, so that the shards have released their connections.
+     */
+    private static void awaitQuietly(List<Future<?>> futures) {
+        boolean interrupted = false;
+
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break; // Already passed through the buffer.
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the given failure of a shard as DAOException, or throw it if it is unchecked.
+     */
+    private static DAOException rethrow(Throwable failure) {
+        if (failure instanceof DAOException) {
+            return (DAOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            return new DAOException(failure);
+        }
+    }
+
+    private static <K> void add(Map<K, Long> totals, Map<K, Long> counts) {
+        for (Map.Entry<K, Long> entry : counts.entrySet()) {
+            Long total = totals.get(entry.getKey());
+            totals.put(entry.getKey(), total != null ? total + entry.getValue() : entry.getValue());
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * A call to be invoked on the User DAO of a shard.
+     */
+    private interface ShardCall<T> {
+        T call(UserDAO shard) throws DAOException;
+    }
+
+    /**
+     * The cursor of a subscription of {@link ShardedUserDAO#publish(UserCriteria)}, which merges
+     * the users of the subscriptions to the publishers of all shards.
+     */
+    private final class MergeCursor implements UserPublisher.Cursor {
+        private final List<ShardSubscriber> subscribers = new ArrayList<ShardSubscriber>();
+        private final PriorityQueue<ShardSubscriber> heads;
+        private long offset;
+        private long remaining;
+        private boolean started;
+
+        private MergeCursor(UserCriteria criteria, final Comparator<User> order, long offset,
+            long limit)
+        {
+            this.offset = offset;
+            this.remaining = limit >= 0 ? limit : Long.MAX_VALUE;
+            this.heads = new PriorityQueue<ShardSubscriber>(shards.size(),
+                new Comparator<ShardSubscriber>() {
+                    public int compare(ShardSubscriber first, ShardSubscriber second) {
+                        return order.compare(first.head, second.head);
+                    }
+                });
+
+            for (UserDAO shard : shards) {
+                ShardSubscriber subscriber = new ShardSubscriber();
+                subscribers.add(subscriber);
+                shard.publish(criteria).subscribe(subscriber);
+            }
+        }
+
+        @Override
+        public User next(long demand) throws DAOException {
+            if (!started) {
+                started = true;
+                for (ShardSubscriber subscriber : subscribers) {
+                    advance(subscriber, demand);
+                }
+            }
+
+            while (offset > 0 && !heads.isEmpty()) {
+                advance(heads.poll(), demand);
+                offset--;
+            }
+
+            if (remaining == 0 || heads.isEmpty()) {
+                return null;
+            }
+
+            ShardSubscriber subscriber = heads.poll();
+            User user = subscriber.head;
+            advance(subscriber, demand);
+            remaining--;
+            return user;
+        }
+
+        @Override
+        public void close() {
+            for (ShardSubscriber subscriber : subscribers) {
+                subscriber.cancel();
+            }
+        }
+
+        private void advance(ShardSubscriber subscriber, long demand) throws DAOException {
+            subscriber.head = subscriber.next(demand);
+            if (subscriber.head != null) {
+                heads.add(subscriber);
+            }
+        }
+    }
+
+    /**
+     * The subscriber to the publisher of a shard, which buffers the requested users until the
+     * merge takes them. It only requests more users when its buffer is empty, so the buffer never
+     * holds more than 1024 users.
+     */
+    private static final class ShardSubscriber implements Flow.Subscriber<User> {
+        private final BlockingQueue<Object> buffer = new LinkedBlockingQueue<Object>();
+        private volatile Flow.Subscription subscription;
+        private long requested;
+        private boolean done;
+        private User head;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(User user) {
+            buffer.add(user);
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            buffer.add(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            buffer.add(END);
+        }
+
+        /**
+         * Returns the next user of the shard, or null if the shard is at its end. Waits for the
+         * shard if its publisher delivers asynchronously.
+         */
+        private User next(long demand) throws DAOException {
+            if (done) {
+                return null;
+            }
+
+            if (requested == 0) {
+                requested = Math.min(demand, MERGE_BUFFER_SIZE);
+                subscription.request(requested);
+            }
+
+            Object item;
+
+            try {
+                item = buffer.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DAOException("Interrupted while waiting for the shards.", e);
+            }
+
+            if (item == END) {
+                done = true;
+                return null;
+            } else if (item instanceof Throwable) {
+                done = true;
+                throw rethrow((Throwable) item);
+            }
+
+            requested--;
+            return (User) item;
+        }
+
+        private void cancel() {
+            if (!done && subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * The smallest user of a merge buffer which is not passed to the handler yet.
+     */
+    private static final class Head {
+        private final User user;
+        private final BlockingQueue<Object> buffer;
+
+        private Head(User user, BlockingQueue<Object> buffer) {
+            this.user = user;
+            this.buffer = buffer;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package mydao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class represents a coalescer of concurrent identical queries. The first caller of a key
+ * executes the query, and the callers of the same key which arrive while it is in flight wait for
+ * it and receive the same result, or the same exception, instead of executing the query again. As
+ * soon as the query is finished, the next caller of the key executes it anew, so nothing is cached
+ * here. There is no lock other than the one of the concurrent map bucket of the key.
+ * <p>
+ * Results are shared by all callers of the key, so the callers must copy mutable results before
+ * handing them out.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class SingleFlight<K, V> {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Execute the given query, or join the query of the given key which is already in flight.
+     * @param key The key of the query, which must identify its result.
+     * @param query The query to be executed if none of the given key is in flight.
+     * @return The result of the query.
+     * @throws DAOException If the query fails, or if the current thread is interrupted while
+     * waiting for the query in flight.
+     */
+    V execute(K key, Query<V> query) throws DAOException {
+        Flight<V> flight = new Flight<V>();
+        Flight<V> inFlight = flights.putIfAbsent(key, flight);
+
+        if (inFlight != null) {
+            return inFlight.await();
+        }
+
+        try {
+            V result = query.execute();
+            flight.land(result, null);
+            return result;
+        } catch (DAOException e) {
+            flight.land(null, e);
+            throw e;
+        } catch (RuntimeException e) {
+            flight.land(null, e);
+            throw e;
+        } catch (Error e) {
+            flight.land(null, e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Returns the amount of queries in flight.
+     * @return The amount of queries in flight.
+     */
+    int getInFlight() {
+        return flights.size();
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * A query whose concurrent identical executions are to be coalesced.
+     */
+    interface Query<V> {
+        V execute() throws DAOException;
+    }
+
+    /**
+     * A query in flight, on which the joined callers wait for the result.
+     */
+    private static final class Flight<V> {
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private V result;
+        private Throwable failure;
+
+        private void land(V result, Throwable failure) {
+            this.result = result;
+            this.failure = failure;
+            landed.countDown(); // Publishes the fields to the waiters.
+        }
+
+        private V await() throws DAOException {
+            try {
+                landed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DAOException("Interrupted while waiting for the query in flight.", e);
+            }
+
+            if (failure instanceof DAOException) {
+                throw (DAOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+
+            return result;
+        }
+    }
+
+}
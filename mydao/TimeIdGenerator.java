@@ -0,0 +1,101 @@
+package mydao;
+
+/**
+ * This class represents an {@link IdGenerator} which composes 63-bit IDs of the current time, the
+ * node ID and a sequence number, without any database round trip. Each ID consists of 41 bits of
+ * milliseconds since 2020-01-01 UTC, which lasts until the year 2089, 10 bits of node ID and 12
+ * bits of sequence number. IDs are therefore unique as long as every application node has its own
+ * node ID, and they are roughly ordered by creation time across all nodes.
+ * <p>
+ * When the clock goes backwards, the generator continues from the last used millisecond until the
+ * clock has caught up, so that IDs are never reused. When the sequence numbers of a millisecond are
+ * exhausted, it waits for the next millisecond.
+ * <p>
+ * Only IDs matching the 'name.autoincrement.offset' and 'name.autoincrement.increment' properties
+ * as described in {@link DAOFactory} are generated, so that it also works for the shards of a
+ * sharded DAOFactory. Every increment costs a factor of sequence numbers per millisecond.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class TimeIdGenerator implements IdGenerator {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final long EPOCH = 1577836800000L; // 2020-01-01T00:00:00Z.
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long node;
+    private final long offset;
+    private final long increment;
+    private long lastMillis = -1;
+    private long sequence;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a time based ID generator for the given node ID. Package private so that it can be
+     * constructed inside the DAO package only.
+     * @param node The node ID, unique per application node, between 0 and 1023.
+     * @param offset Only generate IDs which are equal to the offset modulo the increment.
+     * @param increment Only generate IDs which are equal to the offset modulo the increment.
+     * @throws DAOConfigurationException If the node ID is out of range, or if the increment is
+     * larger than the amount of sequence numbers per millisecond.
+     */
+    TimeIdGenerator(long node, long offset, long increment) throws DAOConfigurationException {
+        if (node < 0 || node > MAX_NODE) {
+            throw new DAOConfigurationException("Node ID must be between 0 and " + MAX_NODE + ".");
+        }
+        if (increment < 1 || increment > MAX_SEQUENCE) {
+            throw new DAOConfigurationException(
+                "Increment must be between 1 and " + MAX_SEQUENCE + ".");
+        }
+
+        this.node = node;
+        this.offset = offset;
+        this.increment = increment;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public synchronized long nextId() {
+        long millis = Math.max(System.currentTimeMillis(), lastMillis);
+
+        if (millis == lastMillis) {
+            sequence += increment;
+            if (sequence > MAX_SEQUENCE) {
+                millis = awaitNextMillis();
+            }
+        }
+
+        if (millis != lastMillis) {
+            lastMillis = millis;
+            sequence = Math.floorMod(offset - base(millis), increment);
+        }
+
+        return base(millis) + sequence;
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private long base(long millis) {
+        return ((millis - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS);
+    }
+
+    private long awaitNextMillis() {
+        long millis;
+
+        while ((millis = System.currentTimeMillis()) <= lastMillis) {
+            Thread.yield();
+        }
+
+        return millis;
+    }
+
+}
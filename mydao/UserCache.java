@@ -0,0 +1,360 @@
+package mydao;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mymodel.User;
+
+/**
+ * This class represents the in-process cache of users behind {@link CachedUserDAO}. Users are
+ * cached by ID, and can also be looked up by username and email address. The cache never returns
+ * users which were loaded longer ago than the maximum staleness, so that the maximum staleness
+ * bounds how long a node can serve outdated users when invalidations of other nodes get lost.
+ * <p>
+ * Invalidations of local writes are applied immediately and are published on the optional
+ * {@link InvalidationChannel}, whose received invalidations are applied the same way. Every
+ * invalidation bumps a generation counter. Callers read the generation before loading a user from
+ * the database and pass it to {@link #put(User, long)}, so that a load which raced with an
+ * invalidation never ends up in the cache.
+ * <p>
+ * An optional {@link MappedUserCache} serves as persistent second tier. Users are cached in both
+ * tiers and invalidated in both tiers. A user which is only found in the second tier, such as
+ * after a restart, is promoted to the first tier and then cached for the maximum staleness as
+ * usual, so the staleness of such a user is bounded by the sum of the maximum staleness of both.
+ * <p>
+ * Expired users which have a version are kept until they are invalidated, replaced or evicted, so
+ * that {@link CachedUserDAO} can revalidate them by {@link UserDAO#findIfChanged(User)} instead of
+ * loading them anew. They are not looked up in the second tier meanwhile, since its copy would
+ * be promoted without revalidation.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+final class UserCache implements InvalidationChannel.Listener {
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final long maxStaleness;
+    private final int maxSize;
+    private final InvalidationChannel channel;
+    private final MappedUserCache secondTier;
+    private final ConcurrentMap<Long, Entry> entriesById = new ConcurrentHashMap<Long, Entry>();
+    private final ConcurrentMap<String, Long> idsByUsername = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, Long> idsByEmail = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong generation = new AtomicLong();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an user cache with the given maximum staleness and size, which publishes and
+     * receives invalidations on the given channel.
+     * @param maxStaleness The maximum staleness of cached users in milliseconds.
+     * @param maxSize The maximum amount of cached users.
+     * @param channel The invalidation channel, or null if this is the only node.
+     */
+    UserCache(long maxStaleness, int maxSize, InvalidationChannel channel) {
+        this(maxStaleness, maxSize, channel, null);
+    }
+
+    /**
+     * Construct an user cache with the given maximum staleness and size and the given second
+     * tier, which publishes and receives invalidations on the given channel.
+     * @param maxStaleness The maximum staleness of cached users in milliseconds.
+     * @param maxSize The maximum amount of cached users.
+     * @param channel The invalidation channel, or null if this is the only node.
+     * @param secondTier The persistent second tier, or null if there is none.
+     */
+    UserCache(long maxStaleness, int maxSize, InvalidationChannel channel,
+        MappedUserCache secondTier)
+    {
+        this.maxStaleness = TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+        this.maxSize = maxSize;
+        this.channel = channel;
+        this.secondTier = secondTier;
+
+        if (channel != null) {
+            channel.setListener(this);
+        }
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the current invalidation generation. Read it before loading the user to be cached.
+     * @return The current invalidation generation.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Returns a copy of the cached user with the given ID, or null if it is absent or too stale.
+     * @param id The ID of the user to be returned.
+     * @return A copy of the cached user with the given ID, or null if it is absent or too stale.
+     */
+    User get(Long id) {
+        Entry entry = id != null ? entriesById.get(id) : null;
+
+        if (entry != null && entry.isExpired()) {
+            if (entry.user.getVersion() != null) {
+                // Not from the second tier, it is to be revalidated by the caller instead.
+                return null;
+            }
+            remove(id, entry);
+            entry = null;
+        }
+
+        if (entry != null) {
+            return copy(entry.user);
+        } else if (secondTier != null && id != null) {
+            long generation = this.generation.get();
+            return promote(secondTier.get(id), generation);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of the cached user with the given username, or null if it is absent or too
+     * stale.
+     * @param username The username of the user to be returned.
+     * @return A copy of the cached user with the given username, or null if absent or too stale.
+     */
+    User getByUsername(String username) {
+        User user = get(username != null ? idsByUsername.get(username) : null);
+
+        if (user == null && secondTier != null && username != null
+            && getExpiredByUsername(username) == null)
+        {
+            long generation = this.generation.get();
+            user = promote(secondTier.getByUsername(username), generation);
+        }
+
+        return user != null && username.equals(user.getUsername()) ? user : null;
+    }
+
+    /**
+     * Returns a copy of the expired cached user with the given ID, if it has a version to
+     * revalidate it with, otherwise null.
+     * @param id The ID of the user to be returned.
+     * @return A copy of the expired cached user with the given ID, or null if it is absent, not
+     * expired or has no version.
+     */
+    User getExpired(Long id) {
+        Entry entry = id != null ? entriesById.get(id) : null;
+        return entry != null && entry.isExpired() && entry.user.getVersion() != null
+            ? copy(entry.user) : null;
+    }
+
+    /**
+     * Returns a copy of the expired cached user with the given username, if it has a version to
+     * revalidate it with, otherwise null.
+     * @param username The username of the user to be returned.
+     * @return A copy of the expired cached user with the given username, or null if it is absent,
+     * not expired or has no version.
+     */
+    User getExpiredByUsername(String username) {
+        User user = getExpired(username != null ? idsByUsername.get(username) : null);
+        return user != null && username.equals(user.getUsername()) ? user : null;
+    }
+
+    /**
+     * Returns true if a user with the given email address is cached and is not too stale.
+     * @param email The email address to be checked.
+     * @return True if a user with the given email address is cached and is not too stale.
+     */
+    boolean containsEmail(String email) {
+        User user = get(email != null ? idsByEmail.get(email) : null);
+        return user != null && email.equals(user.getEmail());
+    }
+
+    /**
+     * Cache a copy of the given user in both tiers, unless an invalidation has taken place since
+     * the given generation.
+     * @param user The user to be cached.
+     * @param generation The generation as obtained by {@link #generation()} before loading.
+     */
+    void put(User user, long generation) {
+        if (putInMemory(user, generation) && secondTier != null) {
+            secondTier.put(user);
+
+            // An invalidation may have slipped in between the check and the put.
+            if (this.generation.get() != generation) {
+                secondTier.invalidate(user.getId(), user.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Invalidate the given local write in this cache and publish it to the other nodes.
+     * @param invalidation The invalidation to be applied and published.
+     */
+    void invalidate(Invalidation invalidation) {
+        invalidated(invalidation);
+
+        if (channel != null) {
+            channel.publish(invalidation);
+        }
+    }
+
+    /**
+     * Invalidate the given write of another node in this cache.
+     * @param invalidation The invalidation to be applied.
+     */
+    @Override
+    public void invalidated(Invalidation invalidation) {
+        generation.incrementAndGet();
+        invalidate(invalidation.getId());
+        invalidate(idsByUsername.remove(nullToEmpty(invalidation.getUsername())));
+        invalidate(idsByEmail.remove(nullToEmpty(invalidation.getEmail())));
+
+        if (secondTier != null) {
+            secondTier.invalidate(null, invalidation.getUsername()); // The IDs are done above.
+        }
+    }
+
+    /**
+     * Close the invalidation channel, if any, and the second tier, if any.
+     */
+    void close() {
+        if (channel != null) {
+            channel.close();
+        }
+        if (secondTier != null) {
+            secondTier.close();
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Cache a copy of the given user in the first tier, unless an invalidation has taken place
+     * since the given generation.
+     * @param user The user to be cached.
+     * @param generation The generation as obtained by {@link #generation()} before loading.
+     * @return True if the user is cached.
+     */
+    private boolean putInMemory(User user, long generation) {
+        if (this.generation.get() != generation) {
+            return false;
+        }
+
+        if (entriesById.size() >= maxSize) {
+            evict();
+        }
+
+        Long id = user.getId();
+        Entry entry = new Entry(copy(user));
+        Entry old = entriesById.put(id, entry);
+        if (old != null) {
+            removeKeys(id, old);
+        }
+        if (user.getUsername() != null) {
+            idsByUsername.put(user.getUsername(), id);
+        }
+        if (user.getEmail() != null) {
+            idsByEmail.put(user.getEmail(), id);
+        }
+
+        // An invalidation may have slipped in between the check and the put.
+        if (this.generation.get() != generation) {
+            remove(id, entry);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Cache the given user of the second tier, if any, in the first tier.
+     */
+    private User promote(User user, long generation) {
+        if (user != null) {
+            putInMemory(user, generation);
+        }
+
+        return user;
+    }
+
+    private void invalidate(Long id) {
+        if (id != null) {
+            Entry entry = entriesById.get(id);
+            if (entry != null) {
+                remove(id, entry);
+            }
+            if (secondTier != null) {
+                secondTier.invalidate(id, null);
+            }
+        }
+    }
+
+    private void remove(Long id, Entry entry) {
+        if (entriesById.remove(id, entry)) {
+            removeKeys(id, entry);
+        }
+    }
+
+    private void removeKeys(Long id, Entry entry) {
+        if (entry.user.getUsername() != null) {
+            idsByUsername.remove(entry.user.getUsername(), id);
+        }
+        if (entry.user.getEmail() != null) {
+            idsByEmail.remove(entry.user.getEmail(), id);
+        }
+    }
+
+    /**
+     * Remove all stale entries. If that does not free up a tenth of the maximum size, then remove
+     * arbitrary entries until it does.
+     */
+    private void evict() {
+        int target = maxSize - Math.max(1, maxSize / 10);
+
+        for (Iterator<Long> ids = entriesById.keySet().iterator(); ids.hasNext();) {
+            Long id = ids.next();
+            Entry entry = entriesById.get(id);
+            if (entry != null && (entry.isExpired() || entriesById.size() > target)) {
+                remove(id, entry);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the given user. Package private so that it can be used inside the DAO
+     * package only.
+     * @param user The user to be copied.
+     * @return A copy of the given user.
+     */
+    static User copy(User user) {
+        User copy = new User(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+            user.getAge());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+    private static String nullToEmpty(String key) {
+        return key != null ? key : "";
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * A cached user along with its expiry time.
+     */
+    private final class Entry {
+        private final User user;
+        private final long expires = System.nanoTime() + maxStaleness;
+
+        private Entry(User user) {
+            this.user = user;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expires > 0;
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,626 @@
+package mydao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import mymodel.User;
+
+/**
+ * This class represents the criteria of a user query, to be passed to
+ * {@link UserDAO#list(UserCriteria)} or {@link UserDAO#scan(UserCriteria, UserHandler)}. All
+ * predicates must match. The criteria compile to a parameterized SQL query, whereby criteria with
+ * the same predicates, order and paging, but different values, compile to the very same SQL string,
+ * so that the driver's statement cache is reused for identical query shapes.
+ * <p>
+ * The 'user' table as described in {@link DAOTest} only has indexes on ID, username and email
+ * address. When a query shape has no predicate which can use an index, or is ordered by a column
+ * without index, a warning is printed to the stderr once, because such a query reads the whole
+ * table.
+ * <p>
+ * Here is a basic use example:
+ * <pre>
+ * UserCriteria criteria = new UserCriteria()
+ *     .usernameStartsWith("jo")
+ *     .ageBetween(18, 30)
+ *     .orderBy(UserCriteria.Order.USERNAME, true)
+ *     .limit(100);
+ * List&lt;User&gt; users = userDAO.list(criteria);
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public final class UserCriteria {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final char LIKE_ESCAPE = '!';
+    private static final ConcurrentMap<String, String> COMPILED_SQL =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * The columns to order the users by. Users with the same value are ordered by ID.
+     */
+    public enum Order {
+
+        /** Order by ID, which uses the primary key. */
+        ID("id", true),
+
+        /** Order by username, which uses the unique index. */
+        USERNAME("username", true),
+
+        /** Order by email address, which uses the unique index. Nulls come first. */
+        EMAIL("email", true),
+
+        /** Order by age, which has no index. Nulls come first. */
+        AGE("age", false);
+
+        private final String column;
+        private final boolean indexed;
+
+        private Order(String column, boolean indexed) {
+            this.column = column;
+            this.indexed = indexed;
+        }
+
+    }
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final List<Predicate> predicates = new ArrayList<Predicate>();
+    private Order order = Order.ID;
+    private boolean ascending = true;
+    private long limit = -1;
+    private long offset;
+
+    // Builders -----------------------------------------------------------------------------------
+
+    /**
+     * Match users whose ID is between the given IDs, inclusive. This uses the primary key.
+     * @param minId The minimum ID, inclusive.
+     * @param maxId The maximum ID, inclusive.
+     * @return These criteria.
+     */
+    public UserCriteria idBetween(long minId, long maxId) {
+        return add(Kind.ID_BETWEEN, minId, maxId);
+    }
+
+    /**
+     * Match the users with the given IDs. This uses the primary key. The IDs are sorted and padded
+     * to a power of two with the highest ID, so that the amount of distinct SQL strings, and thus
+     * of statements in the driver's statement cache, grows logarithmically with the amount of IDs.
+     * @param ids The IDs.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the IDs or any of them is null.
+     */
+    public UserCriteria idIn(Collection<Long> ids) throws IllegalArgumentException {
+        List<Long> sorted = new ArrayList<Long>(requireNonNull(ids, "IDs"));
+
+        if (sorted.isEmpty()) {
+            return idBetween(0, -1); // Matches nothing, "id IN ()" is not valid SQL.
+        }
+
+        for (Long id : sorted) {
+            requireNonNull(id, "ID");
+        }
+
+        Collections.sort(sorted);
+        Long[] padded = new Long[Integer.highestOneBit(sorted.size() * 2 - 1)];
+        Long maxId = sorted.get(sorted.size() - 1);
+        Arrays.fill(sorted.toArray(padded), sorted.size(), padded.length, maxId);
+        return add(Kind.ID_IN, (Object[]) padded);
+    }
+
+    /**
+     * Match the user with the given username. This uses the unique index.
+     * @param username The username.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the username is null.
+     */
+    public UserCriteria username(String username) throws IllegalArgumentException {
+        return add(Kind.USERNAME, requireNonNull(username, "Username"));
+    }
+
+    /**
+     * Match users whose username starts with the given prefix. This uses the unique index.
+     * @param prefix The username prefix.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the prefix is null.
+     */
+    public UserCriteria usernameStartsWith(String prefix) throws IllegalArgumentException {
+        return add(Kind.USERNAME_PREFIX, requireNonNull(prefix, "Username prefix"));
+    }
+
+    /**
+     * Match the user with the given email address. This uses the unique index.
+     * @param email The email address.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the email address is null.
+     */
+    public UserCriteria email(String email) throws IllegalArgumentException {
+        return add(Kind.EMAIL, requireNonNull(email, "Email"));
+    }
+
+    /**
+     * Match users whose email address is in the given domain, such as 'example.com', ignoring
+     * case. This can't use an index, since the domain is at the end of the email address.
+     * @param domain The email domain.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the domain is null.
+     */
+    public UserCriteria emailDomain(String domain) throws IllegalArgumentException {
+        return add(Kind.EMAIL_DOMAIN, requireNonNull(domain, "Email domain"));
+    }
+
+    /**
+     * Match users whose age is between the given ages, inclusive. This can't use an index, since
+     * the age has none.
+     * @param minAge The minimum age, inclusive.
+     * @param maxAge The maximum age, inclusive.
+     * @return These criteria.
+     */
+    public UserCriteria ageBetween(int minAge, int maxAge) {
+        return add(Kind.AGE_BETWEEN, minAge, maxAge);
+    }
+
+    /**
+     * Order the users by the given column. Defaults to ascending ID.
+     * @param order The column to order the users by.
+     * @param ascending Whether to order ascending or descending.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the order is null.
+     */
+    public UserCriteria orderBy(Order order, boolean ascending) throws IllegalArgumentException {
+        this.order = requireNonNull(order, "Order");
+        this.ascending = ascending;
+        return this;
+    }
+
+    /**
+     * Return at most the given amount of users. Defaults to all users.
+     * @param limit The maximum amount of users to return.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the limit is negative.
+     */
+    public UserCriteria limit(long limit) throws IllegalArgumentException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit may not be negative.");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Skip the given amount of users. Defaults to 0. Note that the database still has to read the
+     * skipped users, so prefer {@link #idBetween(long, long)} or a username prefix to page deeply.
+     * @param offset The amount of users to skip.
+     * @return These criteria.
+     * @throws IllegalArgumentException If the offset is negative.
+     */
+    public UserCriteria offset(long offset) throws IllegalArgumentException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset may not be negative.");
+        }
+        this.offset = offset;
+        return this;
+    }
+
+    // Internal -----------------------------------------------------------------------------------
+
+    /**
+     * Returns the parameterized SQL query of these criteria for the given SELECT clause. The SQL is
+     * compiled only once per query shape. Package private so that it can be used inside the DAO
+     * package only.
+     * @param select The SELECT ... FROM clause.
+     * @return The parameterized SQL query of these criteria.
+     */
+    String toSQL(String select) {
+        String shape = select + shape();
+        String sql = COMPILED_SQL.get(shape);
+
+        if (sql == null) {
+            sql = compile(select);
+            if (COMPILED_SQL.putIfAbsent(shape, sql) == null) {
+                warnIfNotIndexed();
+            }
+        }
+
+        return sql;
+    }
+
+    /**
+     * Returns the key of these criteria, which equals the key of other criteria if they have the
+     * same query shape and parameter values, and thus select the same users in the same order.
+     * Package private so that it can be used inside the DAO package only.
+     * @return The key of these criteria.
+     */
+    Object getKey() {
+        return Arrays.asList(shape(), Arrays.asList(getValues()));
+    }
+
+    /**
+     * Returns the parameter values of the SQL query of these criteria, in the order of the
+     * placeholders. Package private so that it can be used inside the DAO package only.
+     * @return The parameter values of the SQL query of these criteria.
+     */
+    Object[] getValues() {
+        List<Object> values = new ArrayList<Object>();
+
+        for (Predicate predicate : predicates) {
+            predicate.kind.bind(predicate.arguments, values);
+        }
+
+        if (isPaged()) {
+            values.add(limit >= 0 ? limit : Long.MAX_VALUE);
+            values.add(offset);
+        }
+
+        return values.toArray();
+    }
+
+    /**
+     * Returns true if the given user matches all predicates of these criteria. Package private so
+     * that it can be used inside the DAO package only.
+     * @param user The user to be matched.
+     * @return True if the given user matches all predicates of these criteria.
+     */
+    boolean matches(User user) {
+        for (Predicate predicate : predicates) {
+            if (!predicate.kind.matches(user, predicate.arguments)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the users are to be ordered by ascending ID, which is the natural order of
+     * the table. Package private so that it can be used inside the DAO package only.
+     * @return True if the users are to be ordered by ascending ID.
+     */
+    boolean isNaturalOrder() {
+        return order == Order.ID && ascending;
+    }
+
+    /**
+     * Returns the field of the order column of these criteria, or null if ordered by ID. Package
+     * private so that it can be used inside the DAO package only.
+     * @return The field of the order column of these criteria, or null if ordered by ID.
+     */
+    UserField getOrderField() {
+        switch (order) {
+            case USERNAME: return UserField.USERNAME;
+            case EMAIL: return UserField.EMAIL;
+            case AGE: return UserField.AGE;
+            default: return null;
+        }
+    }
+
+    /**
+     * Returns the comparator of the order of these criteria. Package private so that it can be
+     * used inside the DAO package only.
+     * @return The comparator of the order of these criteria.
+     */
+    Comparator<User> getComparator() {
+        return new Comparator<User>() {
+            public int compare(User first, User second) {
+                int compare = compareNullsFirst(value(first), value(second));
+                if (compare == 0) {
+                    compare = first.getId().compareTo(second.getId());
+                }
+                return ascending ? compare : -compare;
+            }
+
+            private Comparable<?> value(User user) {
+                switch (order) {
+                    case USERNAME: return user.getUsername();
+                    case EMAIL: return user.getEmail();
+                    case AGE: return user.getAge();
+                    default: return user.getId();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the lowest ID which can match these criteria. Package private so that it can be used
+     * inside the DAO package only.
+     * @return The lowest ID which can match these criteria.
+     */
+    long getMinId() {
+        long minId = Long.MIN_VALUE;
+
+        for (Predicate predicate : predicates) {
+            if (predicate.kind == Kind.ID_BETWEEN || predicate.kind == Kind.ID_IN) {
+                minId = Math.max(minId, (Long) predicate.arguments[0]);
+            }
+        }
+
+        return minId;
+    }
+
+    /**
+     * Returns the highest ID which can match these criteria. Package private so that it can be
+     * used inside the DAO package only.
+     * @return The highest ID which can match these criteria.
+     */
+    long getMaxId() {
+        long maxId = Long.MAX_VALUE;
+
+        for (Predicate predicate : predicates) {
+            if (predicate.kind == Kind.ID_BETWEEN) {
+                maxId = Math.min(maxId, (Long) predicate.arguments[1]);
+            } else if (predicate.kind == Kind.ID_IN) {
+                maxId = Math.min(maxId, (Long) predicate.arguments[predicate.arguments.length - 1]);
+            }
+        }
+
+        return maxId;
+    }
+
+    /**
+     * Returns the maximum amount of users to return, or -1 if unlimited. Package private so that it
+     * can be used inside the DAO package only.
+     * @return The maximum amount of users to return, or -1 if unlimited.
+     */
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the amount of users to skip. Package private so that it can be used inside the DAO
+     * package only.
+     * @return The amount of users to skip.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns a copy of these criteria with the given paging instead. Package private so that it
+     * can be used inside the DAO package only.
+     * @param limit The maximum amount of users to return, or -1 if unlimited.
+     * @param offset The amount of users to skip.
+     * @return A copy of these criteria with the given paging.
+     */
+    UserCriteria withPaging(long limit, long offset) {
+        UserCriteria copy = new UserCriteria();
+        copy.predicates.addAll(predicates);
+        copy.order = order;
+        copy.ascending = ascending;
+        copy.limit = limit;
+        copy.offset = offset;
+        return copy;
+    }
+
+    // Object overrides ---------------------------------------------------------------------------
+
+    /**
+     * Returns the String representation of these criteria, for logging purposes.
+     */
+    @Override
+    public String toString() {
+        return String.format("UserCriteria%s order by %s %s limit %d offset %d",
+            predicates, order, ascending ? "ASC" : "DESC", limit, offset);
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private UserCriteria add(Kind kind, Object... arguments) {
+        predicates.add(new Predicate(kind, arguments));
+        return this;
+    }
+
+    private boolean isPaged() {
+        return limit >= 0 || offset > 0;
+    }
+
+    /**
+     * Returns the query shape: everything which determines the SQL, but not the values.
+     */
+    private String shape() {
+        StringBuilder shape = new StringBuilder();
+
+        for (Predicate predicate : predicates) {
+            shape.append(predicate.kind.ordinal()).append(':')
+                .append(predicate.arguments.length).append(',');
+        }
+
+        return shape.append(order).append(ascending).append(isPaged()).toString();
+    }
+
+    private String compile(String select) {
+        StringBuilder sql = new StringBuilder(select);
+
+        for (int i = 0; i < predicates.size(); i++) {
+            Predicate predicate = predicates.get(i);
+            sql.append(i == 0 ? " WHERE " : " AND ")
+                .append(predicate.kind.toSQL(predicate.arguments));
+        }
+
+        String direction = ascending ? "" : " DESC";
+        sql.append(" ORDER BY ").append(order.column).append(direction);
+        if (order != Order.ID) {
+            sql.append(", id").append(direction);
+        }
+
+        if (isPaged()) {
+            sql.append(" LIMIT ? OFFSET ?");
+        }
+
+        return sql.toString();
+    }
+
+    private void warnIfNotIndexed() {
+        List<String> unindexed = new ArrayList<String>();
+        boolean indexed = false;
+
+        for (Predicate predicate : predicates) {
+            if (predicate.kind.indexed) {
+                indexed = true;
+            } else {
+                unindexed.add(predicate.kind.sql);
+            }
+        }
+
+        if (!indexed && !unindexed.isEmpty()) {
+            System.err.println("UserCriteria: " + unindexed + " cannot use an index,"
+                + " the query reads the whole user table.");
+        }
+
+        if (!order.indexed) {
+            System.err.println("UserCriteria: ORDER BY " + order.column + " cannot use an index,"
+                + " the database has to sort all matching users.");
+        }
+    }
+
+    private static <T> T requireNonNull(T value, String name) throws IllegalArgumentException {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " may not be null.");
+        }
+        return value;
+    }
+
+    /**
+     * Escape the LIKE wildcards in the given value with the LIKE escape character.
+     */
+    private static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 4);
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                escaped.append(LIKE_ESCAPE);
+            }
+            escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static int compareNullsFirst(Comparable first, Comparable second) {
+        if (first == null || second == null) {
+            return first == second ? 0 : (first == null ? -1 : 1);
+        }
+        return first.compareTo(second);
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The kinds of predicates, each with its SQL, whether it can use an index, how it binds its
+     * arguments to the SQL parameters and how it matches a user in memory.
+     */
+    private enum Kind {
+
+        ID_BETWEEN("id BETWEEN ? AND ?", true) {
+            boolean matches(User user, Object[] arguments) {
+                return user.getId() >= (Long) arguments[0] && user.getId() <= (Long) arguments[1];
+            }
+        },
+
+        ID_IN("id IN", true) {
+            String toSQL(Object[] arguments) {
+                StringBuilder sql = new StringBuilder("id IN (?");
+                for (int i = 1; i < arguments.length; i++) {
+                    sql.append(", ?");
+                }
+                return sql.append(')').toString();
+            }
+
+            boolean matches(User user, Object[] arguments) {
+                return Arrays.binarySearch(arguments, user.getId()) >= 0;
+            }
+        },
+
+        USERNAME("username = ?", true) {
+            boolean matches(User user, Object[] arguments) {
+                return arguments[0].equals(user.getUsername());
+            }
+        },
+
+        USERNAME_PREFIX("username LIKE ? ESCAPE '" + LIKE_ESCAPE + "'", true) {
+            void bind(Object[] arguments, List<Object> values) {
+                values.add(escapeLike((String) arguments[0]) + "%");
+            }
+
+            boolean matches(User user, Object[] arguments) {
+                return user.getUsername() != null
+                    && user.getUsername().startsWith((String) arguments[0]);
+            }
+        },
+
+        EMAIL("email = ?", true) {
+            boolean matches(User user, Object[] arguments) {
+                return arguments[0].equals(user.getEmail());
+            }
+        },
+
+        EMAIL_DOMAIN("email LIKE ? ESCAPE '" + LIKE_ESCAPE + "'", false) {
+            void bind(Object[] arguments, List<Object> values) {
+                values.add("%@" + escapeLike((String) arguments[0]));
+            }
+
+            boolean matches(User user, Object[] arguments) {
+                String email = user.getEmail();
+                return email != null && email.substring(email.indexOf('@') + 1)
+                    .equalsIgnoreCase((String) arguments[0]);
+            }
+        },
+
+        AGE_BETWEEN("age BETWEEN ? AND ?", false) {
+            boolean matches(User user, Object[] arguments) {
+                return user.getAge() != null
+                    && user.getAge() >= (Integer) arguments[0]
+                    && user.getAge() <= (Integer) arguments[1];
+            }
+        };
+
+        private final String sql;
+        private final boolean indexed;
+
+        private Kind(String sql, boolean indexed) {
+            this.sql = sql;
+            this.indexed = indexed;
+        }
+
+        String toSQL(Object[] arguments) {
+            return sql;
+        }
+
+        void bind(Object[] arguments, List<Object> values) {
+            for (Object argument : arguments) {
+                values.add(argument);
+            }
+        }
+
+        abstract boolean matches(User user, Object[] arguments);
+    }
+
+    /**
+     * A predicate of the given kind with the given arguments.
+     */
+    private static final class Predicate {
+        private final Kind kind;
+        private final Object[] arguments;
+
+        private Predicate(Kind kind, Object[] arguments) {
+            this.kind = kind;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public String toString() {
+            return kind + Arrays.toString(arguments);
+        }
+    }
+
+}
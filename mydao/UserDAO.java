@@ -1,60 +1,23 @@
 package mydao;
 
-import static mydao.DAOUtil.*;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Flow;
 
+import mymodel.CompactUserList;
 import mymodel.User;
 
 /**
- * This class represents a SQL Database Access Object for the {@link User} DTO. This DAO should be
- * used as a central point for the mapping between the User DTO and a SQL database.
+ * This interface represents a contract for a DAO for the {@link User} model. Obtain an instance
+ * from {@link DAOFactory#getUserDAO()}; the specific implementation returned depends on the
+ * properties file configuration of the DAO factory.
  *
  * @author BalusC
  * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
  */
-public final class UserDAO {
-
-    // Constants ----------------------------------------------------------------------------------
-
-    private static final String SQL_FIND_BY_ID =
-        "SELECT id, username, password, email, age FROM user WHERE id = ?";
-    private static final String SQL_FIND_BY_USERNAME_AND_PASSWORD =
-        "SELECT id, username, password, email, age FROM user WHERE username = ? AND password = ?";
-    private static final String SQL_LIST_ORDER_BY_ID =
-        "SELECT id, username, password, email, age FROM user ORDER BY id";
-    private static final String SQL_INSERT =
-        "INSERT INTO user (username, password, email, age) VALUES (?, ?, ?, ?)";
-    private static final String SQL_UPDATE =
-        "UPDATE user SET username = ?, password = ?, email = ?, age = ? WHERE id = ?";
-    private static final String SQL_DELETE =
-        "DELETE FROM user WHERE id = ?";
-    private static final String SQL_EXIST_USERNAME =
-        "SELECT id FROM user WHERE username = ?";
-    private static final String SQL_EXIST_EMAIL =
-        "SELECT id FROM user WHERE email = ?";
-    private static final String SQL_FIND_BY_USERNAME =
-            "SELECT id FROM user WHERE username = ?";
-
-    // Vars ---------------------------------------------------------------------------------------
-
-    private DAOFactory daoFactory;
-
-    // Constructors -------------------------------------------------------------------------------
-
-    /**
-     * Construct an User DAO for the given DAOFactory. Package private so that it can be constructed
-     * inside the DAO package only.
-     * @param daoFactory The DAOFactory to construct this User DAO for.
-     */
-    UserDAO(DAOFactory daoFactory) {
-        this.daoFactory = daoFactory;
-    }
+public interface UserDAO {
 
     // Actions ------------------------------------------------------------------------------------
 
@@ -64,9 +27,7 @@ public final class UserDAO {
      * @return The user from the database matching the given ID, otherwise null.
      * @throws DAOException If something fails at database level.
      */
-    public User find(Long id) throws DAOException {
-        return find(SQL_FIND_BY_ID, id);
-    }
+    public User find(Long id) throws DAOException;
 
     /**
      * Returns the user from the database matching the given username and password, otherwise null.
@@ -75,41 +36,30 @@ public final class UserDAO {
      * @return The user from the database matching the given username and password, otherwise null.
      * @throws DAOException If something fails at database level.
      */
-    public User find(String username, String password) throws DAOException {
-        return find(SQL_FIND_BY_USERNAME_AND_PASSWORD, username, hashMD5(password));
-    }
+    public User find(String username, String password) throws DAOException;
 
-    public User findByName(String username) throws DAOException {
-        return find(SQL_FIND_BY_USERNAME, username);
-    }
     /**
-     * Returns the user from the database matching the given SQL query with the given values.
-     * @param sql The SQL query to be executed in the database.
-     * @param values The PreparedStatement values to be set.
-     * @return The user from the database matching the given SQL query with the given values.
+     * Returns the user from the database matching the given username, otherwise null.
+     * @param username The username of the user to be returned.
+     * @return The user from the database matching the given username, otherwise null.
      * @throws DAOException If something fails at database level.
      */
-    private User find(String sql, Object... values) throws DAOException {
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet resultSet = null;
-        User user = null;
-
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = prepareStatement(connection, sql, false, values);
-            resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                user = mapUser(resultSet);
-            }
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement, resultSet);
-        }
+    public User findByName(String username) throws DAOException;
 
-        return user;
-    }
+    /**
+     * Returns the given user itself if it is not changed in the database since it was obtained,
+     * otherwise the current user from the database matching its ID, or null if it does not exist
+     * anymore. Whether the user is changed is determined by its version, which is probed by the
+     * primary key without transferring the other columns, so this is suitable to revalidate users
+     * which are held for a while, such as cached users. A user without a version is always
+     * obtained anew. Compare the returned user by identity to tell whether it is changed.
+     * @param user The user with the ID and version as obtained before.
+     * @return The given user itself if it is not changed, otherwise the current user from the
+     * database matching its ID, or null if it does not exist anymore.
+     * @throws IllegalArgumentException If the user ID is null.
+     * @throws DAOException If something fails at database level.
+     */
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException;
 
     /**
      * Returns a list of all users from the database ordered by user ID. The list is never null and
@@ -117,27 +67,113 @@ public final class UserDAO {
      * @return A list of all users from the database ordered by user ID.
      * @throws DAOException If something fails at database level.
      */
-    public List<User> list() throws DAOException {
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet resultSet = null;
-        List<User> users = new ArrayList<User>();
+    public List<User> list() throws DAOException;
+
+    /**
+     * Stream all users from the database ordered by user ID to the given handler. Unlike
+     * {@link #list()}, the users are neither collected in memory nor mapped to User DTOs, so this
+     * is suitable for bulk processing of the whole table.
+     * @param handler The handler to pass the column values of every user to.
+     * @throws DAOException If something fails at database level.
+     */
+    public void scan(UserHandler handler) throws DAOException;
+
+    /**
+     * Returns a list of the users from the database matching the given criteria, in the order of
+     * the given criteria. The list is never null and is empty when there are no matching users.
+     * With optimistic locking, the users have their version like the users of {@link #list()}.
+     * @param criteria The criteria the users must match.
+     * @return A list of the users from the database matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    public List<User> list(UserCriteria criteria) throws DAOException;
+
+    /**
+     * Stream the users from the database matching the given criteria to the given handler, in the
+     * order of the given criteria. Like {@link #scan(UserHandler)}, the users are neither
+     * collected in memory nor mapped to User DTOs.
+     * @param criteria The criteria the users must match.
+     * @param handler The handler to pass the column values of every matching user to.
+     * @throws DAOException If something fails at database level.
+     */
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException;
+
+    /**
+     * Returns a compact list of the users from the database matching the given criteria, in the
+     * order of the given criteria. Unlike {@link #list(UserCriteria)}, the users are not mapped to
+     * User DTOs but stored in columns, which takes a fraction of the heap and of the garbage
+     * collection of a list of User DTOs, so this is suitable for bulk reads which must be held in
+     * memory. The list is never null and is empty when there are no matching users.
+     * @param criteria The criteria the users must match.
+     * @return A compact list of the users from the database matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException;
+
+    /**
+     * Returns a list of the users from the database matching the given criteria like
+     * {@link #list(UserCriteria)}, but with the ID and the given fields only. The other fields are
+     * not selected at all and are null in the returned users, so this is suitable for listings
+     * which need a few columns only. Such partial users are not meant to be updated.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to select besides the ID.
+     * @return A list of the users from the database matching the given criteria, with the ID and
+     * the given fields only.
+     * @throws DAOException If something fails at database level.
+     */
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException;
 
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = connection.prepareStatement(SQL_LIST_ORDER_BY_ID);
-            resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                users.add(mapUser(resultSet));
-            }
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement, resultSet);
-        }
+    /**
+     * Stream the users from the database matching the given criteria to the given handler like
+     * {@link #scan(UserCriteria, UserHandler)}, but with the ID and the given fields only. The
+     * other fields are not selected at all and are passed as null.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to select besides the ID.
+     * @param handler The handler to pass the ID and given fields of every matching user to.
+     * @throws DAOException If something fails at database level.
+     */
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException;
 
-        return users;
-    }
+    /**
+     * Returns a list of the users from the database matching the given criteria like
+     * {@link #list(UserCriteria, Set)}, but the other fields are loaded lazily: as soon as one of
+     * them is accessed on any of the returned users, the other fields of all returned users are
+     * loaded at once, by their IDs, in one query per 1000 users. So this is suitable for listings
+     * which need a few columns of all users, but sometimes all columns of some users. Lazy loading
+     * failures are thrown as {@link LazyLoadException}. The users have no version, so an update
+     * of them overwrites the user regardless of concurrent changes.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to load eagerly besides the ID.
+     * @return A list of the users from the database matching the given criteria, whose other
+     * fields are loaded on first access.
+     * @throws DAOException If something fails at database level.
+     */
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException;
+
+    /**
+     * Returns a publisher of the users from the database matching the given criteria, in the order
+     * of the given criteria, for consumers which are slower than the database. Nothing is read
+     * before a subscriber requests users, and then the users are read in the requesting thread, as
+     * many as requested, so that the database cursor fetches rows as fast as the subscriber
+     * consumes them. Every subscription reads the users anew on its own connection, which it
+     * holds until the last user is read, the read fails or the subscription is cancelled. Failures
+     * are signalled to the subscriber as {@link DAOException}. With optimistic locking, the users
+     * have their version. Use <code>publish(new UserCriteria())</code> to publish all users.
+     * @param criteria The criteria the users must match.
+     * @return A publisher of the users from the database matching the given criteria.
+     */
+    public Flow.Publisher<User> publish(UserCriteria criteria);
+
+    /**
+     * Stream all users from the database to the given handler like {@link #scan(UserHandler)},
+     * but split in partitions which are scanned in parallel by the given amount of threads. The
+     * users are therefore not passed in any particular order, and the handler must be thread safe.
+     * @param parallelism The maximum amount of threads, and thus database connections, to use.
+     * @param handler The thread safe handler to pass the column values of every user to.
+     * @throws DAOException If something fails at database level.
+     */
+    public void parallelScan(int parallelism, UserHandler handler) throws DAOException;
 
     /**
      * Create the given user in the database. The user ID must be null, otherwise it will throw
@@ -147,78 +183,41 @@ public final class UserDAO {
      * @throws IllegalArgumentException If the user ID is not null.
      * @throws DAOException If something fails at database level.
      */
-    public void create(User user) throws IllegalArgumentException, DAOException {
-        if (user.getId() != null) {
-            throw new IllegalArgumentException("User is already created, the user ID is not null.");
-        }
-        
-        Object[] values = {
-            user.getUsername(),
-            hashMD5IfNecessary(user.getPassword()),
-            user.getEmail(),
-            user.getAge()
-        };
+    public void create(User user) throws IllegalArgumentException, DAOException;
 
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet generatedKeys = null;
-
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = prepareStatement(connection, SQL_INSERT, true, values);
-            int affectedRows = preparedStatement.executeUpdate();
-            if (affectedRows == 0) {
-                throw new DAOException("Creating user failed, no rows affected.");
-            }
-            generatedKeys = preparedStatement.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                user.setId(generatedKeys.getLong(1));
-            } else {
-                throw new DAOException("Creating user failed, no generated key obtained.");
-            }
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement, generatedKeys);
-        }
-    }
+    /**
+     * Create the given users in the database, either all or none of them. The user IDs must be
+     * null, otherwise it will throw IllegalArgumentException. After creating, the DAO will set the
+     * obtained IDs in the given users. When the IDs are assigned by an {@link IdGenerator}, the
+     * users are sent in batches without reading the generated keys back.
+     * @param users The users to be created in the database.
+     * @throws IllegalArgumentException If any user ID is not null or any user password is null.
+     * @throws DAOException If something fails at database level.
+     */
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException;
 
     /**
      * Update the given user in the database. The user ID must not be null, otherwise it will throw
      * IllegalArgumentException. If the user ID value is unknown, rather use {@link #save(User)}.
+     * With optimistic locking, the version of the given user must be the current one, and it is
+     * incremented after updating. A user without version is updated regardless.
      * @param user The user to be updated in the database.
      * @throws IllegalArgumentException If the user ID is null.
+     * @throws OptimisticLockException If the user is updated or deleted in the meantime.
      * @throws DAOException If something fails at database level.
      */
-    public void update(User user) throws DAOException {
-        if (user.getId() == null) {
-            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
-        }
-
-        Object[] values = {
-            user.getUsername(),
-            hashMD5IfNecessary(user.getPassword()),
-            user.getEmail(),
-            user.getAge(),
-            user.getId()
-        };
-
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
+    public void update(User user) throws IllegalArgumentException, DAOException;
 
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = prepareStatement(connection, SQL_UPDATE, false, values);
-            int affectedRows = preparedStatement.executeUpdate();
-            if (affectedRows == 0) {
-                throw new DAOException("Updating user failed, no rows affected.");
-            }
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement);
-        }
-    }
+    /**
+     * Update the given users in the database, either all or none of them, in batches. The user IDs
+     * must not be null, otherwise it will throw IllegalArgumentException. With optimistic locking,
+     * the versions are checked and incremented like {@link #update(User)} does.
+     * @param users The users to be updated in the database.
+     * @throws IllegalArgumentException If any user ID is null or any user password is null.
+     * @throws OptimisticLockException If any user is updated or deleted in the meantime.
+     * @throws DAOException If something fails at database level.
+     */
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException;
 
     /**
      * Save the given user in the database. If the user ID is null, then it will invoke
@@ -226,41 +225,17 @@ public final class UserDAO {
      * @param user The user to be saved in the database.
      * @throws DAOException If something fails at database level.
      */
-    public void save(User user) throws DAOException {
-        if (user.getId() == null) {
-            create(user);
-        } else {
-            update(user);
-        }
-    }
+    public void save(User user) throws DAOException;
 
     /**
      * Delete the given user from the database. After deleting, the DAO will set the ID of the given
-     * user to null.
+     * user to null. With optimistic locking, the version of the given user must be the current one.
+     * A user without version is deleted regardless.
      * @param user The user to be deleted from the database.
+     * @throws OptimisticLockException If the user is updated or deleted in the meantime.
      * @throws DAOException If something fails at database level.
      */
-    public void delete(User user) throws DAOException {
-        Object[] values = { user.getId() };
-
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = prepareStatement(connection, SQL_DELETE, false, values);
-            int affectedRows = preparedStatement.executeUpdate();
-            if (affectedRows == 0) {
-                throw new DAOException("Deleting user failed, no rows affected.");
-            } else {
-                user.setId(null);
-            }
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement);
-        }
-    }
+    public void delete(User user) throws DAOException;
 
     /**
      * Returns true if the given username exist in the database.
@@ -268,9 +243,7 @@ public final class UserDAO {
      * @return True if the given username exist in the database.
      * @throws DAOException If something fails at database level.
      */
-    public boolean existUsername(String username) throws DAOException {
-        return exist(SQL_EXIST_USERNAME, username);
-    }
+    public boolean existUsername(String username) throws DAOException;
 
     /**
      * Returns true if the given email address exist in the database.
@@ -278,62 +251,43 @@ public final class UserDAO {
      * @return True if the given email address exist in the database.
      * @throws DAOException If something fails at database level.
      */
-    public boolean existEmail(String email) throws DAOException {
-        return exist(SQL_EXIST_EMAIL, email);
-    }
+    public boolean existEmail(String email) throws DAOException;
 
     /**
-     * Returns true if the given SQL query with the given values returns at least one row.
-     * @param sql The SQL query to be executed in the database.
-     * @param values The PreparedStatement values to be set.
-     * @return True if the given SQL query with the given values returns at least one row.
+     * Returns the amount of users in the database.
+     * @return The amount of users in the database.
      * @throws DAOException If something fails at database level.
      */
-    private boolean exist(String sql, Object... values) throws DAOException {
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet resultSet = null;
-        boolean exist = false;
-
-        try {
-            connection = daoFactory.getConnection();
-            preparedStatement = prepareStatement(connection, sql, false, values);
-            resultSet = preparedStatement.executeQuery();
-            exist = resultSet.next();
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        } finally {
-            close(connection, preparedStatement, resultSet);
-        }
+    public long count() throws DAOException;
 
-        return exist;
-    }
-
-    // Helpers ------------------------------------------------------------------------------------
+    /**
+     * Returns the amount of users in the database whose age is between the given ages, inclusive.
+     * @param minAge The minimum age, inclusive.
+     * @param maxAge The maximum age, inclusive.
+     * @return The amount of users in the database whose age is between the given ages.
+     * @throws DAOException If something fails at database level.
+     */
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException;
 
     /**
-     * Generate MD5 hash for the given password if necessary. That is, if it is not already hashed.
-     * @param password The password to generate a hash for if necessary.
-     * @return The hash of the given password or the same value if it is already hashed.
+     * Returns the age histogram of the users in the database. The map key is the lowest age of the
+     * bucket and the map value is the amount of users in the bucket. Empty buckets and users
+     * without an age are left out. The map is unmodifiable and ordered by age.
+     * @param bucketWidth The amount of ages per bucket, e.g. 10 for buckets of 0-9, 10-19, etc.
+     * @return The age histogram of the users in the database.
+     * @throws IllegalArgumentException If the bucket width is less than 1.
+     * @throws DAOException If something fails at database level.
      */
-    private static String hashMD5IfNecessary(String password) {
-        return !"^[a-f0-9]{32}$".matches(password) ? hashMD5(password) : password;
-    }
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth)
+        throws IllegalArgumentException, DAOException;
 
     /**
-     * Map the current row of the given ResultSet to an User.
-     * @param resultSet The ResultSet of which the current row is to be mapped to an User.
-     * @return The mapped User from the current row of the given ResultSet.
-     * @throws SQLException If something fails at database level.
+     * Returns the amount of users in the database per lowercased email domain, such as
+     * 'example.com'. Users without an email address are left out. The map is unmodifiable and
+     * ordered by amount, highest first.
+     * @return The amount of users in the database per lowercased email domain.
+     * @throws DAOException If something fails at database level.
      */
-    private static User mapUser(ResultSet resultSet) throws SQLException {
-        return new User(
-            resultSet.getLong("id"),
-            resultSet.getString("username"),
-            resultSet.getString("password"),
-            resultSet.getString("email"),
-            resultSet.getObject("age") != null ? resultSet.getInt("age") : null
-        );
-    }
+    public Map<String, Long> emailDomainCounts() throws DAOException;
 
-}
\ No newline at end of file
+}
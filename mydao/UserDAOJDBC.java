@@ -0,0 +1,1282 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents a concrete JDBC implementation of the {@link UserDAO} interface. This DAO
+ * should be used as a central point for the mapping between the User DTO and a SQL database.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserDAOJDBC implements UserDAO {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String SQL_FIND_BY_ID =
+        "SELECT id, username, password, email, age FROM user WHERE id = ?";
+    private static final String SQL_FIND_BY_USERNAME_AND_PASSWORD =
+        "SELECT id, username, password, email, age FROM user WHERE username = ? AND password = ?";
+    private static final String SQL_LIST_ORDER_BY_ID =
+        "SELECT id, username, password, email, age FROM user ORDER BY id";
+    private static final String SQL_LIST_BY_ID_RANGE =
+        "SELECT id, username, password, email, age FROM user WHERE id BETWEEN ? AND ? ORDER BY id";
+    private static final String SQL_LIST_BY_CRITERIA =
+        "SELECT id, username, password, email, age FROM user";
+    private static final String SQL_MIN_MAX_ID =
+        "SELECT MIN(id), MAX(id) FROM user";
+    private static final String SQL_INSERT =
+        "INSERT INTO user (username, password, email, age) VALUES (?, ?, ?, ?)";
+    private static final String SQL_INSERT_WITH_ID =
+        "INSERT INTO user (id, username, password, email, age) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_UPDATE =
+        "UPDATE user SET username = ?, password = ?, email = ?, age = ? WHERE id = ?";
+    private static final String SQL_DELETE =
+        "DELETE FROM user WHERE id = ?";
+    private static final String SQL_EXIST_USERNAME =
+        "SELECT id FROM user WHERE username = ?";
+    private static final String SQL_EXIST_EMAIL =
+        "SELECT id FROM user WHERE email = ?";
+    private static final String SQL_FIND_BY_USERNAME =
+        "SELECT id, username, password, email, age FROM user WHERE username = ?";
+    private static final String SQL_FIND_BY_ID_VERSIONED =
+        "SELECT id, username, password, email, age, version FROM user WHERE id = ?";
+    private static final String SQL_FIND_BY_USERNAME_AND_PASSWORD_VERSIONED =
+        "SELECT id, username, password, email, age, version FROM user"
+            + " WHERE username = ? AND password = ?";
+    private static final String SQL_FIND_BY_USERNAME_VERSIONED =
+        "SELECT id, username, password, email, age, version FROM user WHERE username = ?";
+    private static final String SQL_LIST_ORDER_BY_ID_VERSIONED =
+        "SELECT id, username, password, email, age, version FROM user ORDER BY id";
+    private static final String SQL_LIST_BY_CRITERIA_VERSIONED =
+        "SELECT id, username, password, email, age, version FROM user";
+    private static final String SQL_FIND_VERSION_BY_ID =
+        "SELECT version FROM user WHERE id = ?";
+    private static final String SQL_UPDATE_VERSIONED =
+        "UPDATE user SET username = ?, password = ?, email = ?, age = ?, version = version + 1"
+            + " WHERE id = ?";
+    private static final String SQL_UPDATE_IF_VERSION =
+        "UPDATE user SET username = ?, password = ?, email = ?, age = ?, version = version + 1"
+            + " WHERE id = ? AND version = ?";
+    private static final String SQL_DELETE_IF_VERSION =
+        "DELETE FROM user WHERE id = ? AND version = ?";
+    private static final String SQL_COUNT =
+        "SELECT COUNT(*) FROM user";
+    private static final String SQL_COUNT_BY_AGE_RANGE =
+        "SELECT COUNT(*) FROM user WHERE age BETWEEN ? AND ?";
+    private static final String SQL_AGE_HISTOGRAM = // The %d is the bucket width.
+        "SELECT FLOOR(age / %1$d) * %1$d, COUNT(*) FROM user WHERE age IS NOT NULL"
+            + " GROUP BY 1 ORDER BY 1";
+    private static final String SQL_EMAIL_DOMAIN_COUNTS =
+        "SELECT LOWER(SUBSTRING(email, LOCATE('@', email) + 1)), COUNT(*) FROM user"
+            + " WHERE email IS NOT NULL GROUP BY 1 ORDER BY 2 DESC";
+    private static final int PARTITIONS_PER_THREAD = 4;
+    private static final int BATCH_SIZE = 1000;
+    private static final Long INITIAL_VERSION = 0L;
+    private static final Set<UserField> ALL_FIELDS = EnumSet.allOf(UserField.class);
+    private static final int PUBLISH_MAX_FETCH_SIZE = 1000;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private DAOFactory daoFactory;
+    private boolean versioned;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an User DAO for the given DAOFactory. Package private so that it can be constructed
+     * inside the DAO package only.
+     * @param daoFactory The DAOFactory to construct this User DAO for.
+     */
+    UserDAOJDBC(DAOFactory daoFactory) {
+        this.daoFactory = daoFactory;
+        this.versioned = daoFactory.isVersioned();
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the user from the database matching the given ID, otherwise null.
+     * @param id The ID of the user to be returned.
+     * @return The user from the database matching the given ID, otherwise null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User find(Long id) throws DAOException {
+        return find(versioned ? SQL_FIND_BY_ID_VERSIONED : SQL_FIND_BY_ID, id);
+    }
+
+    /**
+     * Returns the user from the database matching the given username and password, otherwise null.
+     * @param username The username of the user to be returned.
+     * @param password The password of the user to be returned.
+     * @return The user from the database matching the given username and password, otherwise null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User find(String username, String password) throws DAOException {
+        return find(versioned
+            ? SQL_FIND_BY_USERNAME_AND_PASSWORD_VERSIONED : SQL_FIND_BY_USERNAME_AND_PASSWORD,
+            username, hashMD5(password));
+    }
+
+    /**
+     * Returns the user from the database matching the given username, otherwise null.
+     * @param username The username of the user to be returned.
+     * @return The user from the database matching the given username, otherwise null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User findByName(String username) throws DAOException {
+        return find(versioned ? SQL_FIND_BY_USERNAME_VERSIONED : SQL_FIND_BY_USERNAME, username);
+    }
+
+    /**
+     * Returns the given user itself if its version is still the one in the database, otherwise the
+     * current user from the database matching its ID, or null if it does not exist anymore. The
+     * version is probed first, so a changed user costs two queries. Without optimistic locking
+     * the user is always obtained anew, since there is no version to compare.
+     * @param user The user with the ID and version as obtained before.
+     * @return The given user itself if it is not changed, otherwise the current user from the
+     * database matching its ID, or null if it does not exist anymore.
+     * @throws IllegalArgumentException If the user ID is null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        if (!versioned || user.getVersion() == null) {
+            return find(user.getId());
+        }
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        boolean exists = false;
+        boolean changed = true;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, SQL_FIND_VERSION_BY_ID, false,
+                user.getId());
+            resultSet = executeQuery(preparedStatement, SQL_FIND_VERSION_BY_ID);
+            if (resultSet.next()) {
+                exists = true;
+                changed = resultSet.getLong(1) != user.getVersion();
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        if (!exists) {
+            return null;
+        }
+
+        return changed ? find(user.getId()) : user;
+    }
+
+    /**
+     * Returns the user from the database matching the given SQL query with the given values.
+     * @param sql The SQL query to be executed in the database.
+     * @param values The PreparedStatement values to be set.
+     * @return The user from the database matching the given SQL query with the given values.
+     * @throws DAOException If something fails at database level.
+     */
+    private User find(String sql, Object... values) throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        User user = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, sql, false, values);
+            resultSet = executeQuery(preparedStatement, sql);
+            DAOEvents.RowMapping event = new DAOEvents.RowMapping();
+            event.begin();
+            if (resultSet.next()) {
+                user = mapUser(resultSet);
+            }
+            event.finish(sql, user != null ? 1 : 0);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        return user;
+    }
+
+    /**
+     * Returns a list of all users from the database ordered by user ID. The list is never null and
+     * is empty when the database does not contain any user.
+     * @return A list of all users from the database ordered by user ID.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public List<User> list() throws DAOException {
+        return list(versioned ? SQL_LIST_ORDER_BY_ID_VERSIONED : SQL_LIST_ORDER_BY_ID);
+    }
+
+    /**
+     * Returns a list of the users from the database matching the given criteria, in the order of
+     * the given criteria. The list is never null and is empty when there are no matching users.
+     * With optimistic locking the version is selected as well, otherwise the users are collected
+     * by a scan, which maps the columns by index.
+     * @param criteria The criteria the users must match.
+     * @return A list of the users from the database matching the given criteria.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public List<User> list(UserCriteria criteria) throws DAOException {
+        if (versioned) {
+            return list(criteria.toSQL(SQL_LIST_BY_CRITERIA_VERSIONED), criteria.getValues());
+        }
+
+        final List<User> users = new ArrayList<User>();
+
+        scan(criteria, new UserHandler() {
+            public void handle
+                (long id, String username, String password, String email, Integer age)
+            {
+                users.add(new User(id, username, password, email, age));
+            }
+        });
+
+        return users;
+    }
+
+    /**
+     * Stream the users from the database matching the given criteria to the given handler, in the
+     * order of the given criteria. The criteria are compiled to a parameterized SQL query.
+     * @param criteria The criteria the users must match.
+     * @param handler The handler to pass the column values of every matching user to.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        scan(criteria.toSQL(SQL_LIST_BY_CRITERIA), handler, criteria.getValues());
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return DAOUtil.listCompact(this, criteria);
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return DAOUtil.list(this, criteria, fields);
+    }
+
+    /**
+     * Stream the users from the database matching the given criteria to the given handler, with
+     * the ID and the given fields only. The criteria are compiled to a parameterized SQL query
+     * which selects the ID and the columns of the given fields only.
+     * @param criteria The criteria the users must match.
+     * @param fields The fields to select besides the ID.
+     * @param handler The handler to pass the ID and given fields of every matching user to.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        StringBuilder select = new StringBuilder("SELECT id");
+        for (UserField field : UserField.values()) {
+            if (fields.contains(field)) {
+                select.append(", ").append(field.getColumn());
+            }
+        }
+        select.append(" FROM user");
+
+        scan(criteria.toSQL(select.toString()), fields, handler, criteria.getValues());
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return LazyUser.list(this, criteria, fields);
+    }
+
+    /**
+     * Returns a publisher of the users from the database matching the given criteria. Every
+     * subscription executes the compiled SQL query on its own connection on the first request and
+     * keeps the ResultSet open while the subscriber consumes the users. Before every row the fetch
+     * size is set to the outstanding demand, up to 1000, so that the driver fetches as many rows
+     * per round trip as are requested. MySQL streams the rows one by one instead, and then the
+     * socket applies the backpressure.
+     */
+    @Override
+    public Flow.Publisher<User> publish(UserCriteria criteria) {
+        final String sql = criteria.toSQL(
+            versioned ? SQL_LIST_BY_CRITERIA_VERSIONED : SQL_LIST_BY_CRITERIA);
+        final Object[] values = criteria.getValues();
+
+        return new UserPublisher() {
+            @Override
+            Cursor open(long demand) throws DAOException {
+                return new ResultSetCursor(sql, values, demand);
+            }
+        };
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        scan(SQL_LIST_ORDER_BY_ID, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ID range between the lowest and highest ID is split into equally sized partitions, four
+     * per thread so that partitions with gaps in the IDs are compensated by work stealing. The
+     * partitions are scanned as fork-join tasks, each on its own connection. So obtain the
+     * DAOFactory by a pooled DataSource to avoid opening a physical connection per partition.
+     */
+    @Override
+    public void parallelScan(int parallelism, UserHandler handler) throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        long minId = 0;
+        long maxId = -1;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, SQL_MIN_MAX_ID, false);
+            resultSet = executeQuery(preparedStatement, SQL_MIN_MAX_ID);
+            if (resultSet.next() && resultSet.getObject(1) != null) {
+                minId = resultSet.getLong(1);
+                maxId = resultSet.getLong(2);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        if (maxId < minId) {
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(handler, minId, maxId,
+                (int) Math.min(parallelism * PARTITIONS_PER_THREAD, maxId - minId + 1)));
+        } catch (ScanException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Create the given user in the database with the given ID, which is assigned by the ID
+     * generator, so there are no generated keys to read back.
+     * @param user The user to be created in the database.
+     * @param id The ID of the user to be created.
+     * @throws DAOException If something fails at database level.
+     */
+    private void createWithId(User user, long id) throws DAOException {
+        Object[] values = {
+            id,
+            user.getUsername(),
+            hashMD5IfNecessary(user.getPassword()),
+            user.getEmail(),
+            user.getAge()
+        };
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, SQL_INSERT_WITH_ID, false, values);
+            int affectedRows = executeUpdate(preparedStatement, SQL_INSERT_WITH_ID);
+            if (affectedRows == 0) {
+                throw new DAOException("Creating user failed, no rows affected.");
+            }
+            user.setId(id);
+            if (versioned) {
+                user.setVersion(INITIAL_VERSION);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement);
+        }
+    }
+
+    /**
+     * Read the generated keys of the last executed batch of the given statement into the given
+     * array, starting at the given index.
+     * @param preparedStatement The statement whose last batch is executed.
+     * @param ids The array to read the generated keys into.
+     * @param start The index of the first user of the last batch.
+     * @throws SQLException If the generated keys cannot be read, or if there are not enough.
+     */
+    private static void readGeneratedKeys(PreparedStatement preparedStatement, long[] ids,
+        int start) throws SQLException
+    {
+        ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
+
+        try {
+            for (int i = start; i < ids.length && i < start + BATCH_SIZE; i++) {
+                if (!generatedKeys.next()) {
+                    throw new SQLException("Creating users failed, no generated key obtained.");
+                }
+                ids[i] = generatedKeys.getLong(1);
+            }
+        } finally {
+            close(generatedKeys);
+        }
+    }
+
+    /**
+     * Returns a list of the users from the database matching the given SQL query with the given
+     * values.
+     * @param sql The SQL query to be executed in the database.
+     * @param values The PreparedStatement values to be set.
+     * @return A list of the users from the database matching the given SQL query.
+     * @throws DAOException If something fails at database level.
+     */
+    private List<User> list(String sql, Object... values) throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        List<User> users = new ArrayList<User>();
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, sql, false, values);
+            resultSet = executeQuery(preparedStatement, sql);
+            DAOEvents.RowMapping event = new DAOEvents.RowMapping();
+            event.begin();
+            while (resultSet.next()) {
+                users.add(mapUser(resultSet));
+            }
+            event.finish(sql, users.size());
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        return users;
+    }
+
+    /**
+     * Stream the users from the database matching the given SQL query with the given values to the
+     * given handler.
+     * @param sql The SQL query to be executed in the database.
+     * @param handler The handler to pass the column values of every user to.
+     * @param values The PreparedStatement values to be set.
+     * @throws DAOException If something fails at database level.
+     */
+    private void scan(String sql, UserHandler handler, Object... values) throws DAOException {
+        scan(sql, ALL_FIELDS, handler, values);
+    }
+
+    /**
+     * Stream the users of the given SQL query, which selects the ID followed by the columns of the
+     * given fields in the order of {@link UserField}, to the given handler.
+     */
+    private void scan(String sql, Set<UserField> fields, UserHandler handler, Object... values)
+        throws DAOException
+    {
+        // Column indexes instead of labels, this is invoked for every row in the table. The index
+        // of a field which is not selected is 0.
+        int[] columns = new int[UserField.values().length];
+        int column = 1;
+        for (UserField field : UserField.values()) {
+            columns[field.ordinal()] = fields.contains(field) ? ++column : 0;
+        }
+        int usernameColumn = columns[UserField.USERNAME.ordinal()];
+        int passwordColumn = columns[UserField.PASSWORD.ordinal()];
+        int emailColumn = columns[UserField.EMAIL.ordinal()];
+        int ageColumn = columns[UserField.AGE.ordinal()];
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStreamingStatement(connection, sql, values);
+            resultSet = executeQuery(preparedStatement, sql);
+            DAOEvents.RowMapping event = new DAOEvents.RowMapping();
+            event.begin();
+            long rows = 0;
+            while (resultSet.next()) {
+                rows++;
+                Integer ageOrNull = null;
+                if (ageColumn > 0) {
+                    int age = resultSet.getInt(ageColumn);
+                    ageOrNull = resultSet.wasNull() ? null : Integer.valueOf(age);
+                }
+                handler.handle(
+                    resultSet.getLong(1),
+                    usernameColumn > 0 ? resultSet.getString(usernameColumn) : null,
+                    passwordColumn > 0 ? resultSet.getString(passwordColumn) : null,
+                    emailColumn > 0 ? resultSet.getString(emailColumn) : null,
+                    ageOrNull
+                );
+            }
+            event.finish(sql, rows);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+    }
+
+    /**
+     * Create the given user in the database. The user ID must be null, otherwise it will throw
+     * IllegalArgumentException. If the user ID value is unknown, rather use {@link #save(User)}.
+     * After creating, the DAO will set the obtained ID in the given user.
+     * @param user The user to be created in the database.
+     * @throws IllegalArgumentException If the user ID is not null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() != null) {
+            throw new IllegalArgumentException("User is already created, the user ID is not null.");
+        }
+
+        IdGenerator idGenerator = daoFactory.getIdGenerator();
+        if (idGenerator != null) {
+            createWithId(user, idGenerator.nextId());
+            return;
+        }
+        
+        Object[] values = {
+            user.getUsername(),
+            hashMD5IfNecessary(user.getPassword()),
+            user.getEmail(),
+            user.getAge()
+        };
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet generatedKeys = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, SQL_INSERT, true, values);
+            int affectedRows = executeUpdate(preparedStatement, SQL_INSERT);
+            if (affectedRows == 0) {
+                throw new DAOException("Creating user failed, no rows affected.");
+            }
+            generatedKeys = preparedStatement.getGeneratedKeys();
+            if (generatedKeys.next()) {
+                user.setId(generatedKeys.getLong(1));
+                if (versioned) {
+                    user.setVersion(INITIAL_VERSION);
+                }
+            } else {
+                throw new DAOException("Creating user failed, no generated key obtained.");
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, generatedKeys);
+        }
+    }
+
+    /**
+     * Create the given users in the database in batches within a single transaction. The user IDs
+     * must be null, otherwise it will throw IllegalArgumentException. After creating, the DAO will
+     * set the obtained IDs in the given users. When the IDs are assigned by an {@link IdGenerator},
+     * the batches are sent without reading the generated keys back. Any failure rolls back the
+     * transaction, so none of the users is created.
+     * @param users The users to be created in the database.
+     * @throws IllegalArgumentException If any user ID is not null or any user password is null.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        String[] passwords = new String[users.size()];
+
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            if (user.getId() != null) {
+                throw new IllegalArgumentException(
+                    "User is already created, the user ID is not null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+            passwords[i] = hashMD5IfNecessary(user.getPassword());
+        }
+
+        IdGenerator idGenerator = daoFactory.getIdGenerator();
+        String sql = idGenerator != null ? SQL_INSERT_WITH_ID : SQL_INSERT;
+        long[] ids = new long[users.size()];
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                preparedStatement = prepareStatement(connection, sql, idGenerator == null);
+
+                for (int i = 0; i < users.size(); i++) {
+                    User user = users.get(i);
+
+                    if (idGenerator != null) {
+                        ids[i] = idGenerator.nextId();
+                        setValues(preparedStatement, ids[i], user.getUsername(), passwords[i],
+                            user.getEmail(), user.getAge());
+                    } else {
+                        setValues(preparedStatement, user.getUsername(), passwords[i],
+                            user.getEmail(), user.getAge());
+                    }
+
+                    preparedStatement.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0 || i + 1 == users.size()) {
+                        executeBatch(preparedStatement, sql);
+                        if (idGenerator == null) {
+                            readGeneratedKeys(preparedStatement, ids, i / BATCH_SIZE * BATCH_SIZE);
+                        }
+                    }
+                }
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } catch (DAOException e) {
+                connection.rollback();
+                throw e;
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement);
+        }
+
+        for (int i = 0; i < users.size(); i++) {
+            users.get(i).setId(ids[i]);
+            if (versioned) {
+                users.get(i).setVersion(INITIAL_VERSION);
+            }
+        }
+    }
+
+    /**
+     * Update the given user in the database. The user ID must not be null, otherwise it will throw
+     * IllegalArgumentException. If the user ID value is unknown, rather use {@link #save(User)}.
+     * With optimistic locking, the version of the given user must be the current one, and it is
+     * incremented after updating. A user without version is updated regardless.
+     * @param user The user to be updated in the database.
+     * @throws IllegalArgumentException If the user ID is null.
+     * @throws OptimisticLockException If the user is updated or deleted in the meantime.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void update(User user) throws DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        boolean checkVersion = versioned && user.getVersion() != null;
+        String sql = checkVersion ? SQL_UPDATE_IF_VERSION
+            : versioned ? SQL_UPDATE_VERSIONED : SQL_UPDATE;
+        Object[] values = {
+            user.getUsername(),
+            hashMD5IfNecessary(user.getPassword()),
+            user.getEmail(),
+            user.getAge(),
+            user.getId(),
+            user.getVersion()
+        };
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            if (checkVersion) {
+                preparedStatement = prepareStatement(connection, sql, false, values);
+            } else {
+                preparedStatement = prepareStatement(connection, sql, false,
+                    Arrays.copyOf(values, values.length - 1));
+            }
+            int affectedRows = executeUpdate(preparedStatement, sql);
+            if (affectedRows == 0 && checkVersion) {
+                throw new OptimisticLockException("Updating user failed, version "
+                    + user.getVersion() + " is updated or deleted in the meantime.");
+            } else if (affectedRows == 0) {
+                throw new DAOException("Updating user failed, no rows affected.");
+            } else if (checkVersion) {
+                user.setVersion(user.getVersion() + 1);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement);
+        }
+    }
+
+    /**
+     * Update the given users in the database in one transaction, sending them in batches. The
+     * users with a version and the users without are sent in separate batches, since they need a
+     * different statement. Any failure rolls back the transaction, so none of the users is updated.
+     * @param users The users to be updated in the database.
+     * @throws IllegalArgumentException If any user ID is null or any user password is null.
+     * @throws OptimisticLockException If any user is updated or deleted in the meantime.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        List<User> checked = new ArrayList<User>();
+        List<User> unchecked = new ArrayList<User>();
+
+        for (User user : users) {
+            if (user.getId() == null) {
+                throw new IllegalArgumentException(
+                    "User is not created yet, the user ID is null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+            (versioned && user.getVersion() != null ? checked : unchecked).add(user);
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                updateBatches(connection, SQL_UPDATE_IF_VERSION, checked, true);
+                updateBatches(connection, versioned ? SQL_UPDATE_VERSIONED : SQL_UPDATE,
+                    unchecked, false);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } catch (DAOException e) {
+                connection.rollback();
+                throw e;
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection);
+        }
+
+        for (User user : checked) {
+            user.setVersion(user.getVersion() + 1);
+        }
+    }
+
+    /**
+     * Save the given user in the database. If the user ID is null, then it will invoke
+     * {@link #create(User)}, else it will invoke {@link #update(User)}.
+     * @param user The user to be saved in the database.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    /**
+     * Delete the given user from the database. After deleting, the DAO will set the ID of the given
+     * user to null. With optimistic locking, the version of the given user must be the current one.
+     * A user without version is deleted regardless.
+     * @param user The user to be deleted from the database.
+     * @throws OptimisticLockException If the user is updated or deleted in the meantime.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public void delete(User user) throws DAOException {
+        boolean checkVersion = versioned && user.getVersion() != null;
+        Object[] values = checkVersion
+            ? new Object[] { user.getId(), user.getVersion() }
+            : new Object[] { user.getId() };
+        String sql = checkVersion ? SQL_DELETE_IF_VERSION : SQL_DELETE;
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, sql, false, values);
+            int affectedRows = executeUpdate(preparedStatement, sql);
+            if (affectedRows == 0 && checkVersion) {
+                throw new OptimisticLockException("Deleting user failed, version "
+                    + user.getVersion() + " is updated or deleted in the meantime.");
+            } else if (affectedRows == 0) {
+                throw new DAOException("Deleting user failed, no rows affected.");
+            } else {
+                user.setId(null);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement);
+        }
+    }
+
+    /**
+     * Returns true if the given username exist in the database.
+     * @param username The username which is to be checked in the database.
+     * @return True if the given username exist in the database.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public boolean existUsername(String username) throws DAOException {
+        return exist(SQL_EXIST_USERNAME, username);
+    }
+
+    /**
+     * Returns true if the given email address exist in the database.
+     * @param email The email address which is to be checked in the database.
+     * @return True if the given email address exist in the database.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public boolean existEmail(String email) throws DAOException {
+        return exist(SQL_EXIST_EMAIL, email);
+    }
+
+    /**
+     * Returns true if the given SQL query with the given values returns at least one row.
+     * @param sql The SQL query to be executed in the database.
+     * @param values The PreparedStatement values to be set.
+     * @return True if the given SQL query with the given values returns at least one row.
+     * @throws DAOException If something fails at database level.
+     */
+    private boolean exist(String sql, Object... values) throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        boolean exist = false;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, sql, false, values);
+            resultSet = executeQuery(preparedStatement, sql);
+            exist = resultSet.next();
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        return exist;
+    }
+
+    /**
+     * Returns the amount of users in the database. The count is obtained by the database.
+     * @return The amount of users in the database.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public long count() throws DAOException {
+        return (Long) aggregate(SQL_COUNT, false);
+    }
+
+    /**
+     * Returns the amount of users in the database whose age is between the given ages, inclusive.
+     * The count is obtained by the database.
+     * @param minAge The minimum age, inclusive.
+     * @param maxAge The maximum age, inclusive.
+     * @return The amount of users in the database whose age is between the given ages.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException {
+        return (Long) aggregate(SQL_COUNT_BY_AGE_RANGE, false, minAge, maxAge);
+    }
+
+    /**
+     * Returns the age histogram of the users in the database. The buckets are grouped and counted
+     * by the database. The map key is the lowest age of the bucket and the map value is the amount
+     * of users in the bucket. Empty buckets and users without an age are left out.
+     * @param bucketWidth The amount of ages per bucket, e.g. 10 for buckets of 0-9, 10-19, etc.
+     * @return The age histogram of the users in the database.
+     * @throws IllegalArgumentException If the bucket width is less than 1.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth)
+        throws IllegalArgumentException, DAOException
+    {
+        if (bucketWidth < 1) {
+            throw new IllegalArgumentException("Bucket width must be at least 1.");
+        }
+
+        // The bucket width is inlined, because a GROUP BY on a placeholder is not portable.
+        String sql = String.format(SQL_AGE_HISTOGRAM, bucketWidth);
+        return (SortedMap<Integer, Long>) aggregate(sql, true);
+    }
+
+    /**
+     * Returns the amount of users in the database per lowercased email domain, ordered by amount,
+     * highest first. The domains are grouped and counted by the database.
+     * @return The amount of users in the database per lowercased email domain.
+     * @throws DAOException If something fails at database level.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        return (Map<String, Long>) aggregate(SQL_EMAIL_DOMAIN_COUNTS, true);
+    }
+
+    /**
+     * Returns the aggregate of the given SQL query with the given values. This is either a single
+     * count, or an unmodifiable map of group to count when the query returns two columns. Numeric
+     * groups are returned as Integer in a sorted map, other groups are kept in query order. The
+     * result is obtained from and put in the aggregate cache of the DAOFactory, if any.
+     * @param sql The SQL query to be executed in the database.
+     * @param grouped Whether the query returns a group and a count per row or a single count.
+     * @param values The PreparedStatement values to be set.
+     * @return The count or the unmodifiable map of group to count.
+     * @throws DAOException If something fails at database level.
+     */
+    private Object aggregate(String sql, boolean grouped, Object... values) throws DAOException {
+        AggregateCache aggregateCache = daoFactory.getAggregateCache();
+        String key = sql + Arrays.toString(values);
+        Object aggregate = aggregateCache != null ? aggregateCache.get(key) : null;
+
+        if (aggregate != null) {
+            return aggregate;
+        }
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+            connection = daoFactory.getConnection();
+            preparedStatement = prepareStatement(connection, sql, false, values);
+            resultSet = executeQuery(preparedStatement, sql);
+            DAOEvents.RowMapping event = new DAOEvents.RowMapping();
+            event.begin();
+            long rows = 0;
+
+            if (!grouped) {
+                rows = resultSet.next() ? 1 : 0;
+                aggregate = rows > 0 ? resultSet.getLong(1) : 0L;
+            } else {
+                SortedMap<Integer, Long> numericGroups = new TreeMap<Integer, Long>();
+                Map<String, Long> groups = new LinkedHashMap<String, Long>();
+                while (resultSet.next()) {
+                    rows++;
+                    Object group = resultSet.getObject(1);
+                    if (group instanceof Number) {
+                        numericGroups.put(((Number) group).intValue(), resultSet.getLong(2));
+                    } else {
+                        groups.put(String.valueOf(group), resultSet.getLong(2));
+                    }
+                }
+                aggregate = groups.isEmpty()
+                    ? Collections.unmodifiableSortedMap(numericGroups)
+                    : Collections.unmodifiableMap(groups);
+            }
+
+            event.finish(sql, rows);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            close(connection, preparedStatement, resultSet);
+        }
+
+        if (aggregateCache != null) {
+            aggregateCache.put(key, aggregate);
+        }
+
+        return aggregate;
+    }
+
+    /**
+     * Prepare all statements of this DAO on the given connection and close them again, so that
+     * a driver or pool with a statement cache has them cached for the first real requests. Package
+     * private so that it can be used by the warm-up of the DAOFactory only.
+     * @param connection The connection to prepare the statements on.
+     * @param versioned Whether to prepare the statements for optimistic locking.
+     * @throws SQLException If something fails at database level.
+     */
+    static void prepareStatements(Connection connection, boolean versioned) throws SQLException {
+        String[] sqls = versioned ? new String[] {
+            SQL_FIND_BY_ID_VERSIONED, SQL_FIND_BY_USERNAME_AND_PASSWORD_VERSIONED,
+            SQL_FIND_BY_USERNAME_VERSIONED, SQL_FIND_VERSION_BY_ID,
+            SQL_LIST_ORDER_BY_ID_VERSIONED, SQL_LIST_BY_ID_RANGE, SQL_MIN_MAX_ID, SQL_INSERT,
+            SQL_INSERT_WITH_ID, SQL_UPDATE_VERSIONED, SQL_UPDATE_IF_VERSION, SQL_DELETE,
+            SQL_DELETE_IF_VERSION, SQL_EXIST_USERNAME, SQL_EXIST_EMAIL, SQL_COUNT,
+            SQL_COUNT_BY_AGE_RANGE, SQL_EMAIL_DOMAIN_COUNTS
+        } : new String[] {
+            SQL_FIND_BY_ID, SQL_FIND_BY_USERNAME_AND_PASSWORD, SQL_FIND_BY_USERNAME,
+            SQL_LIST_ORDER_BY_ID, SQL_LIST_BY_ID_RANGE, SQL_MIN_MAX_ID, SQL_INSERT,
+            SQL_INSERT_WITH_ID, SQL_UPDATE, SQL_DELETE, SQL_EXIST_USERNAME, SQL_EXIST_EMAIL,
+            SQL_COUNT, SQL_COUNT_BY_AGE_RANGE, SQL_EMAIL_DOMAIN_COUNTS
+        };
+
+        for (String sql : sqls) {
+            // The insert is prepared for generated keys, like in create().
+            close(prepareStatement(connection, sql, sql == SQL_INSERT));
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Map the current row of the given ResultSet to an User.
+     * @param resultSet The ResultSet of which the current row is to be mapped to an User.
+     * @return The mapped User from the current row of the given ResultSet.
+     * @throws SQLException If something fails at database level.
+     */
+    private User mapUser(ResultSet resultSet) throws SQLException {
+        User user = new User(
+            resultSet.getLong("id"),
+            resultSet.getString("username"),
+            resultSet.getString("password"),
+            resultSet.getString("email"),
+            resultSet.getObject("age") != null ? resultSet.getInt("age") : null
+        );
+
+        if (versioned) {
+            user.setVersion(resultSet.getLong("version"));
+        }
+
+        return user;
+    }
+
+    /**
+     * Update the given users with the given SQL update statement in batches on the given connection
+     * and verify that every update affected a row.
+     * @param connection The connection in a transaction to update the users on.
+     * @param sql The SQL update statement, optionally with the version as last parameter.
+     * @param users The users to be updated.
+     * @param checkVersion Whether the SQL update statement checks the version.
+     * @throws OptimisticLockException If a user is updated or deleted in the meantime.
+     * @throws DAOException If a user does not exist.
+     * @throws SQLException If something fails at database level.
+     */
+    private void updateBatches(Connection connection, String sql, List<User> users,
+        boolean checkVersion) throws SQLException, DAOException
+    {
+        if (users.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement preparedStatement = null;
+
+        try {
+            preparedStatement = prepareStatement(connection, sql, false);
+
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                String password = hashMD5IfNecessary(user.getPassword());
+
+                if (checkVersion) {
+                    setValues(preparedStatement, user.getUsername(), password, user.getEmail(),
+                        user.getAge(), user.getId(), user.getVersion());
+                } else {
+                    setValues(preparedStatement, user.getUsername(), password, user.getEmail(),
+                        user.getAge(), user.getId());
+                }
+
+                preparedStatement.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0 || i + 1 == users.size()) {
+                    int start = i / BATCH_SIZE * BATCH_SIZE;
+                    int[] affectedRows = executeBatch(preparedStatement, sql);
+
+                    for (int j = 0; j < affectedRows.length; j++) {
+                        if (affectedRows[j] == 0 && checkVersion) {
+                            throw new OptimisticLockException("Updating user failed, version "
+                                + users.get(start + j).getVersion()
+                                + " is updated or deleted in the meantime.");
+                        } else if (affectedRows[j] == 0) {
+                            throw new DAOException("Updating user failed, no rows affected.");
+                        }
+                    }
+                }
+            }
+        } finally {
+            close(preparedStatement);
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The fork-join task which scans the given amount of partitions of the given ID range. It keeps
+     * splitting itself in halves until a single partition is left, which is then scanned.
+     */
+    private final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final UserHandler handler;
+        private final long fromId;
+        private final long toId;
+        private final int partitions;
+
+        private ScanTask(UserHandler handler, long fromId, long toId, int partitions) {
+            this.handler = handler;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.partitions = partitions;
+        }
+
+        @Override
+        protected void compute() {
+            if (partitions > 1) {
+                int half = partitions / 2;
+                long splitId = fromId + (toId - fromId + 1) / partitions * half;
+                invokeAll(new ScanTask(handler, fromId, splitId - 1, half),
+                    new ScanTask(handler, splitId, toId, partitions - half));
+            } else {
+                try {
+                    scan(SQL_LIST_BY_ID_RANGE, handler, fromId, toId);
+                } catch (DAOException e) {
+                    throw new ScanException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The cursor of a subscription of {@link UserDAOJDBC#publish(UserCriteria)}, which holds the
+     * connection, statement and ResultSet of the query until it is closed. The reading of the rows
+     * is recorded as one {@link DAOEvents.RowMapping} event, which therefore includes the time the
+     * subscriber spends on the users.
+     */
+    private final class ResultSetCursor implements UserPublisher.Cursor {
+        private final String sql;
+        private final DAOEvents.RowMapping event = new DAOEvents.RowMapping();
+        private Connection connection;
+        private PreparedStatement preparedStatement;
+        private ResultSet resultSet;
+        private boolean streaming;
+        private int fetchSize;
+        private long rows;
+
+        private ResultSetCursor(String sql, Object[] values, long demand) throws DAOException {
+            this.sql = sql;
+
+            try {
+                connection = daoFactory.getConnection();
+                preparedStatement = prepareStreamingStatement(connection, sql, values);
+                streaming = preparedStatement.getFetchSize() == Integer.MIN_VALUE;
+                if (!streaming) {
+                    fetchSize = fetchSizeOf(demand);
+                    preparedStatement.setFetchSize(fetchSize);
+                }
+                resultSet = executeQuery(preparedStatement, sql);
+            } catch (SQLException e) {
+                close();
+                throw new DAOException(e);
+            }
+
+            event.begin();
+        }
+
+        @Override
+        public User next(long demand) throws DAOException {
+            try {
+                if (!streaming && fetchSizeOf(demand) != fetchSize) {
+                    fetchSize = fetchSizeOf(demand);
+                    resultSet.setFetchSize(fetchSize);
+                }
+
+                if (!resultSet.next()) {
+                    return null;
+                }
+
+                rows++;
+                int age = resultSet.getInt(5);
+                Integer ageOrNull = resultSet.wasNull() ? null : Integer.valueOf(age);
+                User user = new User(resultSet.getLong(1), resultSet.getString(2),
+                    resultSet.getString(3), resultSet.getString(4), ageOrNull);
+                if (versioned) {
+                    user.setVersion(resultSet.getLong(6));
+                }
+                return user;
+            } catch (SQLException e) {
+                throw new DAOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (resultSet != null) {
+                event.finish(sql, rows);
+            }
+
+            DAOUtil.close(connection, preparedStatement, resultSet);
+            connection = null;
+            preparedStatement = null;
+            resultSet = null;
+        }
+
+        private int fetchSizeOf(long demand) {
+            return (int) Math.min(demand, PUBLISH_MAX_FETCH_SIZE);
+        }
+    }
+
+    /**
+     * Unchecked wrapper of the DAOException of a ScanTask, unwrapped again by the caller.
+     */
+    private static final class ScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ScanException(DAOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public DAOException getCause() {
+            return (DAOException) super.getCause();
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package mydao;
+
+import mymodel.User;
+
+/**
+ * This interface represents a contract for a listener of the writes through the User DAOs of a
+ * {@link DAOFactory}. Register it with {@link DAOFactory#addUserDAOListener(UserDAOListener)}.
+ * Listeners are invoked synchronously by the writing thread after the write has succeeded, so they
+ * must be fast and thread safe, and they must not modify the given user.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public interface UserDAOListener {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Invoked after the given user is created. The user ID is set.
+     * @param user The created user.
+     */
+    public void created(User user);
+
+    /**
+     * Invoked after the given user is updated.
+     * @param user The updated user.
+     */
+    public void updated(User user);
+
+    /**
+     * Invoked after the user with the given ID is deleted.
+     * @param id The ID of the deleted user.
+     * @param user The deleted user, whose ID is already reset to null.
+     */
+    public void deleted(Long id, User user);
+
+}
@@ -0,0 +1,733 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents an in-memory implementation of the {@link UserDAO} interface. It behaves
+ * like the 'user' table as described in {@link DAOTest}: the ID is generated on create, and the
+ * username and email address are UNIQUE, whereby multiple null email addresses are allowed.
+ * Constraint violations are thrown as a DAOException wrapping a SQLException with the same SQL
+ * state and error code as MySQL would return, so callers can't tell the difference. Users always
+ * have a version for optimistic locking, as if the table has the version column as described in
+ * {@link DAOFactory}.
+ * <p>
+ * Users are kept as private copies in a concurrent primary index on ID, which is ordered so that
+ * {@link #list()} needs no sorting, and two concurrent unique secondary indexes on username and
+ * email address. Reads are lock-free. Writes reserve new secondary keys with an atomic putIfAbsent
+ * and are only serialized per lock stripe of the user ID, so writes of different users do not
+ * contend with each other.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserDAOMemory implements UserDAO {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int LOCK_STRIPES = 64; // Must be a power of two.
+    private static final String SQL_STATE_INTEGRITY_CONSTRAINT_VIOLATION = "23000";
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final int ER_BAD_NULL_ERROR = 1048;
+    private static final Long INITIAL_VERSION = 0L;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final IdGenerator idGenerator;
+    private final AtomicLong count = new AtomicLong(); // The size() of a skip list is O(n).
+    private final ConcurrentNavigableMap<Long, User> usersById =
+        new ConcurrentSkipListMap<Long, User>();
+    private final ConcurrentMap<String, Long> idsByUsername = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, Long> idsByEmail = new ConcurrentHashMap<String, Long>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an empty in-memory User DAO which generates the IDs 1, 2, 3, etc. Package private
+     * so that it can be constructed inside the DAO package only.
+     */
+    UserDAOMemory() {
+        this(1, 1);
+    }
+
+    /**
+     * Construct an empty in-memory User DAO which generates the IDs offset, offset + increment,
+     * offset + 2 * increment, etc, like MySQL does with the 'auto_increment_offset' and
+     * 'auto_increment_increment' variables. Package private so that it can be constructed inside
+     * the DAO package only.
+     * @param offset The first ID to generate.
+     * @param increment The difference between subsequently generated IDs.
+     */
+    UserDAOMemory(final long offset, final long increment) {
+        this(new IdGenerator() {
+            private final AtomicLong sequence = new AtomicLong(offset);
+
+            public long nextId() {
+                return sequence.getAndAdd(increment);
+            }
+        });
+    }
+
+    /**
+     * Construct an empty in-memory User DAO which obtains the IDs from the given ID generator.
+     * Package private so that it can be constructed inside the DAO package only.
+     * @param idGenerator The ID generator to obtain the IDs from.
+     */
+    UserDAOMemory(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public User find(Long id) throws DAOException {
+        return id != null ? copy(usersById.get(id)) : null;
+    }
+
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        User stored = usersById.get(user.getId());
+
+        if (stored != null && user.getVersion() != null
+            && user.getVersion().equals(stored.getVersion()))
+        {
+            return user;
+        }
+
+        return copy(stored);
+    }
+
+    @Override
+    public User find(String username, String password) throws DAOException {
+        User user = findStored(idsByUsername, username);
+        return user != null && user.getPassword().equals(hashMD5(password)) ? copy(user) : null;
+    }
+
+    @Override
+    public User findByName(String username) throws DAOException {
+        return copy(findStored(idsByUsername, username));
+    }
+
+    @Override
+    public List<User> list() throws DAOException {
+        List<User> users = new ArrayList<User>();
+
+        for (User user : usersById.values()) {
+            users.add(copy(user));
+        }
+
+        return users;
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria) throws DAOException {
+        List<User> users = new ArrayList<User>();
+
+        for (User user : select(criteria)) {
+            users.add(copy(user));
+        }
+
+        return users;
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        for (User user : select(criteria)) {
+            handler.handle(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+                user.getAge());
+        }
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return DAOUtil.listCompact(this, criteria);
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return DAOUtil.list(this, criteria, fields);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        scan(criteria, DAOUtil.project(fields, handler));
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return LazyUser.list(this, criteria, fields);
+    }
+
+    /**
+     * Returns a publisher of the users matching the given criteria. There is no database cursor,
+     * so every subscription lists the matching users on the first request and publishes them as
+     * they are requested.
+     */
+    @Override
+    public Flow.Publisher<User> publish(final UserCriteria criteria) {
+        return new UserPublisher() {
+            @Override
+            Cursor open(long demand) throws DAOException {
+                final Iterator<User> users = list(criteria).iterator();
+
+                return new Cursor() {
+                    public User next(long demand) {
+                        return users.hasNext() ? users.next() : null;
+                    }
+
+                    public void close() {
+                        // Nothing to release.
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        for (User user : usersById.values()) {
+            handler.handle(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+                user.getAge());
+        }
+    }
+
+    @Override
+    public void parallelScan(int parallelism, final UserHandler handler) throws DAOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // The spliterator of the skip list splits itself by ID range.
+            pool.submit(new Runnable() {
+                public void run() {
+                    usersById.values().parallelStream().forEach(new Consumer<User>() {
+                        public void accept(User user) {
+                            handler.handle(user.getId(), user.getUsername(), user.getPassword(),
+                                user.getEmail(), user.getAge());
+                        }
+                    });
+                }
+            }).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() != null) {
+            throw new IllegalArgumentException("User is already created, the user ID is not null.");
+        }
+
+        User stored = store(idGenerator.nextId(), user, INITIAL_VERSION);
+        Long id = stored.getId();
+        reserve(idsByUsername, "username", stored.getUsername(), id);
+
+        try {
+            reserve(idsByEmail, "email", stored.getEmail(), id);
+        } catch (DAOException e) {
+            release(idsByUsername, stored.getUsername(), id);
+            throw e;
+        }
+
+        usersById.put(id, stored);
+        count.incrementAndGet();
+        user.setId(id);
+        user.setVersion(INITIAL_VERSION);
+    }
+
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        for (User user : users) {
+            if (user.getId() != null) {
+                throw new IllegalArgumentException(
+                    "User is already created, the user ID is not null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+        }
+
+        List<User> created = new ArrayList<User>();
+
+        try {
+            for (User user : users) {
+                create(user);
+                created.add(user);
+            }
+        } catch (DAOException e) {
+            rollbackCreated(created, e);
+            throw e;
+        } catch (RuntimeException e) {
+            rollbackCreated(created, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void update(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        Long id = user.getId();
+        Long version = user.getVersion();
+
+        synchronized (lock(id)) {
+            User old = usersById.get(id);
+            if (version != null && (old == null || !version.equals(old.getVersion()))) {
+                throw new OptimisticLockException("Updating user failed, version " + version
+                    + " is updated or deleted in the meantime.");
+            } else if (old == null) {
+                throw new DAOException("Updating user failed, no rows affected.");
+            }
+
+            replace(id, old, store(id, user, old.getVersion() + 1));
+        }
+
+        if (version != null) {
+            user.setVersion(version + 1);
+        }
+    }
+
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        for (User user : users) {
+            if (user.getId() == null) {
+                throw new IllegalArgumentException(
+                    "User is not created yet, the user ID is null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+        }
+
+        List<User> originals = new ArrayList<User>();
+        List<User> updated = new ArrayList<User>();
+
+        try {
+            for (User user : users) {
+                // Under the lock, so that the original is the one which is updated.
+                synchronized (lock(user.getId())) {
+                    User original = usersById.get(user.getId());
+                    update(user);
+                    originals.add(original);
+                    updated.add(usersById.get(user.getId()));
+                }
+            }
+        } catch (DAOException e) {
+            rollbackUpdated(users, originals, updated, e);
+            throw e;
+        } catch (RuntimeException e) {
+            rollbackUpdated(users, originals, updated, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    @Override
+    public void delete(User user) throws DAOException {
+        Long id = user.getId();
+        Long version = user.getVersion();
+        User old = null;
+
+        if (id != null) {
+            synchronized (lock(id)) {
+                old = usersById.get(id);
+                if (version != null && (old == null || !version.equals(old.getVersion()))) {
+                    throw new OptimisticLockException("Deleting user failed, version " + version
+                        + " is updated or deleted in the meantime.");
+                } else if (old != null) {
+                    usersById.remove(id);
+                    count.decrementAndGet();
+                    release(idsByUsername, old.getUsername(), id);
+                    release(idsByEmail, old.getEmail(), id);
+                }
+            }
+        }
+
+        if (old == null) {
+            throw new DAOException("Deleting user failed, no rows affected.");
+        } else {
+            user.setId(null);
+        }
+    }
+
+    @Override
+    public boolean existUsername(String username) throws DAOException {
+        return username != null && idsByUsername.containsKey(username);
+    }
+
+    @Override
+    public boolean existEmail(String email) throws DAOException {
+        return email != null && idsByEmail.containsKey(email);
+    }
+
+    @Override
+    public long count() throws DAOException {
+        return count.get();
+    }
+
+    @Override
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException {
+        long count = 0;
+
+        for (User user : usersById.values()) {
+            Integer age = user.getAge();
+            if (age != null && age >= minAge && age <= maxAge) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth)
+        throws IllegalArgumentException, DAOException
+    {
+        if (bucketWidth < 1) {
+            throw new IllegalArgumentException("Bucket width must be at least 1.");
+        }
+
+        SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+
+        for (User user : usersById.values()) {
+            if (user.getAge() != null) {
+                increment(histogram, Math.floorDiv(user.getAge(), bucketWidth) * bucketWidth);
+            }
+        }
+
+        return Collections.unmodifiableSortedMap(histogram);
+    }
+
+    @Override
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        Map<String, Long> counts = new HashMap<String, Long>();
+
+        for (User user : usersById.values()) {
+            String email = user.getEmail();
+            if (email != null) {
+                increment(counts, email.substring(email.indexOf('@') + 1).toLowerCase());
+            }
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+            counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                return second.getValue().compareTo(first.getValue());
+            }
+        });
+
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+
+        return Collections.unmodifiableMap(sorted);
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the stored user referenced by the given key in the given secondary index, otherwise
+     * null. The stored user must not be modified nor exposed, so copy it first.
+     * @param index The secondary index to look up the user ID in.
+     * @param key The key of the secondary index.
+     * @return The stored user referenced by the given key in the given secondary index.
+     */
+    private User findStored(ConcurrentMap<String, Long> index, String key) {
+        Long id = key != null ? index.get(key) : null;
+        return id != null ? usersById.get(id) : null;
+    }
+
+    /**
+     * Reserve the given key in the given unique secondary index for the given user ID. Null keys
+     * are not indexed, like SQL UNIQUE allows multiple nulls.
+     * @param index The unique secondary index to reserve the key in.
+     * @param column The column name of the index, used in the exception message.
+     * @param key The key to be reserved.
+     * @param id The user ID to reserve the key for.
+     * @throws DAOException If the key is already reserved for another user ID.
+     */
+    private static void reserve
+        (ConcurrentMap<String, Long> index, String column, String key, Long id)
+            throws DAOException
+    {
+        if (key != null && index.putIfAbsent(key, id) != null) {
+            throw new DAOException(new SQLIntegrityConstraintViolationException(
+                "Duplicate entry '" + key + "' for key '" + column + "'",
+                SQL_STATE_INTEGRITY_CONSTRAINT_VIOLATION, ER_DUP_ENTRY));
+        }
+    }
+
+    /**
+     * Release the given key in the given unique secondary index if it is reserved for the given
+     * user ID.
+     * @param index The unique secondary index to release the key in.
+     * @param key The key to be released.
+     * @param id The user ID the key should be reserved for.
+     */
+    private static void release(ConcurrentMap<String, Long> index, String key, Long id) {
+        if (key != null) {
+            index.remove(key, id);
+        }
+    }
+
+    /**
+     * Replace the given old stored user by the given new stored user with the same ID in all
+     * indexes. The caller must hold the lock of the ID.
+     * @param id The ID of the user.
+     * @param old The currently stored user.
+     * @param stored The user to be stored instead.
+     * @throws DAOException If the new username or email address is already taken.
+     */
+    private void replace(Long id, User old, User stored) throws DAOException {
+        boolean usernameChanged = !stored.getUsername().equals(old.getUsername());
+        boolean emailChanged = !equals(stored.getEmail(), old.getEmail());
+
+        if (usernameChanged) {
+            reserve(idsByUsername, "username", stored.getUsername(), id);
+        }
+
+        if (emailChanged) {
+            try {
+                reserve(idsByEmail, "email", stored.getEmail(), id);
+            } catch (DAOException e) {
+                if (usernameChanged) {
+                    release(idsByUsername, stored.getUsername(), id);
+                }
+                throw e;
+            }
+        }
+
+        usersById.put(id, stored);
+
+        if (usernameChanged) {
+            release(idsByUsername, old.getUsername(), id);
+        }
+        if (emailChanged) {
+            release(idsByEmail, old.getEmail(), id);
+        }
+    }
+
+    /**
+     * Returns a copy of the given user suitable for storage under the given ID and version, with
+     * the password hashed the same way as the JDBC implementation does.
+     * @param id The ID to store the user under.
+     * @param user The user to be stored.
+     * @param version The version to store the user with.
+     * @return A copy of the given user suitable for storage.
+     * @throws DAOException If the user does not satisfy the NOT NULL constraints.
+     */
+    private static User store(Long id, User user, Long version) throws DAOException {
+        checkNotNull("username", user.getUsername());
+        checkNotNull("password", user.getPassword());
+        User stored = new User(id, user.getUsername(), hashMD5IfNecessary(user.getPassword()),
+            user.getEmail(), user.getAge());
+        stored.setVersion(version);
+        return stored;
+    }
+
+    /**
+     * Check if the given value of the given NOT NULL column is not null.
+     * @param column The column name, used in the exception message.
+     * @param value The value to be checked.
+     * @throws DAOException If the value is null.
+     */
+    private static void checkNotNull(String column, Object value) throws DAOException {
+        if (value == null) {
+            throw new DAOException(new SQLIntegrityConstraintViolationException(
+                "Column '" + column + "' cannot be null",
+                SQL_STATE_INTEGRITY_CONSTRAINT_VIOLATION, ER_BAD_NULL_ERROR));
+        }
+    }
+
+    /**
+     * Roll back the given created users, like the transaction of the JDBC implementation does. A
+     * user which cannot be deleted anymore, because it is changed or deleted in the meantime, is
+     * reported as suppressed exception of the given failure.
+     * @param created The created users, in the order of creation.
+     * @param failure The failure which caused the roll back.
+     */
+    private void rollbackCreated(List<User> created, Exception failure) {
+        for (User user : created) {
+            try {
+                delete(user);
+            } catch (DAOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Roll back the given updated users, like the transaction of the JDBC implementation does,
+     * including the versions. A user is only restored as long as it is not changed in the
+     * meantime, otherwise the concurrent change is kept and reported as suppressed exception of
+     * the given failure, like a restore which fails on a unique constraint.
+     * @param users The users to be updated, of which the first ones are updated.
+     * @param originals The stored users before the update, in the order of the given users.
+     * @param updated The stored users after the update, in the order of the given users.
+     * @param failure The failure which caused the roll back.
+     */
+    private void rollbackUpdated(List<User> users, List<User> originals, List<User> updated,
+        Exception failure)
+    {
+        for (int i = originals.size() - 1; i >= 0; i--) {
+            Long id = originals.get(i).getId();
+
+            synchronized (lock(id)) {
+                if (usersById.get(id) != updated.get(i)) {
+                    failure.addSuppressed(new DAOException("Rolling back the update of user " + id
+                        + " failed, it is changed or deleted in the meantime."));
+                    continue;
+                }
+
+                try {
+                    replace(id, updated.get(i), originals.get(i));
+                } catch (DAOException e) {
+                    // Original username or email is taken by another user in the meantime.
+                    failure.addSuppressed(e);
+                    continue;
+                }
+            }
+
+            Long version = users.get(i).getVersion();
+            if (version != null) {
+                users.get(i).setVersion(version - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the stored users matching the given criteria, in the order of the given criteria.
+     * @param criteria The criteria the users must match.
+     * @return The stored users matching the given criteria.
+     */
+    private List<User> select(UserCriteria criteria) {
+        List<User> selected = new ArrayList<User>();
+
+        if (criteria.getMinId() > criteria.getMaxId()) {
+            return selected;
+        }
+
+        // Like the primary key in the database, only the matching ID range is visited.
+        Iterable<User> range = usersById.subMap(
+            criteria.getMinId(), true, criteria.getMaxId(), true).values();
+        Iterable<User> matches;
+
+        if (criteria.isNaturalOrder()) {
+            matches = range;
+        } else {
+            List<User> sorted = new ArrayList<User>();
+            for (User user : range) {
+                if (criteria.matches(user)) {
+                    sorted.add(user);
+                }
+            }
+            Collections.sort(sorted, criteria.getComparator());
+            matches = sorted;
+        }
+
+        long skip = criteria.getOffset();
+        long remaining = criteria.getLimit() >= 0 ? criteria.getLimit() : Long.MAX_VALUE;
+
+        for (User user : matches) {
+            if (remaining == 0) {
+                break;
+            } else if (!criteria.matches(user)) {
+                continue;
+            } else if (skip > 0) {
+                skip--;
+                continue;
+            }
+            selected.add(user);
+            remaining--;
+        }
+
+        return selected;
+    }
+
+    /**
+     * Returns a copy of the given stored user, or null if it is null.
+     * @param user The stored user to be copied.
+     * @return A copy of the given stored user.
+     */
+    private static User copy(User user) {
+        if (user == null) {
+            return null;
+        }
+
+        User copy = new User(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+            user.getAge());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+    /**
+     * Increment the count of the given key in the given map.
+     */
+    private static <K> void increment(Map<K, Long> counts, K key) {
+        Long count = counts.get(key);
+        counts.put(key, count != null ? count + 1 : 1L);
+    }
+
+    /**
+     * Returns the lock stripe guarding writes of the given user ID.
+     * @param id The user ID to return the lock stripe for.
+     * @return The lock stripe guarding writes of the given user ID.
+     */
+    private Object lock(Long id) {
+        long hash = id.longValue();
+        return locks[(int) (hash ^ (hash >>> 32)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Returns true if both given objects are null or equal to each other.
+     */
+    private static boolean equals(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package mydao;
+
+import java.io.BufferedWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import mymodel.User;
+
+/**
+ * Benchmark of {@link UserExporter} against the old way of exporting: writing the toString() of
+ * every user of {@link UserDAO#list()}. For each it reports the throughput in MB/s, the bytes
+ * allocated on the heap and the peak heap usage during the export.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -Xmx8g mydao.UserExportBenchmark [name] [rows] [CSV|NDJSON] [gzip]
+ * </pre>
+ * The name is the database name of the DAOFactory and defaults to 'javabase.memory'. The rows is
+ * the minimum amount of users and defaults to 10000000; missing users are created first. Note that
+ * the in-memory database and the list() baseline both need several GB of heap for 10M rows.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserExportBenchmark {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final double MB = 1000 * 1000;
+
+    // Actions ------------------------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        String name = args.length > 0 ? args[0] : "javabase.memory";
+        long rows = args.length > 1 ? Long.parseLong(args[1]) : 10000000L;
+        UserExporter.Format format = args.length > 2
+            ? UserExporter.Format.valueOf(args[2]) : UserExporter.Format.CSV;
+        boolean gzip = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        UserDAO userDAO = DAOFactory.getInstance(name).getUserDAO();
+        populate(userDAO, rows);
+
+        Path file = Files.createTempFile("users", gzip ? ".gz" : ".txt");
+        try {
+            for (int run = 1; run <= 2; run++) {
+                System.out.println("Run " + run + (run == 1 ? " (warm-up)" : ""));
+                measure("list() + toString()", file, new Export() {
+                    public void run(UserDAO userDAO, Path file) throws Exception {
+                        exportToString(userDAO, file);
+                    }
+                }, userDAO);
+                final UserExporter exporter = new UserExporter(format, gzip);
+                measure("UserExporter " + format + (gzip ? " gzip" : ""), file, new Export() {
+                    public void run(UserDAO userDAO, Path file) throws Exception {
+                        exporter.export(userDAO, file);
+                    }
+                }, userDAO);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Create users until the given User DAO has at least the given amount of users.
+     */
+    static void populate(UserDAO userDAO, long rows) throws DAOException {
+        final long[] count = new long[1];
+        userDAO.scan(new UserHandler() {
+            public void handle
+                (long id, String username, String password, String email, Integer age)
+            {
+                count[0]++;
+            }
+        });
+
+        System.out.println("Creating " + Math.max(0, rows - count[0]) + " users ...");
+        String password = DAOUtil.hashMD5("password");
+        String prefix = Long.toString(System.currentTimeMillis() % 46656, 36) + "_";
+        for (long i = count[0]; i < rows; i++) {
+            String username = prefix + Long.toString(i, 36);
+            userDAO.create(new User(null, username, password, username + "@example.com",
+                (int) (i % 100)));
+        }
+    }
+
+    /**
+     * The old way of exporting the users.
+     */
+    private static void exportToString(UserDAO userDAO, Path file) throws Exception {
+        List<User> users = userDAO.list();
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        try {
+            for (User user : users) {
+                writer.write(user.toString());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Run the given export and print the throughput, the allocated bytes and the peak heap usage.
+     */
+    private static void measure(String label, Path file, Export export, UserDAO userDAO)
+        throws Exception
+    {
+        System.gc();
+        long heapBefore = usedHeap();
+        resetPeakHeap();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        export.run(userDAO, file);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long peakHeap = peakHeap() - heapBefore;
+        long size = Files.size(file);
+
+        System.out.printf("  %-28s %8.1f MB in %6.2f s = %7.1f MB/s, allocated %8.1f MB,"
+            + " peak heap +%8.1f MB%n", label, size / MB, seconds, size / MB / seconds,
+            allocated / MB, peakHeap / MB);
+    }
+
+    static long usedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the peak usages of the heap pools. This overestimates the real peak when
+     * the pools peaked at different moments, but it is good enough to compare the exports.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, or 0 if the JVM can't tell.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    private interface Export {
+        void run(UserDAO userDAO, Path file) throws Exception;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,327 @@
+package mydao;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports all users of an {@link UserDAO} to a CSV or NDJSON file. It is built on top of
+ * {@link UserDAO#scan(UserHandler)}, so the users are streamed from the database and never mapped
+ * to User DTOs nor collected in memory. The column values are encoded as UTF-8 directly into a
+ * reusable ByteBuffer, which is written through a FileChannel whenever it is full, optionally via
+ * gzip. The memory usage is therefore constant, regardless of the amount of users.
+ * <p>
+ * Here is a basic use example:
+ * <pre>
+ * UserExporter exporter = new UserExporter(UserExporter.Format.CSV, true);
+ * long rows = exporter.export(userDAO, Paths.get("users.csv.gz"));
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserExporter {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] CSV_HEADER = ascii("id,username,password,email,age\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] JSON_ID = ascii("{\"id\":");
+    private static final byte[] JSON_USERNAME = ascii(",\"username\":");
+    private static final byte[] JSON_PASSWORD = ascii(",\"password\":");
+    private static final byte[] JSON_EMAIL = ascii(",\"email\":");
+    private static final byte[] JSON_AGE = ascii(",\"age\":");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    /**
+     * The supported export formats.
+     */
+    public enum Format {
+
+        /** Comma separated values as per RFC 4180, with a header row. */
+        CSV,
+
+        /** Newline delimited JSON, one JSON object per user. */
+        NDJSON;
+
+    }
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private Format format;
+    private boolean gzip;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an user exporter for the given format.
+     * @param format The format to export the users in.
+     * @param gzip Set whether to gzip the exported file or not.
+     */
+    public UserExporter(Format format, boolean gzip) {
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Export all users of the given User DAO to the given file. An existing file is overwritten.
+     * @param userDAO The User DAO to export all users of.
+     * @param file The file to export the users to.
+     * @return The amount of exported users.
+     * @throws DAOException If something fails at database level.
+     * @throws IOException If writing the file fails.
+     */
+    public long export(UserDAO userDAO, Path file) throws DAOException, IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+            OutputStream gzipStream = gzip
+                ? new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE) : null;
+            Encoder encoder = new Encoder(channel, gzipStream);
+
+            if (format == Format.CSV) {
+                encoder.put(CSV_HEADER);
+            }
+
+            try {
+                userDAO.scan(encoder);
+                encoder.flush();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            if (gzipStream != null) {
+                gzipStream.close();
+            }
+            return encoder.rows;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private static byte[] ascii(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        return bytes;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The handler which encodes the streamed column values into the buffer.
+     */
+    private final class Encoder implements UserHandler {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] digits = new byte[20];
+        private final FileChannel channel;
+        private final OutputStream gzipStream;
+        private long rows;
+
+        private Encoder(FileChannel channel, OutputStream gzipStream) {
+            this.channel = channel;
+            this.gzipStream = gzipStream;
+        }
+
+        @Override
+        public void handle(long id, String username, String password, String email, Integer age) {
+            if (format == Format.CSV) {
+                putLong(id);
+                put((byte) ',');
+                putCsv(username);
+                put((byte) ',');
+                putCsv(password);
+                put((byte) ',');
+                putCsv(email);
+                put((byte) ',');
+                if (age != null) {
+                    putLong(age);
+                }
+            } else {
+                put(JSON_ID);
+                putLong(id);
+                put(JSON_USERNAME);
+                putJson(username);
+                put(JSON_PASSWORD);
+                putJson(password);
+                put(JSON_EMAIL);
+                putJson(email);
+                put(JSON_AGE);
+                if (age != null) {
+                    putLong(age);
+                } else {
+                    put(NULL);
+                }
+                put((byte) '}');
+            }
+
+            put((byte) '\n');
+            rows++;
+        }
+
+        /**
+         * Put the given value as CSV field. It is only quoted when necessary. Null is left empty.
+         */
+        private void putCsv(String value) {
+            if (value == null) {
+                return;
+            }
+
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+
+            if (!quote) {
+                putUtf8(value);
+                return;
+            }
+
+            put((byte) '"');
+            for (int i = 0; i < value.length();) {
+                if (value.charAt(i) == '"') {
+                    put((byte) '"');
+                }
+                i += putUtf8(value, i);
+            }
+            put((byte) '"');
+        }
+
+        /**
+         * Put the given value as JSON string, or as JSON null if it is null.
+         */
+        private void putJson(String value) {
+            if (value == null) {
+                put(NULL);
+                return;
+            }
+
+            put((byte) '"');
+            for (int i = 0; i < value.length();) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    put((byte) '\\');
+                    put((byte) c);
+                    i++;
+                } else if (c < 0x20) {
+                    put((byte) '\\');
+                    put((byte) 'u');
+                    put((byte) '0');
+                    put((byte) '0');
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xf]);
+                    i++;
+                } else {
+                    i += putUtf8(value, i);
+                }
+            }
+            put((byte) '"');
+        }
+
+        private void putUtf8(String value) {
+            for (int i = 0; i < value.length();) {
+                i += putUtf8(value, i);
+            }
+        }
+
+        /**
+         * Put the character at the given index of the given value as UTF-8 and return the amount
+         * of chars consumed, which is 2 for a surrogate pair and otherwise 1.
+         */
+        private int putUtf8(String value, int index) {
+            char c = value.charAt(index);
+
+            if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xc0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                int codePoint = value.codePointAt(index);
+                if (Character.isSupplementaryCodePoint(codePoint)) {
+                    put((byte) (0xf0 | (codePoint >> 18)));
+                    put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                    put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                    put((byte) (0x80 | (codePoint & 0x3f)));
+                    return 2;
+                } else {
+                    put((byte) '?'); // Unpaired surrogate, can't be encoded.
+                }
+            } else {
+                put((byte) (0xe0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                put((byte) (0x80 | (c & 0x3f)));
+            }
+
+            return 1;
+        }
+
+        /**
+         * Put the given value as decimal digits, without creating a String first.
+         */
+        private void putLong(long value) {
+            if (value < 0) {
+                put((byte) '-');
+            }
+
+            int length = 0;
+            do {
+                digits[length++] = (byte) ('0' + Math.abs(value % 10));
+                value /= 10;
+            } while (value != 0);
+
+            while (length > 0) {
+                put(digits[--length]);
+            }
+        }
+
+        private void put(byte[] bytes) {
+            for (byte b : bytes) {
+                put(b);
+            }
+        }
+
+        private void put(byte b) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(b);
+        }
+
+        /**
+         * Write the buffer to the file and clear it for reuse.
+         */
+        private void flush() {
+            buffer.flip();
+
+            try {
+                if (gzipStream != null) {
+                    gzipStream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                } else {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            buffer.clear();
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+package mydao;
+
+/**
+ * This enum represents the optional columns of the 'user' table, to select a projection of the
+ * users with {@link UserDAO#list(UserCriteria, java.util.Set)} or
+ * {@link UserDAO#scan(UserCriteria, java.util.Set, UserHandler)}. The ID is always selected.
+ * <p>
+ * Here is a basic use example, which lists the users without sending their password hashes over
+ * the wire:
+ * <pre>
+ * List&lt;User&gt; users = userDAO.list(criteria, EnumSet.of(UserField.USERNAME, UserField.EMAIL));
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public enum UserField {
+
+    /** The username. */
+    USERNAME("username"),
+
+    /** The password hash. */
+    PASSWORD("password"),
+
+    /** The email address. */
+    EMAIL("email"),
+
+    /** The age. */
+    AGE("age");
+
+    // Properties ---------------------------------------------------------------------------------
+
+    private final String column;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private UserField(String column) {
+        this.column = column;
+    }
+
+    // Getters ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the column name of this field. Package private so that it can be used inside the DAO
+     * package only.
+     * @return The column name of this field.
+     */
+    String getColumn() {
+        return column;
+    }
+
+}
@@ -0,0 +1,26 @@
+package mydao;
+
+/**
+ * This interface represents a callback which receives the column values of users as streamed by
+ * {@link UserDAO#scan(UserHandler)}. The values are passed as is, without mapping them to an User
+ * DTO first, so that bulk consumers such as {@link UserExporter} do not need to allocate an User
+ * for every row.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public interface UserHandler {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Handle the given column values of an user.
+     * @param id The ID of the user.
+     * @param username The username of the user.
+     * @param password The password hash of the user.
+     * @param email The email address of the user, may be null.
+     * @param age The age of the user, may be null.
+     */
+    public void handle(long id, String username, String password, String email, Integer age);
+
+}
\ No newline at end of file
@@ -0,0 +1,996 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mymodel.User;
+
+/**
+ * This class imports users from a CSV file as produced by {@link UserExporter} into the database of
+ * a {@link DAOFactory}. The first row must be a header naming the columns; the 'username' and
+ * 'password' columns are required, the 'email' and 'age' columns are optional and any other
+ * columns such as 'id' are ignored. Passwords which are not an MD5 hash yet are hashed.
+ * <p>
+ * The import runs as a pipeline of three stages, connected by bounded queues so that a slow stage
+ * applies backpressure to the stages before it:
+ * <ol>
+ * <li>A reader which parses the file into chunks of records.</li>
+ * <li>Parallel workers which validate the records and hash the passwords.</li>
+ * <li>Parallel writers, each with its own connection, which insert a chunk per transaction in a
+ * JDBC batch, or by MySQL's LOAD DATA LOCAL INFILE when enabled and allowed by the server.</li>
+ * </ol>
+ * When the DAOFactory has an {@link IdGenerator}, the writers assign the IDs from it and LOAD DATA
+ * is not used, since the IDs would otherwise be assigned by the AUTO_INCREMENT of the database.
+ * Records which are invalid or which violate a UNIQUE constraint are written to the reject file
+ * along with their record number and the reason. When a batch fails on a UNIQUE constraint, the
+ * chunk is rolled back and retried row by row to find the culprits.
+ * <p>
+ * Every committed chunk is recorded in the checkpoint file. When the import is started again with
+ * the same checkpoint file and chunk size, then the committed chunks are skipped, so an aborted
+ * import can be resumed. Only chunks which were retried row by row may be partially committed;
+ * their committed rows end up in the reject file as duplicates when the chunk is imported again.
+ * <p>
+ * Here is a basic use example:
+ * <pre>
+ * UserImporter importer = new UserImporter(DAOFactory.getInstance("javabase.jdbc"));
+ * importer.setWriters(4);
+ * UserImporter.Result result = importer.importFile(csv, rejects, checkpoint);
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserImporter {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String SQL_INSERT =
+        "INSERT INTO user (username, password, email, age) VALUES (?, ?, ?, ?)";
+    private static final String SQL_INSERT_WITH_ID =
+        "INSERT INTO user (id, username, password, email, age) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_LOAD_DATA =
+        "LOAD DATA LOCAL INFILE '%s' INTO TABLE user CHARACTER SET utf8mb4"
+            + " FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'"
+            + " (username, password, email, age)";
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final int ER_NOT_ALLOWED_COMMAND = 1148;
+    private static final int ER_CLIENT_LOCAL_FILES_DISABLED = 3948;
+    private static final int CR_LOAD_DATA_LOCAL_INFILE_REJECTED = 2068;
+    private static final int MAX_USERNAME_LENGTH = 15;
+    private static final int MAX_EMAIL_LENGTH = 60;
+    private static final int MAX_AGE = 999;
+    private static final Chunk END = new Chunk(-1, -1);
+
+    // Properties ---------------------------------------------------------------------------------
+
+    private DAOFactory daoFactory;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int writers = 4;
+    private int chunkSize = 1000;
+    private int queueCapacity = 16;
+    private boolean loadData = true;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an user importer for the given DAOFactory.
+     * @param daoFactory The DAOFactory whose database the users are to be imported in.
+     */
+    public UserImporter(DAOFactory daoFactory) {
+        this.daoFactory = daoFactory;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Import the users of the given CSV file. Rejected records are appended to the given reject
+     * file. Committed chunks are recorded in the given checkpoint file and are skipped when it
+     * already exists.
+     * @param file The CSV file to import the users from.
+     * @param rejectFile The file to append the rejected records to.
+     * @param checkpointFile The file to record the committed chunks in.
+     * @return The result of the import.
+     * @throws IllegalArgumentException If the CSV file lacks required columns, or if the checkpoint
+     * file was written with another chunk size.
+     * @throws IOException If reading or writing any of the files fails.
+     * @throws DAOException If something fails at database level.
+     */
+    public Result importFile(Path file, Path rejectFile, Path checkpointFile)
+        throws IllegalArgumentException, IOException, DAOException
+    {
+        long start = System.nanoTime();
+        final Pipeline pipeline = new Pipeline(rejectFile, new Checkpoint(checkpointFile));
+        ExecutorService executor = Executors.newFixedThreadPool(workers + writers);
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        pipeline.validate();
+                    }
+                });
+            }
+            for (int i = 0; i < writers; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        pipeline.write();
+                    }
+                });
+            }
+            pipeline.read(file);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            pipeline.rejects.close();
+        }
+
+        pipeline.rethrow();
+        return new Result(pipeline.imported.get(), pipeline.rejected.get(), pipeline.skipped,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Setters ------------------------------------------------------------------------------------
+
+    /**
+     * Sets the amount of validation and hashing workers. Defaults to the amount of processors.
+     * @param workers The amount of validation and hashing workers.
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Sets the amount of writers, each with its own connection. Defaults to 4.
+     * @param writers The amount of writers.
+     */
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * Sets the amount of records per chunk, which is also the amount of rows per transaction.
+     * Defaults to 1000. A resumed import must use the same chunk size.
+     * @param chunkSize The amount of records per chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the capacity in chunks of the queues between the stages. Defaults to 16.
+     * @param queueCapacity The capacity in chunks of the queues between the stages.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets whether to use LOAD DATA LOCAL INFILE on MySQL. Defaults to true. When the server or
+     * driver does not allow it, the import silently falls back to batched inserts.
+     * @param loadData Set whether to use LOAD DATA LOCAL INFILE on MySQL.
+     */
+    public void setLoadData(boolean loadData) {
+        this.loadData = loadData;
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the reason why the given fields are not a valid user, or null if they are valid.
+     */
+    private static String validate(String username, String password, String email, String age) {
+        if (username == null || username.isEmpty()) {
+            return "Username is missing.";
+        } else if (username.length() > MAX_USERNAME_LENGTH) {
+            return "Username is longer than " + MAX_USERNAME_LENGTH + " characters.";
+        } else if (password == null || password.isEmpty()) {
+            return "Password is missing.";
+        } else if (email != null && email.length() > MAX_EMAIL_LENGTH) {
+            return "Email is longer than " + MAX_EMAIL_LENGTH + " characters.";
+        } else if (email != null && email.indexOf('@') < 1) {
+            return "Email is not an email address.";
+        } else if (age != null) {
+            try {
+                int value = Integer.parseInt(age);
+                if (value < 0 || value > MAX_AGE) {
+                    return "Age is not between 0 and " + MAX_AGE + ".";
+                }
+            } catch (NumberFormatException e) {
+                return "Age is not a number.";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the given SQLException is an integrity constraint violation.
+     */
+    private static boolean isConstraintViolation(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    /**
+     * Returns true if the given SQLException tells that LOAD DATA LOCAL INFILE is disabled at the
+     * server or the client.
+     */
+    private static boolean isLocalInfileDisabled(SQLException e) {
+        return e.getErrorCode() == ER_NOT_ALLOWED_COMMAND
+            || e.getErrorCode() == ER_CLIENT_LOCAL_FILES_DISABLED
+            || e.getErrorCode() == CR_LOAD_DATA_LOCAL_INFILE_REJECTED;
+    }
+
+    /**
+     * Read the next CSV record from the given reader as per RFC 4180, or return null at the end of
+     * the file. Empty fields are returned as null.
+     */
+    private static String[] readRecord(Reader reader) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        int c = reader.read();
+
+        if (c == -1) {
+            return null;
+        }
+
+        for (;; c = reader.read()) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field at end of file.");
+                } else if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',' || c == '\n' || c == -1) {
+                fields.add(field.length() > 0 || wasQuoted ? field.toString() : null);
+                field.setLength(0);
+                wasQuoted = false;
+                if (c != ',') {
+                    return fields.toArray(new String[fields.size()]);
+                }
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Write the given value as CSV field, quoted when necessary.
+     */
+    private static void writeField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        } else if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+            && value.indexOf('\r') < 0)
+        {
+            writer.write(value);
+        } else {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+
+    /**
+     * Returns the given value in lower case, or null if it is null.
+     */
+    private static String lowerCase(String value) {
+        return value != null ? value.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Write the given value as LOAD DATA field, whereby null is written as \N.
+     */
+    private static void writeLoadDataField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("\\N");
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '\t' || c == '\n') {
+                writer.write('\\');
+            }
+            writer.write(c);
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * This class represents the result of an import.
+     */
+    public static final class Result {
+        private final long imported;
+        private final long rejected;
+        private final long skipped;
+        private final long millis;
+
+        private Result(long imported, long rejected, long skipped, long millis) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.skipped = skipped;
+            this.millis = millis;
+        }
+
+        /**
+         * Returns the amount of imported users.
+         * @return The amount of imported users.
+         */
+        public long getImported() {
+            return imported;
+        }
+
+        /**
+         * Returns the amount of records written to the reject file.
+         * @return The amount of records written to the reject file.
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Returns the amount of records skipped because their chunk was committed before.
+         * @return The amount of records skipped because their chunk was committed before.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the duration of the import in milliseconds.
+         * @return The duration of the import in milliseconds.
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Returns the String representation of this Result. Not required, it just pleases reading
+         * logs.
+         * @see java.lang.Object#toString()
+         */
+        public String toString() {
+            return String.format("Result[imported=%d,rejected=%d,skipped=%d,millis=%d]",
+                imported, rejected, skipped, millis);
+        }
+    }
+
+    /**
+     * A chunk of records travelling through the pipeline.
+     */
+    private static final class Chunk {
+        private final long index;
+        private final long firstRecord;
+        private final List<String[]> records = new ArrayList<String[]>();
+        private final List<User> users = new ArrayList<User>();
+        private final List<Long> recordNumbers = new ArrayList<Long>();
+
+        private Chunk(long index, long firstRecord) {
+            this.index = index;
+            this.firstRecord = firstRecord;
+        }
+    }
+
+    /**
+     * The state of a single import run, shared by the threads of all stages.
+     */
+    private final class Pipeline {
+        private final BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        private final BlockingQueue<Chunk> validated = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        private final Writer rejects;
+        private final Checkpoint checkpoint;
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong runningWorkers = new AtomicLong(workers);
+        private volatile Exception failure;
+        private volatile boolean loadData = UserImporter.this.loadData;
+        private final IdGenerator idGenerator = daoFactory.getIdGenerator();
+        private long skipped;
+        private int usernameColumn;
+        private int passwordColumn;
+        private int emailColumn;
+        private int ageColumn;
+
+        private Pipeline(Path rejectFile, Checkpoint checkpoint) throws IOException {
+            this.rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * The reader stage. Parse the file into chunks and skip the committed ones. Always ends
+         * the queue, also when it fails, so that the other stages can finish.
+         */
+        private void read(Path file) throws IOException {
+            BufferedReader reader = null;
+
+            try {
+                reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+                readHeader(readRecord(reader));
+                long recordNumber = 0;
+                Chunk chunk = null;
+
+                for (String[] record; (record = readRecord(reader)) != null && failure == null;) {
+                    if (record.length == 1 && record[0] == null) {
+                        continue; // Blank line.
+                    }
+                    if (recordNumber % chunkSize == 0) {
+                        putUncommitted(chunk);
+                        chunk = new Chunk(recordNumber / chunkSize, recordNumber + 1);
+                    }
+                    recordNumber++;
+                    if (checkpoint.isCommitted(chunk.index)) {
+                        skipped++;
+                    } else {
+                        chunk.records.add(record);
+                    }
+                }
+
+                putUncommitted(chunk);
+            } catch (IOException e) {
+                fail(e);
+            } catch (IllegalArgumentException e) {
+                fail(e);
+            } finally {
+                for (int i = 0; i < workers; i++) {
+                    put(parsed, END);
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+
+        private void putUncommitted(Chunk chunk) {
+            if (chunk != null && !checkpoint.isCommitted(chunk.index)) {
+                put(parsed, chunk);
+            }
+        }
+
+        private void readHeader(String[] header) {
+            usernameColumn = passwordColumn = emailColumn = ageColumn = -1;
+
+            for (int i = 0; header != null && i < header.length; i++) {
+                String column = header[i] != null ? header[i].trim().toLowerCase() : "";
+                if (column.equals("username")) {
+                    usernameColumn = i;
+                } else if (column.equals("password")) {
+                    passwordColumn = i;
+                } else if (column.equals("email")) {
+                    emailColumn = i;
+                } else if (column.equals("age")) {
+                    ageColumn = i;
+                }
+            }
+
+            if (usernameColumn < 0 || passwordColumn < 0) {
+                throw new IllegalArgumentException(
+                    "CSV header must at least have the columns 'username' and 'password'.");
+            }
+        }
+
+        /**
+         * The validation stage. Validate the records and hash the passwords.
+         */
+        private void validate() {
+            try {
+                for (Chunk chunk; (chunk = take(parsed)) != END;) {
+                    if (failure != null) {
+                        continue; // Drain the queue so that the reader stage can finish.
+                    }
+                    try {
+                        validate(chunk);
+                        put(validated, chunk);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            } finally {
+                if (runningWorkers.decrementAndGet() == 0) {
+                    for (int i = 0; i < writers; i++) {
+                        put(validated, END);
+                    }
+                }
+            }
+        }
+
+        private void validate(Chunk chunk) throws IOException {
+            for (int i = 0; i < chunk.records.size(); i++) {
+                String[] record = chunk.records.get(i);
+                long recordNumber = chunk.firstRecord + i;
+                String username = field(record, usernameColumn);
+                String password = field(record, passwordColumn);
+                String email = field(record, emailColumn);
+                String age = field(record, ageColumn);
+                String reason = UserImporter.validate(username, password, email, age);
+
+                if (reason != null) {
+                    reject(recordNumber, reason, username, password, email, age);
+                } else {
+                    chunk.users.add(new User(null, username, hashMD5IfNecessary(password), email,
+                        age != null ? Integer.valueOf(age) : null));
+                    chunk.recordNumbers.add(recordNumber);
+                }
+            }
+
+            chunk.records.clear();
+        }
+
+        /**
+         * The writer stage. Insert the chunks on an own connection, one transaction per chunk.
+         */
+        private void write() {
+            Connection connection = null;
+            UserDAO userDAO = null;
+
+            try {
+                try {
+                    connection = daoFactory.getConnection();
+                } catch (SQLFeatureNotSupportedException e) {
+                    userDAO = daoFactory.getUserDAO(); // In-memory, no connections.
+                }
+
+                for (Chunk chunk; (chunk = take(validated)) != END;) {
+                    if (failure != null) {
+                        continue; // Drain the queue so that the validation stage can finish.
+                    }
+                    if (userDAO != null) {
+                        insertRowByRow(userDAO, chunk);
+                    } else if (loadData && idGenerator == null && isMySQL(connection)) {
+                        loadData(connection, chunk);
+                    } else {
+                        insertBatch(connection, chunk);
+                    }
+                    checkpoint.commit(chunk.index);
+                }
+            } catch (Exception e) {
+                fail(e);
+                while (take(validated) != END) {
+                    // Drain the queue so that the validation stage can finish.
+                }
+            } finally {
+                close(connection);
+            }
+        }
+
+        private void insertBatch(Connection connection, Chunk chunk)
+            throws SQLException, IOException, DAOException
+        {
+            PreparedStatement preparedStatement = null;
+            boolean autoCommit = connection.getAutoCommit();
+
+            try {
+                connection.setAutoCommit(false);
+                preparedStatement = connection.prepareStatement(
+                    idGenerator != null ? SQL_INSERT_WITH_ID : SQL_INSERT);
+                for (User user : chunk.users) {
+                    setUserValues(preparedStatement, user);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                connection.commit();
+                imported.addAndGet(chunk.users.size());
+            } catch (BatchUpdateException e) {
+                connection.rollback();
+                if (!isConstraintViolation(e)) {
+                    throw e;
+                }
+                connection.setAutoCommit(true);
+                insertRowByRow(connection, chunk);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                close(preparedStatement);
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+
+        private void insertRowByRow(Connection connection, Chunk chunk)
+            throws SQLException, IOException, DAOException
+        {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                idGenerator != null ? SQL_INSERT_WITH_ID : SQL_INSERT);
+
+            try {
+                for (int i = 0; i < chunk.users.size(); i++) {
+                    User user = chunk.users.get(i);
+                    setUserValues(preparedStatement, user);
+                    try {
+                        preparedStatement.executeUpdate();
+                        imported.incrementAndGet();
+                    } catch (SQLException e) {
+                        if (!isConstraintViolation(e)) {
+                            throw e;
+                        }
+                        reject(chunk.recordNumbers.get(i), e.getMessage(), user);
+                    }
+                }
+            } finally {
+                close(preparedStatement);
+            }
+        }
+
+        /**
+         * Set the values of the given user in the given insert statement, along with a new ID if
+         * the IDs are assigned by an ID generator instead of by the database.
+         */
+        private void setUserValues(PreparedStatement preparedStatement, User user)
+            throws SQLException, DAOException
+        {
+            if (idGenerator != null) {
+                setValues(preparedStatement, idGenerator.nextId(), user.getUsername(),
+                    user.getPassword(), user.getEmail(), user.getAge());
+            } else {
+                setValues(preparedStatement, user.getUsername(), user.getPassword(),
+                    user.getEmail(), user.getAge());
+            }
+        }
+
+        private void insertRowByRow(UserDAO userDAO, Chunk chunk) throws DAOException, IOException {
+            for (int i = 0; i < chunk.users.size(); i++) {
+                User user = chunk.users.get(i);
+                try {
+                    userDAO.create(user);
+                    imported.incrementAndGet();
+                } catch (DAOException e) {
+                    if (!(e.getCause() instanceof SQLException)
+                        || !isConstraintViolation((SQLException) e.getCause()))
+                    {
+                        throw e;
+                    }
+                    reject(chunk.recordNumbers.get(i), e.getCause().getMessage(), user);
+                }
+            }
+        }
+
+        /**
+         * Load the chunk by LOAD DATA LOCAL INFILE. MySQL skips rows with duplicate keys with a
+         * warning, which is used to reject them. The duplicates within the chunk are rejected
+         * beforehand, so that every warning matches exactly one loaded user. The load runs in a
+         * transaction, which is rolled back in favor of batched inserts when the warnings do not
+         * explain all skipped rows, e.g. because the server caps them at 'max_error_count'. Falls
+         * back to batched inserts for good when the server or driver does not allow it, any other
+         * failure is thrown. The rejects are written only after the users are committed.
+         */
+        private void loadData(Connection connection, Chunk chunk)
+            throws SQLException, IOException, DAOException
+        {
+            Map<Integer, String> chunkDuplicates = findChunkDuplicates(chunk);
+            Chunk unique = without(chunk, chunkDuplicates.keySet());
+            Path file = Files.createTempFile("users", ".tsv");
+            Statement statement = null;
+            boolean autoCommit = connection.getAutoCommit();
+
+            try {
+                connection.setAutoCommit(false);
+                Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                try {
+                    for (User user : unique.users) {
+                        writeLoadDataField(writer, user.getUsername());
+                        writer.write('\t');
+                        writeLoadDataField(writer, user.getPassword());
+                        writer.write('\t');
+                        writeLoadDataField(writer, user.getEmail());
+                        writer.write('\t');
+                        writeLoadDataField(writer,
+                            user.getAge() != null ? user.getAge().toString() : null);
+                        writer.write('\n');
+                    }
+                } finally {
+                    writer.close();
+                }
+
+                statement = connection.createStatement();
+                String path = file.toAbsolutePath().toString().replace("\\", "\\\\")
+                    .replace("'", "\\'");
+                int loaded;
+                try {
+                    loaded = statement.executeUpdate(String.format(SQL_LOAD_DATA, path));
+                } catch (SQLException e) {
+                    if (!isLocalInfileDisabled(e)) {
+                        throw e;
+                    }
+                    connection.rollback();
+                    System.err.println("LOAD DATA LOCAL INFILE is not allowed, falling back to"
+                        + " batched inserts: " + e.getMessage());
+                    loadData = false;
+                    insertBatch(connection, unique);
+                    reject(chunk, chunkDuplicates);
+                    return;
+                }
+
+                Map<Integer, String> duplicates = findDuplicates(statement.getWarnings(), unique);
+                if (duplicates.size() != unique.users.size() - loaded) {
+                    connection.rollback();
+                    insertBatch(connection, unique);
+                    reject(chunk, chunkDuplicates);
+                    return;
+                }
+
+                connection.commit();
+                imported.addAndGet(loaded);
+                reject(chunk, chunkDuplicates);
+                reject(unique, duplicates);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                close(statement);
+                connection.setAutoCommit(autoCommit);
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /**
+         * Returns the indexes of the users of the given chunk whose username or email is already
+         * taken by an earlier user of the chunk, mapped to the reason. The comparison ignores case,
+         * like the default collation of MySQL.
+         */
+        private Map<Integer, String> findChunkDuplicates(Chunk chunk) {
+            Map<Integer, String> duplicates = new LinkedHashMap<Integer, String>();
+            Map<String, Long> usernames = new HashMap<String, Long>();
+            Map<String, Long> emails = new HashMap<String, Long>();
+
+            for (int i = 0; i < chunk.users.size(); i++) {
+                User user = chunk.users.get(i);
+                long recordNumber = chunk.recordNumbers.get(i);
+                Long usernameRecord = usernames.get(lowerCase(user.getUsername()));
+                Long emailRecord = emails.get(lowerCase(user.getEmail()));
+
+                if (usernameRecord != null) {
+                    duplicates.put(i, "Duplicate username of record " + usernameRecord + ".");
+                } else if (emailRecord != null) {
+                    duplicates.put(i, "Duplicate email of record " + emailRecord + ".");
+                } else {
+                    usernames.put(lowerCase(user.getUsername()), recordNumber);
+                    if (user.getEmail() != null) {
+                        emails.put(lowerCase(user.getEmail()), recordNumber);
+                    }
+                }
+            }
+
+            return duplicates;
+        }
+
+        /**
+         * Returns a chunk with the users of the given chunk except those of the given indexes.
+         */
+        private Chunk without(Chunk chunk, Set<Integer> indexes) {
+            Chunk rest = new Chunk(chunk.index, chunk.firstRecord);
+
+            for (int i = 0; i < chunk.users.size(); i++) {
+                if (!indexes.contains(i)) {
+                    rest.users.add(chunk.users.get(i));
+                    rest.recordNumbers.add(chunk.recordNumbers.get(i));
+                }
+            }
+
+            return rest;
+        }
+
+        /**
+         * Returns the indexes of the users of the given chunk which are mentioned in the given
+         * duplicate entry warnings of LOAD DATA, mapped to the warning message. The users of the
+         * chunk must be unique.
+         */
+        private Map<Integer, String> findDuplicates(SQLWarning warning, Chunk chunk) {
+            Map<Integer, String> duplicates = new LinkedHashMap<Integer, String>();
+
+            for (; warning != null; warning = warning.getNextWarning()) {
+                String message = warning.getMessage();
+                int start = message.indexOf('\'');
+                int end = message.lastIndexOf("' for key");
+                if (warning.getErrorCode() != ER_DUP_ENTRY || start < 0 || end <= start) {
+                    continue;
+                }
+
+                String value = message.substring(start + 1, end);
+                boolean email = message.substring(end).contains("email");
+                for (int i = 0; i < chunk.users.size(); i++) {
+                    User user = chunk.users.get(i);
+                    if (value.equalsIgnoreCase(email ? user.getEmail() : user.getUsername())) {
+                        duplicates.put(i, message);
+                        break;
+                    }
+                }
+            }
+
+            return duplicates;
+        }
+
+        /**
+         * Reject the users of the given indexes of the given chunk for the mapped reasons.
+         */
+        private void reject(Chunk chunk, Map<Integer, String> reasons) throws IOException {
+            for (Map.Entry<Integer, String> reason : reasons.entrySet()) {
+                int i = reason.getKey();
+                reject(chunk.recordNumbers.get(i), reason.getValue(), chunk.users.get(i));
+            }
+        }
+
+        private void reject(long recordNumber, String reason, User user) throws IOException {
+            reject(recordNumber, reason, user.getUsername(), user.getPassword(), user.getEmail(),
+                user.getAge() != null ? user.getAge().toString() : null);
+        }
+
+        private void reject(long recordNumber, String reason, String... fields)
+            throws IOException
+        {
+            synchronized (rejects) {
+                rejects.write(Long.toString(recordNumber));
+                rejects.write(',');
+                writeField(rejects, reason);
+                for (String field : fields) {
+                    rejects.write(',');
+                    writeField(rejects, field);
+                }
+                rejects.write('\n');
+                rejects.flush();
+            }
+            rejected.incrementAndGet();
+        }
+
+        private String field(String[] record, int column) {
+            String field = column >= 0 && column < record.length ? record[column] : null;
+            return field != null && !field.isEmpty() ? field : null;
+        }
+
+        private void put(BlockingQueue<Chunk> queue, Chunk chunk) {
+            if (chunk == null) {
+                return;
+            }
+            try {
+                queue.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Import interrupted.", e);
+            }
+        }
+
+        private Chunk take(BlockingQueue<Chunk> queue) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Import interrupted.", e);
+            }
+        }
+
+        private void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private void rethrow() throws IOException, DAOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) failure;
+            } else if (failure instanceof DAOException) {
+                throw (DAOException) failure;
+            } else if (failure != null) {
+                throw new DAOException(failure);
+            }
+        }
+    }
+
+    /**
+     * The checkpoint of committed chunks. It is kept as a watermark below which all chunks are
+     * committed plus the committed chunks above the watermark, and is atomically rewritten on
+     * every commit.
+     */
+    private final class Checkpoint {
+        private final Path file;
+        private final SortedSet<Long> committed = new TreeSet<Long>();
+        private long watermark;
+
+        private Checkpoint(Path file) throws IOException {
+            this.file = file;
+
+            if (!Files.exists(file)) {
+                return;
+            }
+
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] pair = line.split("=", 2);
+                if (pair[0].equals("chunksize") && Integer.parseInt(pair[1]) != chunkSize) {
+                    throw new IllegalArgumentException("Checkpoint file '" + file
+                        + "' was written with chunk size " + pair[1] + ".");
+                } else if (pair[0].equals("watermark")) {
+                    watermark = Long.parseLong(pair[1]);
+                } else if (pair[0].equals("committed") && !pair[1].isEmpty()) {
+                    for (String index : pair[1].split(",")) {
+                        committed.add(Long.valueOf(index));
+                    }
+                }
+            }
+        }
+
+        private synchronized boolean isCommitted(long index) {
+            return index < watermark || committed.contains(index);
+        }
+
+        private synchronized void commit(long index) throws IOException {
+            committed.add(index);
+            for (Iterator<Long> iterator = committed.iterator(); iterator.hasNext();) {
+                if (iterator.next() != watermark) {
+                    break;
+                }
+                iterator.remove();
+                watermark++;
+            }
+
+            StringBuilder indexes = new StringBuilder();
+            for (Long committedIndex : committed) {
+                indexes.append(indexes.length() > 0 ? "," : "").append(committedIndex);
+            }
+
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+            try {
+                writer.write("chunksize=" + chunkSize + "\n");
+                writer.write("watermark=" + watermark + "\n");
+                writer.write("committed=" + indexes + "\n");
+            } finally {
+                writer.close();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,134 @@
+package mydao;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import mymodel.User;
+
+/**
+ * Benchmark of {@link UserDAO#listCompact(UserCriteria)} against the User DTOs of
+ * {@link UserDAO#list(UserCriteria)}. For each it reports the time to read all users, the heap
+ * bytes retained per user by the result, the heap bytes allocated per user during the read and the
+ * garbage collections during the read.
+ * <p>
+ * The User DTOs of the in-memory database share their strings with the database itself, so there
+ * the list() baseline retains the DTOs only. The DTOs read by JDBC have their own strings, which
+ * is what the 'DTOs with own strings' baseline simulates.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -Xmx8g mydao.UserListBenchmark [name] [rows]
+ * </pre>
+ * The name is the database name of the DAOFactory and defaults to 'javabase.memory'. The rows is
+ * the minimum amount of users and defaults to 1000000; missing users are created first.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserListBenchmark {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        String name = args.length > 0 ? args[0] : "javabase.memory";
+        long rows = args.length > 1 ? Long.parseLong(args[1]) : 1000000L;
+
+        UserDAO userDAO = DAOFactory.getInstance(name).getUserDAO();
+        UserExportBenchmark.populate(userDAO, rows);
+
+        for (int run = 1; run <= 2; run++) {
+            System.out.println("Run " + run + (run == 1 ? " (warm-up)" : ""));
+            measure("list(criteria)", new Read() {
+                public List<?> run(UserDAO userDAO) throws DAOException {
+                    return userDAO.list(new UserCriteria());
+                }
+            }, userDAO);
+            measure("DTOs with own strings", new Read() {
+                public List<?> run(UserDAO userDAO) throws DAOException {
+                    return listOwnStrings(userDAO);
+                }
+            }, userDAO);
+            measure("listCompact(criteria)", new Read() {
+                public List<?> run(UserDAO userDAO) throws DAOException {
+                    return userDAO.listCompact(new UserCriteria());
+                }
+            }, userDAO);
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns User DTOs of all users with their own copy of the strings, like JDBC reads them.
+     */
+    private static List<User> listOwnStrings(UserDAO userDAO) throws DAOException {
+        final List<User> users = new ArrayList<User>();
+        userDAO.scan(new UserCriteria(), new UserHandler() {
+            public void handle
+                (long id, String username, String password, String email, Integer age)
+            {
+                users.add(new User(id, copy(username), copy(password), copy(email), age));
+            }
+        });
+        return users;
+    }
+
+    /**
+     * Returns a copy of the given string which does not share its characters with it.
+     */
+    private static String copy(String string) {
+        return string != null ? new String(string.toCharArray()) : null;
+    }
+
+    /**
+     * Run the given read and print the time, the retained and allocated bytes per user and the
+     * garbage collections.
+     */
+    private static void measure(String label, Read read, UserDAO userDAO) throws Exception {
+        System.gc();
+        long heapBefore = UserExportBenchmark.usedHeap();
+        long allocatedBefore = UserExportBenchmark.allocatedBytes();
+        long collectionsBefore = collections();
+        long collectionMillisBefore = collectionMillis();
+        long start = System.nanoTime();
+
+        List<?> users = read.run(userDAO);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = UserExportBenchmark.allocatedBytes() - allocatedBefore;
+        long collections = collections() - collectionsBefore;
+        long collectionMillis = collectionMillis() - collectionMillisBefore;
+        System.gc();
+        long retained = UserExportBenchmark.usedHeap() - heapBefore;
+        int size = Math.max(1, users.size());
+
+        System.out.printf("  %-22s %9d users in %6.2f s, retained %6.1f bytes/user,"
+            + " allocated %6.1f bytes/user, %3d GCs in %5d ms%n", label, users.size(), seconds,
+            (double) retained / size, (double) allocated / size, collections, collectionMillis);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    private interface Read {
+        List<?> run(UserDAO userDAO) throws DAOException;
+    }
+
+}
@@ -0,0 +1,377 @@
+package mydao;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import mymodel.User;
+
+/**
+ * Headless load generator for {@link UserDAO}, as replacement of clicking around in
+ * {@link DAOTest}. It drives a weighted mix of operations against the User DAO of any DAOFactory
+ * and reports the throughput and the latency percentiles per operation.
+ * <p>
+ * The load is open loop: operations are started at a fixed arrival rate, regardless of how long
+ * earlier operations take, and the latency is measured from the time the operation was due
+ * instead of the time it actually started. A slow database therefore shows up as a long queue and
+ * high percentiles, instead of silently lowering the load, which is known as coordinated omission.
+ * The first seconds are a warm-up phase whose operations are not recorded. Operations which are
+ * still queued or running one minute after the last one was due are abandoned, and their amount
+ * is reported, since the percentiles are too optimistic without them.
+ * <p>
+ * Usage:
+ * <pre>
+ * java mydao.UserLoadGenerator [name] [rate] [threads] [warmup] [duration] [mix] [platform|virtual]
+ * </pre>
+ * The name is the database name of the DAOFactory and defaults to 'javabase.memory'. The rate is
+ * the amount of operations per second and defaults to 1000. The threads is the amount of worker
+ * threads and defaults to 16; it is ignored for virtual threads, which start a thread per
+ * operation and are only available on Java 21 and newer. The warmup and duration are in seconds
+ * and default to 10 and 30. The mix defaults to 'find=40,login=20,list=5,create=15,update=15,
+ * delete=5'. The list operation lists a page of 100 users, since listing a whole production table
+ * is not a realistic operation.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UserLoadGenerator {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final String DEFAULT_MIX =
+        "find=40,login=20,list=5,create=15,update=15,delete=5";
+    private static final int PRELOADED_USERS = 10000;
+    private static final int LIST_PAGE_SIZE = 100;
+    private static final String PASSWORD = "loadtest";
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final UserDAO userDAO;
+    private final String prefix = "lg" + Long.toString(System.currentTimeMillis() % 1679616, 36);
+    private final List<Long> preloadedIds = new ArrayList<Long>();
+    private final ConcurrentLinkedQueue<User> createdUsers = new ConcurrentLinkedQueue<User>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong scheduled = new AtomicLong();
+    private volatile boolean abandoned;
+    private final Map<Operation, Recorder> recorders = new LinkedHashMap<Operation, Recorder>();
+    private int[] weights;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private UserLoadGenerator(UserDAO userDAO, String mix) {
+        this.userDAO = userDAO;
+        this.weights = new int[Operation.values().length];
+
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split("=");
+            weights[Operation.valueOf(pair[0].toUpperCase()).ordinal()] = Integer.parseInt(pair[1]);
+        }
+
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder());
+        }
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        String name = args.length > 0 ? args[0] : "javabase.memory";
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        long warmup = args.length > 3 ? Long.parseLong(args[3]) : 10;
+        long duration = args.length > 4 ? Long.parseLong(args[4]) : 30;
+        String mix = args.length > 5 ? args[5] : DEFAULT_MIX;
+        boolean virtual = args.length > 6 && args[6].equalsIgnoreCase("virtual");
+
+        DAOFactory daoFactory = DAOFactory.getInstance(name);
+        UserLoadGenerator generator = new UserLoadGenerator(daoFactory.getUserDAO(), mix);
+        ExecutorService executor = createExecutor(threads, virtual);
+
+        try {
+            System.out.println("Preloading " + PRELOADED_USERS + " users ...");
+            generator.preload();
+            System.out.printf("Running %.0f ops/s with %s for %d s warm-up and %d s measurement"
+                + " ...%n", rate, virtual ? "virtual threads" : threads + " threads", warmup,
+                duration);
+            generator.run(executor, rate, TimeUnit.SECONDS.toNanos(warmup),
+                TimeUnit.SECONDS.toNanos(duration));
+            generator.report(duration);
+        } finally {
+            executor.shutdownNow();
+            generator.cleanUp();
+            daoFactory.close();
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns a fixed thread pool, or a virtual thread per task executor if asked for and
+     * available. The latter is looked up reflectively, so that this also runs on older Java.
+     */
+    private static ExecutorService createExecutor(int threads, boolean virtual) {
+        if (virtual) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                System.out.println("Virtual threads are not available, using platform threads.");
+            }
+        }
+
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Create the users to find, login, list and update.
+     */
+    private void preload() throws DAOException {
+        for (int i = 0; i < PRELOADED_USERS; i++) {
+            User user = new User(null, username(i), PASSWORD, null, i % 100);
+            userDAO.create(user);
+            preloadedIds.add(user.getId());
+        }
+    }
+
+    /**
+     * Start operations at the given rate until the warm-up and measurement phases are over. The
+     * operations due during the warm-up are executed, but not recorded.
+     */
+    private void run(ExecutorService executor, double rate, long warmup, long duration)
+        throws InterruptedException
+    {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        final long measureStart = start + warmup;
+        long end = measureStart + duration;
+
+        for (long i = 0;; i++) {
+            final long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            final Operation operation = pick();
+            if (due >= measureStart) {
+                scheduled.incrementAndGet();
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    boolean failed = false;
+                    try {
+                        execute(operation);
+                    } catch (DAOException e) {
+                        failed = true;
+                    }
+                    if (due >= measureStart && !abandoned) {
+                        recorders.get(operation).record(System.nanoTime() - due, failed);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Stop recording, so that the report is consistent with the amount of incomplete.
+            abandoned = true;
+            executor.shutdownNow();
+        }
+    }
+
+    private Operation pick() {
+        int value = ThreadLocalRandom.current().nextInt(weights[weights.length - 1]);
+        int index = 0;
+
+        while (weights[index] <= value) {
+            index++;
+        }
+
+        return Operation.values()[index];
+    }
+
+    private void execute(Operation operation) throws DAOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int index = random.nextInt(preloadedIds.size());
+
+        switch (operation) {
+            case FIND:
+                userDAO.find(preloadedIds.get(index));
+                break;
+            case LOGIN:
+                userDAO.find(username(index), PASSWORD);
+                break;
+            case LIST:
+                userDAO.list(new UserCriteria()
+                    .idBetween(preloadedIds.get(index), Long.MAX_VALUE).limit(LIST_PAGE_SIZE));
+                break;
+            case CREATE:
+                User user = new User(null, prefix + "c" + sequence.incrementAndGet(), PASSWORD);
+                userDAO.create(user);
+                createdUsers.add(user);
+                break;
+            case UPDATE:
+                User existing = userDAO.find(preloadedIds.get(index));
+                if (existing != null) {
+                    existing.setAge(random.nextInt(100));
+                    userDAO.update(existing);
+                }
+                break;
+            case DELETE:
+                User created = createdUsers.poll();
+                if (created != null) {
+                    userDAO.delete(created);
+                }
+                break;
+        }
+    }
+
+    private String username(int index) {
+        return prefix + "p" + index;
+    }
+
+    private void report(long duration) {
+        System.out.printf("%-8s %10s %8s %10s %9s %9s %9s %9s %9s%n", "op", "count", "errors",
+            "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        Recorder total = new Recorder();
+        for (Map.Entry<Operation, Recorder> entry : recorders.entrySet()) {
+            report(entry.getKey().name().toLowerCase(), entry.getValue(), duration);
+            total.add(entry.getValue());
+        }
+
+        report("total", total, duration);
+
+        long incomplete = scheduled.get() - total.count();
+        if (incomplete > 0) {
+            System.out.printf("%d of %d scheduled operations did not complete within a minute after"
+                + " the run and are missing from the percentiles above, so the real latencies are"
+                + " even higher.%n", incomplete, scheduled.get());
+        }
+    }
+
+    private static void report(String label, Recorder recorder, long duration) {
+        System.out.printf("%-8s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", label,
+            recorder.count(), recorder.errors.get(), (double) recorder.count() / duration,
+            recorder.percentile(50) / 1e6, recorder.percentile(90) / 1e6,
+            recorder.percentile(99) / 1e6, recorder.percentile(99.9) / 1e6,
+            recorder.max.get() / 1e6);
+    }
+
+    /**
+     * Delete all users created by this load generator.
+     */
+    private void cleanUp() throws DAOException {
+        for (User user : createdUsers) {
+            userDAO.delete(user);
+        }
+        for (Long id : preloadedIds) {
+            User user = userDAO.find(id);
+            if (user != null) {
+                userDAO.delete(user);
+            }
+        }
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    private enum Operation {
+        FIND, LOGIN, LIST, CREATE, UPDATE, DELETE;
+    }
+
+    /**
+     * Lock-free latency histogram with buckets of about 3% width: a bucket per power of two of
+     * nanoseconds, each split in 32 linear sub-buckets.
+     */
+    private static final class Recorder {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long latency, boolean failed) {
+            buckets.incrementAndGet(bucket(Math.max(0, latency)));
+            if (failed) {
+                errors.incrementAndGet();
+            }
+
+            long current = max.get();
+            while (latency > current && !max.compareAndSet(current, latency)) {
+                current = max.get();
+            }
+        }
+
+        private void add(Recorder other) {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.addAndGet(i, other.buckets.get(i));
+            }
+            errors.addAndGet(other.errors.get());
+            max.set(Math.max(max.get(), other.max.get()));
+        }
+
+        private long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile, in nanoseconds, but
+         * not more than the maximum recorded latency.
+         */
+        private long percentile(double percentile) {
+            long rank = (long) Math.ceil(count() * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+
+            return 0;
+        }
+
+        private static int bucket(long value) {
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            if (magnitude < SUB_BUCKET_BITS) {
+                return (int) value;
+            }
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+            if (shift < 0) {
+                return bucket;
+            }
+            long subBucket = bucket & (SUB_BUCKETS - 1);
+            return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package mydao;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mymodel.User;
+
+/**
+ * This class represents the publisher of {@link UserDAO#publish(UserCriteria)}, which pulls the
+ * users from a cursor as fast as the subscriber requests them. Every subscription opens its own
+ * cursor on the first request, so nothing is held before there is demand, and the cursor reads
+ * the users in the thread which requests them. The cursor is told the outstanding demand on every
+ * read, so that a database cursor can fetch as many rows as are requested.
+ * <p>
+ * The cursor is closed as soon as it is at its end, fails, or the subscription is cancelled. A
+ * cancel while another thread is reading takes effect after the user being read. The end of the
+ * cursor is only noticed while there is demand, so a subscriber which requests exactly the amount
+ * of matching users gets the completion on its next request.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+abstract class UserPublisher implements Flow.Publisher<User> {
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Subscribe the given subscriber to the users. Every subscription reads the users anew.
+     * @param subscriber The subscriber to be subscribed.
+     * @throws NullPointerException If the subscriber is null.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super User> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber is null.");
+        }
+
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+    /**
+     * Open a new cursor over the users to be published.
+     * @param demand The demand of the first read, as hint for the amount of users to fetch.
+     * @return A new cursor over the users to be published.
+     * @throws DAOException If something fails at database level.
+     */
+    abstract Cursor open(long demand) throws DAOException;
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * A cursor over the users to be published. It is only used by one thread at a time.
+     */
+    interface Cursor {
+
+        /**
+         * Returns the next user, or null if the cursor is at its end.
+         * @param demand The outstanding demand, at least 1, as hint for the amount of users to
+         * fetch. It is Long.MAX_VALUE when the demand is unbounded.
+         * @return The next user, or null if the cursor is at its end.
+         * @throws DAOException If something fails at database level.
+         */
+        User next(long demand) throws DAOException;
+
+        /**
+         * Quietly close the cursor and release its resources.
+         */
+        void close();
+    }
+
+    /**
+     * The subscription of one subscriber. The requests and the cancel only add demand or mark the
+     * cancel, and the thread which finds no other thread draining drains the cursor until the
+     * demand is satisfied. So the signals to the subscriber are serialized, and a request from
+     * within onNext() does not recurse. After completion, failure or cancel the work counter stays
+     * above 0, so nobody drains anymore.
+     */
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super User> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException invalidRequest;
+        private Cursor cursor;
+
+        private Subscription(Flow.Subscriber<? super User> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException(
+                    "Requested amount must be positive, but was " + n + ".");
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (current != Long.MAX_VALUE
+                    && !demand.compareAndSet(current, add(current, n)));
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (work.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+
+            do {
+                long requested = demand.get();
+                long emitted = 0;
+
+                while (true) {
+                    if (cancelled) {
+                        close();
+                        return;
+                    } else if (invalidRequest != null) {
+                        close();
+                        subscriber.onError(invalidRequest);
+                        return;
+                    } else if (emitted == requested) {
+                        break;
+                    }
+
+                    User user;
+
+                    try {
+                        long outstanding = requested == Long.MAX_VALUE
+                            ? Long.MAX_VALUE : requested - emitted;
+                        if (cursor == null) {
+                            cursor = open(outstanding);
+                        }
+                        user = cursor.next(outstanding);
+                    } catch (DAOException e) {
+                        close();
+                        subscriber.onError(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        close();
+                        subscriber.onError(e);
+                        return;
+                    }
+
+                    if (user == null) {
+                        close();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    try {
+                        subscriber.onNext(user);
+                    } catch (RuntimeException e) {
+                        // Subscriber violated the contract by throwing, consider it cancelled.
+                        close();
+                        throw e;
+                    }
+
+                    emitted++;
+                }
+
+                long current;
+                do {
+                    current = demand.get();
+                } while (current != Long.MAX_VALUE
+                    && !demand.compareAndSet(current, current - emitted));
+
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void close() {
+            cancelled = true;
+
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+
+        /**
+         * Returns the sum of the given amounts, capped at Long.MAX_VALUE, meaning unbounded.
+         */
+        private long add(long current, long n) {
+            long sum = current + n;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package mydao;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+
+import mymodel.User;
+
+/**
+ * This class represents a lazily paged table model of all users of an {@link UserDAO}, ordered by
+ * ID, for the user table of {@link DAOgui} and {@link DAOTest}. Only the pages of rows which the
+ * table actually asks for are loaded, each in a background worker, and only a small LRU of pages is
+ * kept in memory. Rows of pages which are not loaded yet are shown empty and are filled in when the
+ * page arrives.
+ * <p>
+ * Pages are loaded with keyset queries: the last ID of every loaded page is remembered, so that the
+ * next page is simply the next {@link #PAGE_SIZE} users after that ID, which the database finds
+ * directly in the primary key. When the table jumps to a page whose predecessor was never loaded,
+ * the rows in between are skipped with an offset from the nearest remembered ID instead. The
+ * password hashes are not shown, so they are not selected either.
+ * <p>
+ * All methods must be invoked on the EDT. The rows are a snapshot as of {@link #reset(long)};
+ * writes after that may shift rows until the next reset.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+class UserTableModel extends AbstractTableModel {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final long serialVersionUID = 1L;
+
+    /** The amount of users per page. */
+    static final int PAGE_SIZE = 100;
+
+    private static final int MAX_CACHED_PAGES = 32;
+    private static final String[] COLUMN_NAMES = { "ID", "Username", "Email", "Age" };
+    private static final Class<?>[] COLUMN_CLASSES =
+        { Long.class, String.class, String.class, Integer.class };
+    private static final Set<UserField> FIELDS =
+        Collections.unmodifiableSet(EnumSet.of(UserField.USERNAME, UserField.EMAIL, UserField.AGE));
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final transient UserDAO userDAO;
+    private final Map<Integer, List<User>> pages =
+        new LinkedHashMap<Integer, List<User>>(MAX_CACHED_PAGES, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<User>> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    private final TreeMap<Integer, Long> lastIdsByPage = new TreeMap<Integer, Long>();
+    private final Set<Integer> loadingPages = new HashSet<Integer>();
+    private int rowCount;
+    private int generation;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct an empty user table model for the given User DAO. Invoke {@link #reset(long)} to
+     * show the users.
+     * @param userDAO The User DAO to load the users from.
+     */
+    UserTableModel(UserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Forget all loaded pages and show the given amount of rows, usually obtained by
+     * {@link UserDAO#count()}. Pages which are still loading are discarded when they arrive.
+     * @param rowCount The amount of rows to show.
+     */
+    void reset(long rowCount) {
+        this.rowCount = (int) Math.min(rowCount, Integer.MAX_VALUE);
+        pages.clear();
+        lastIdsByPage.clear();
+        loadingPages.clear();
+        generation++;
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return COLUMN_CLASSES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int page = row / PAGE_SIZE;
+        List<User> users = pages.get(page);
+
+        if (users == null) {
+            load(page);
+            return null;
+        }
+
+        int index = row % PAGE_SIZE;
+        if (index >= users.size()) {
+            return null; // Users were deleted after the reset.
+        }
+
+        User user = users.get(index);
+        switch (column) {
+            case 0: return user.getId();
+            case 1: return user.getUsername();
+            case 2: return user.getEmail();
+            default: return user.getAge();
+        }
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Load the given page in the background, unless it is already being loaded.
+     */
+    private void load(final int page) {
+        if (!loadingPages.add(page)) {
+            return;
+        }
+
+        final UserCriteria criteria = new UserCriteria().limit(PAGE_SIZE);
+        Map.Entry<Integer, Long> nearest = lastIdsByPage.floorEntry(page - 1);
+
+        if (nearest != null) {
+            criteria.idBetween(nearest.getValue() + 1, Long.MAX_VALUE);
+            criteria.offset((long) (page - 1 - nearest.getKey()) * PAGE_SIZE);
+        } else {
+            criteria.offset((long) page * PAGE_SIZE);
+        }
+
+        final int loadGeneration = generation;
+
+        new SwingWorker<List<User>, Void>() {
+            @Override
+            protected List<User> doInBackground() throws Exception {
+                return userDAO.list(criteria, FIELDS);
+            }
+
+            @Override
+            protected void done() {
+                if (loadGeneration != generation) {
+                    return; // Reset in the meantime.
+                }
+
+                loadingPages.remove(page);
+                List<User> users;
+                try {
+                    users = get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    return; // Retried when the table asks for the rows again.
+                }
+
+                pages.put(page, users);
+                if (!users.isEmpty()) {
+                    lastIdsByPage.put(page, users.get(users.size() - 1).getId());
+                }
+
+                int firstRow = page * PAGE_SIZE;
+                int lastRow = Math.min(firstRow + PAGE_SIZE, rowCount) - 1;
+                if (firstRow <= lastRow) {
+                    fireTableRowsUpdated(firstRow, lastRow);
+                }
+            }
+        }.execute();
+    }
+
+}
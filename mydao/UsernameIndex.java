@@ -0,0 +1,511 @@
+package mydao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import mymodel.User;
+
+/**
+ * This class represents an in-memory index of usernames to user IDs for as-you-type username
+ * lookups, which answers prefix queries without a database round trip. It is built with a
+ * streaming {@link UserDAO#scan(UserCriteria, UserHandler)} and is kept current through the writes
+ * of the User DAOs of the given {@link DAOFactory}. Writes of other nodes or other DAO factories
+ * are not seen; invoke {@link #rebuild()} periodically if that matters.
+ * <p>
+ * The bulk of the index is a compact immutable snapshot: all usernames as UTF-8 in a single byte
+ * array, in ID order, along with the IDs and a permutation of the usernames in sorted order. That
+ * takes roughly 16 bytes per user on top of the username bytes, and a prefix query is a binary
+ * search on the permutation followed by a sequential walk. Writes after the snapshot are kept in
+ * small concurrent delta maps, which are merged into a new snapshot by a background thread once
+ * they grow too large, so that a write never waits for a merge. Queries never lock; a query
+ * concurrent with a write may or may not see that write.
+ * <p>
+ * Usernames are compared by their UTF-8 bytes, which is case sensitive and does not necessarily
+ * match the collation of the database.
+ * <p>
+ * Here is a basic use example:
+ * <pre>
+ * UsernameIndex index = new UsernameIndex(javabase);
+ * Map&lt;String, Long&gt; suggestions = index.search("jo", 10);
+ * </pre>
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class UsernameIndex {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int MIN_COMPACTION_THRESHOLD = 1024;
+    private static final int COMPACTION_RATIO = 16;
+    private static final String REMOVED = new String(); // Compared by identity.
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final DAOFactory daoFactory;
+    private final UserDAO userDAO;
+    private final UserDAOListener listener = new Listener();
+    private final Object lock = new Object();
+    private final ExecutorService compactor;
+    private volatile State state = new State(new Builder().build());
+    private List<Object[]> pendingWrites; // Guarded by lock, non-null during rebuild.
+    private List<Object[]> compactionWrites; // Guarded by lock, non-null during compaction.
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct and build the username index of the users of the given DAOFactory, and keep it
+     * current through the writes of its User DAOs until {@link #close()}.
+     * @param daoFactory The DAOFactory to index the usernames of.
+     * @throws DAOException If something fails at database level.
+     */
+    public UsernameIndex(DAOFactory daoFactory) throws DAOException {
+        this.daoFactory = daoFactory;
+        this.userDAO = daoFactory.getUserDAO();
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "UsernameIndex-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        daoFactory.addUserDAOListener(listener);
+
+        try {
+            rebuild();
+        } catch (DAOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the usernames starting with the given prefix, in sorted order, mapped to their user
+     * IDs. The map is unmodifiable and contains at most the given amount of usernames.
+     * @param prefix The username prefix. An empty prefix matches all usernames.
+     * @param limit The maximum amount of usernames to return.
+     * @return The usernames starting with the given prefix mapped to their user IDs.
+     */
+    public Map<String, Long> search(String prefix, int limit) {
+        State state = this.state;
+        Snapshot snapshot = state.snapshot;
+        Map<String, Long> matches = new LinkedHashMap<String, Long>();
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        int index = snapshot.lowerBound(prefixBytes);
+        Iterator<Map.Entry<String, Long>> added =
+            state.addedByUsername.tailMap(prefix).entrySet().iterator();
+        Map.Entry<String, Long> nextAdded = nextMatch(added, prefix);
+        String nextBase = null;
+        long nextBaseId = 0;
+
+        while (matches.size() < limit) {
+            while (nextBase == null && index < snapshot.size()
+                && snapshot.startsWith(index, prefixBytes))
+            {
+                int position = snapshot.byUsername[index++];
+                if (!state.overridesById.containsKey(snapshot.ids[position])) {
+                    nextBase = snapshot.username(position);
+                    nextBaseId = snapshot.ids[position];
+                }
+            }
+
+            if (nextBase == null && nextAdded == null) {
+                break;
+            } else if (nextAdded == null
+                || (nextBase != null && nextBase.compareTo(nextAdded.getKey()) < 0))
+            {
+                matches.put(nextBase, nextBaseId);
+                nextBase = null;
+            } else {
+                matches.put(nextAdded.getKey(), nextAdded.getValue());
+                nextAdded = nextMatch(added, prefix);
+            }
+        }
+
+        return Collections.unmodifiableMap(matches);
+    }
+
+    /**
+     * Rebuild the index from scratch with a streaming scan of all users. The current index keeps
+     * answering queries during the rebuild, and writes during the rebuild are not lost.
+     * @throws DAOException If something fails at database level.
+     */
+    public void rebuild() throws DAOException {
+        final Builder builder = new Builder();
+
+        synchronized (lock) {
+            if (pendingWrites != null) {
+                throw new IllegalStateException("Username index is already being rebuilt.");
+            }
+            pendingWrites = new ArrayList<Object[]>();
+        }
+
+        try {
+            // The default criteria stream the users in ID order, which the builder requires.
+            userDAO.scan(new UserCriteria(), new UserHandler() {
+                public void handle
+                    (long id, String username, String password, String email, Integer age)
+                {
+                    builder.add(id, username);
+                }
+            });
+
+            State rebuilt = new State(builder.build());
+
+            synchronized (lock) {
+                for (Object[] write : pendingWrites) {
+                    write(rebuilt, (Long) write[0], (String) write[1]);
+                }
+                state = rebuilt;
+            }
+        } finally {
+            synchronized (lock) {
+                pendingWrites = null;
+            }
+        }
+    }
+
+    /**
+     * Stop keeping the index current through the writes of the User DAOs of the DAOFactory.
+     */
+    public void close() {
+        daoFactory.removeUserDAOListener(listener);
+        compactor.shutdown();
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Apply the write of the given username of the given user ID, or of the removal of the given
+     * user ID when the username is null. Applying the same write twice has no effect. When the
+     * delta maps grow too large, a compaction is started in the background.
+     */
+    private void write(Long id, String username) {
+        synchronized (lock) {
+            Object[] write = { id, username };
+            if (pendingWrites != null) {
+                pendingWrites.add(write);
+            }
+            if (compactionWrites != null) {
+                compactionWrites.add(write);
+            }
+
+            write(state, id, username);
+
+            if (compactionWrites == null && pendingWrites == null
+                && state.overridesById.size() > Math.max(MIN_COMPACTION_THRESHOLD,
+                    state.snapshot.size() / COMPACTION_RATIO))
+            {
+                startCompaction();
+            }
+        }
+    }
+
+    /**
+     * Start merging the delta maps of the current state into a new snapshot in the background.
+     * The compaction reads the delta maps while writes continue, so the writes during the
+     * compaction are recorded and applied again to the compacted state before it replaces the
+     * current state, like the writes during a rebuild. A failed compaction is reported to the
+     * stderr and leaves the current state, so that a later write starts a new one. Invoked while
+     * holding the lock.
+     */
+    private void startCompaction() {
+        final State compacting = state;
+        compactionWrites = new ArrayList<Object[]>();
+
+        try {
+            compactor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        State compacted = new State(compacting.compact());
+
+                        synchronized (lock) {
+                            // A rebuild in the meantime has replaced the state already.
+                            if (state == compacting) {
+                                for (Object[] write : compactionWrites) {
+                                    write(compacted, (Long) write[0], (String) write[1]);
+                                }
+                                state = compacted;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("Compacting the username index failed, a later write"
+                            + " retries it: " + e);
+                    } finally {
+                        synchronized (lock) {
+                            compactionWrites = null;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compactionWrites = null; // Closed, the index is not kept current anymore anyway.
+        }
+    }
+
+    private static void write(State state, Long id, String username) {
+        String current = state.username(id);
+
+        if (current == null ? username == null : current.equals(username)) {
+            return;
+        }
+
+        // First hide the old username, then show the new one, so queries never see both.
+        state.overridesById.put(id, username != null ? username : REMOVED);
+        if (current != null) {
+            state.addedByUsername.remove(current, id);
+        }
+        if (username != null) {
+            state.addedByUsername.put(username, id);
+        }
+    }
+
+    private static Map.Entry<String, Long> nextMatch
+        (Iterator<Map.Entry<String, Long>> entries, String prefix)
+    {
+        if (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (entry.getKey().startsWith(prefix)) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The listener of the writes through the User DAOs of the DAOFactory.
+     */
+    private final class Listener implements UserDAOListener {
+
+        @Override
+        public void created(User user) {
+            write(user.getId(), user.getUsername());
+        }
+
+        @Override
+        public void updated(User user) {
+            write(user.getId(), user.getUsername());
+        }
+
+        @Override
+        public void deleted(Long id, User user) {
+            write(id, null);
+        }
+
+    }
+
+    /**
+     * The snapshot along with the writes after it. The delta maps are only modified under the
+     * lock, but read concurrently by queries and by a compaction; a compaction replaces the
+     * whole state.
+     */
+    private static final class State {
+        private final Snapshot snapshot;
+        private final ConcurrentNavigableMap<String, Long> addedByUsername =
+            new ConcurrentSkipListMap<String, Long>();
+        private final ConcurrentMap<Long, String> overridesById =
+            new ConcurrentHashMap<Long, String>();
+
+        private State(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Returns the current username of the given user ID, or null if there is none.
+         */
+        private String username(Long id) {
+            String override = overridesById.get(id);
+
+            if (override != null) {
+                return override != REMOVED ? override : null;
+            }
+
+            int position = Arrays.binarySearch(snapshot.ids, id);
+            return position >= 0 ? snapshot.username(position) : null;
+        }
+
+        /**
+         * Returns a new snapshot with the writes merged into it.
+         */
+        private Snapshot compact() {
+            TreeMap<Long, String> added = new TreeMap<Long, String>();
+            for (Map.Entry<String, Long> entry : addedByUsername.entrySet()) {
+                added.put(entry.getValue(), entry.getKey());
+            }
+
+            Builder builder = new Builder();
+            Iterator<Map.Entry<Long, String>> addedInIdOrder = added.entrySet().iterator();
+            Map.Entry<Long, String> nextAdded = addedInIdOrder.hasNext()
+                ? addedInIdOrder.next() : null;
+
+            for (int position = 0; position < snapshot.size(); position++) {
+                long id = snapshot.ids[position];
+                while (nextAdded != null && nextAdded.getKey() < id) {
+                    builder.add(nextAdded.getKey(), nextAdded.getValue());
+                    nextAdded = addedInIdOrder.hasNext() ? addedInIdOrder.next() : null;
+                }
+                if (!overridesById.containsKey(id)) {
+                    builder.add(id, snapshot.username(position));
+                }
+            }
+
+            while (nextAdded != null) {
+                builder.add(nextAdded.getKey(), nextAdded.getValue());
+                nextAdded = addedInIdOrder.hasNext() ? addedInIdOrder.next() : null;
+            }
+
+            return builder.build();
+        }
+    }
+
+    /**
+     * The immutable compact index. The usernames are stored as UTF-8 in one byte array in ID
+     * order, whereby the username of position i runs from offsets[i] to offsets[i + 1]. The
+     * byUsername array holds the positions in username order.
+     */
+    private static final class Snapshot {
+        private final byte[] bytes;
+        private final int[] offsets;
+        private final long[] ids;
+        private final int[] byUsername;
+
+        private Snapshot(byte[] bytes, int[] offsets, long[] ids) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+            this.ids = ids;
+            this.byUsername = new int[ids.length];
+
+            for (int i = 0; i < byUsername.length; i++) {
+                byUsername[i] = i;
+            }
+            sort(byUsername, new int[byUsername.length], 0, byUsername.length);
+        }
+
+        private int size() {
+            return ids.length;
+        }
+
+        private String username(int position) {
+            return new String(bytes, offsets[position], offsets[position + 1] - offsets[position],
+                StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the index in byUsername of the first username which is not less than the given
+         * prefix.
+         */
+        private int lowerBound(byte[] prefix) {
+            int low = 0;
+            int high = byUsername.length;
+
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int position = byUsername[middle];
+                if (Arrays.compareUnsigned(bytes, offsets[position], offsets[position + 1],
+                    prefix, 0, prefix.length) < 0)
+                {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        private boolean startsWith(int index, byte[] prefix) {
+            int position = byUsername[index];
+            int offset = offsets[position];
+            return offsets[position + 1] - offset >= prefix.length
+                && Arrays.equals(bytes, offset, offset + prefix.length, prefix, 0, prefix.length);
+        }
+
+        private int compare(int position1, int position2) {
+            return Arrays.compareUnsigned(bytes, offsets[position1], offsets[position1 + 1],
+                bytes, offsets[position2], offsets[position2 + 1]);
+        }
+
+        /**
+         * Merge sort the given range of positions by username, without boxing.
+         */
+        private void sort(int[] positions, int[] buffer, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            sort(positions, buffer, from, middle);
+            sort(positions, buffer, middle, to);
+
+            if (compare(positions[middle - 1], positions[middle]) <= 0) {
+                return; // Already in order, which is common as IDs often follow usernames.
+            }
+
+            System.arraycopy(positions, from, buffer, from, to - from);
+            for (int i = from, left = from, right = middle; i < to; i++) {
+                if (right >= to || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+                    positions[i] = buffer[left++];
+                } else {
+                    positions[i] = buffer[right++];
+                }
+            }
+        }
+    }
+
+    /**
+     * The builder of a snapshot. The users must be added in ascending ID order.
+     */
+    private static final class Builder {
+        private byte[] bytes = new byte[1024];
+        private int[] offsets = new int[65];
+        private long[] ids = new long[64];
+        private int size;
+
+        private void add(long id, String username) {
+            if (size > 0 && id <= ids[size - 1]) {
+                throw new IllegalStateException("Users must be added in ascending ID order.");
+            }
+
+            byte[] utf8 = username.getBytes(StandardCharsets.UTF_8);
+            int offset = offsets[size];
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2 + 1);
+            }
+            if (offset + utf8.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, offset + utf8.length));
+            }
+
+            System.arraycopy(utf8, 0, bytes, offset, utf8.length);
+            ids[size] = id;
+            offsets[++size] = offset + utf8.length;
+        }
+
+        private Snapshot build() {
+            return new Snapshot(Arrays.copyOf(bytes, offsets[size]),
+                Arrays.copyOf(offsets, size + 1), Arrays.copyOf(ids, size));
+        }
+    }
+
+}
@@ -0,0 +1,565 @@
+package mydao;
+
+import static mydao.DAOUtil.*;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mymodel.CompactUserList;
+import mymodel.User;
+
+/**
+ * This class represents a write-behind decorator of another {@link UserDAO}. Updates are not
+ * written immediately, but buffered per user ID, whereby a newer update of the same user replaces
+ * the buffered one. A daemon thread flushes the buffer to the decorated DAO by
+ * {@link UserDAO#updateAll(List)} every half of the maximum delay, and as soon as a batch is full.
+ * Flushes are serialized, so the updates of the same user are written in order.
+ * <p>
+ * The maximum delay is the durability bound: an update which is acknowledged to the caller is
+ * written within about that time, or lost when the JVM crashes before. When the buffer holds ten
+ * batches, because the database cannot keep up or is down, the caller flushes synchronously and
+ * gets the DAOException, if any, so the buffer does not grow unbounded. On close, and by a
+ * shutdown hook when the JVM exits without closing, the buffer is flushed once more.
+ * <p>
+ * Buffered updates are written regardless of the version, since a conflict could not be reported
+ * to the caller anymore, and deletes as well, since the versions of the caller are outdated by
+ * the flushes. Lookups by ID return the buffered user, if any. The other reads see the buffered
+ * updates only after they are flushed. Creates and deletes are passed to the decorated DAO
+ * immediately, whereby a buffered update of the deleted user is discarded.
+ * <p>
+ * It is enabled by the 'name.writebehind.maxdelay' property as described in {@link DAOFactory}.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public class WriteBehindUserDAO implements UserDAO {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int MAX_PENDING_BATCHES = 10;
+
+    // Vars ---------------------------------------------------------------------------------------
+
+    private final UserDAO userDAO;
+    private final int batchSize;
+    private final Object flushLock = new Object();
+    private Map<Long, User> pending = new LinkedHashMap<Long, User>(); // Guarded by this.
+    private Map<Long, User> flushing = Collections.emptyMap(); // Guarded by this.
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+    private final Thread shutdownHook;
+    private boolean closed; // Guarded by this.
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Construct a write-behind User DAO for the given User DAO and start its flusher. Package
+     * private so that it can be constructed inside the DAO package only.
+     * @param userDAO The User DAO to be decorated.
+     * @param maxDelay The maximum time in milliseconds an update may be buffered.
+     * @param batchSize The maximum amount of users to write at once.
+     */
+    WriteBehindUserDAO(UserDAO userDAO, long maxDelay, int batchSize) {
+        this.userDAO = userDAO;
+        this.batchSize = Math.max(1, batchSize);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WriteBehindUserDAO");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, maxDelay / 2);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushQuietly();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        this.shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "WriteBehindUserDAO-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Actions ------------------------------------------------------------------------------------
+
+    @Override
+    public User find(Long id) throws DAOException {
+        User user = getBuffered(id);
+        return user != null ? user : userDAO.find(id);
+    }
+
+    /**
+     * Returns the buffered user if the user of the given ID is buffered, since a buffered write is
+     * a change, otherwise the user as revalidated by the decorated User DAO.
+     */
+    @Override
+    public User findIfChanged(User user) throws IllegalArgumentException, DAOException {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("User is not created yet, the user ID is null.");
+        }
+
+        User buffered = getBuffered(user.getId());
+        return buffered != null ? buffered : userDAO.findIfChanged(user);
+    }
+
+    @Override
+    public User find(String username, String password) throws DAOException {
+        User user = findByName(username);
+        return user != null && user.getPassword().equals(hashMD5(password)) ? user : null;
+    }
+
+    @Override
+    public User findByName(String username) throws DAOException {
+        User user = userDAO.findByName(username);
+
+        if (user != null) {
+            User buffered = getBuffered(user.getId());
+            if (buffered != null) {
+                return buffered.getUsername().equals(username) ? buffered : null;
+            }
+        }
+
+        return user;
+    }
+
+    @Override
+    public List<User> list() throws DAOException {
+        return userDAO.list();
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria) throws DAOException {
+        return userDAO.list(criteria);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, UserHandler handler) throws DAOException {
+        userDAO.scan(criteria, handler);
+    }
+
+    @Override
+    public CompactUserList listCompact(UserCriteria criteria) throws DAOException {
+        return userDAO.listCompact(criteria);
+    }
+
+    @Override
+    public List<User> list(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return userDAO.list(criteria, fields);
+    }
+
+    @Override
+    public void scan(UserCriteria criteria, Set<UserField> fields, UserHandler handler)
+        throws DAOException
+    {
+        userDAO.scan(criteria, fields, handler);
+    }
+
+    @Override
+    public List<User> listLazy(UserCriteria criteria, Set<UserField> fields) throws DAOException {
+        return userDAO.listLazy(criteria, fields);
+    }
+
+    @Override
+    public Flow.Publisher<User> publish(UserCriteria criteria) {
+        return userDAO.publish(criteria);
+    }
+
+    @Override
+    public void scan(UserHandler handler) throws DAOException {
+        userDAO.scan(handler);
+    }
+
+    @Override
+    public void parallelScan(int parallelism, UserHandler handler) throws DAOException {
+        userDAO.parallelScan(parallelism, handler);
+    }
+
+    @Override
+    public void create(User user) throws IllegalArgumentException, DAOException {
+        userDAO.create(user);
+    }
+
+    @Override
+    public void createAll(List<User> users) throws IllegalArgumentException, DAOException {
+        userDAO.createAll(users);
+    }
+
+    /**
+     * Buffer the given user to be updated in the database. If the buffer is full, it is flushed by
+     * the current thread. After closing, the user is updated immediately.
+     * @param user The user to be updated in the database.
+     * @throws IllegalArgumentException If the user ID or password is null.
+     * @throws DAOException If flushing the full buffer fails at database level.
+     */
+    @Override
+    public void update(User user) throws IllegalArgumentException, DAOException {
+        updateAll(Collections.singletonList(user));
+    }
+
+    @Override
+    public void updateAll(List<User> users) throws IllegalArgumentException, DAOException {
+        for (User user : users) {
+            if (user.getId() == null) {
+                throw new IllegalArgumentException(
+                    "User is not created yet, the user ID is null.");
+            }
+            if (user.getPassword() == null) {
+                throw new IllegalArgumentException("User password is null.");
+            }
+        }
+
+        int size = -1;
+
+        synchronized (this) {
+            if (!closed) {
+                for (User user : users) {
+                    if (pending.put(user.getId(), copy(user)) != null) {
+                        coalesced.incrementAndGet();
+                    }
+                }
+                size = pending.size();
+            }
+        }
+
+        if (size < 0) {
+            userDAO.updateAll(copy(users));
+        } else if (size >= batchSize * MAX_PENDING_BATCHES) {
+            flush();
+        } else if (size >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(new Runnable() {
+                    public void run() {
+                        flushRequested.set(false);
+                        flushQuietly();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime, which flushes as well.
+            }
+        }
+    }
+
+    @Override
+    public void save(User user) throws DAOException {
+        if (user.getId() == null) {
+            create(user);
+        } else {
+            update(user);
+        }
+    }
+
+    @Override
+    public void delete(User user) throws DAOException {
+        synchronized (this) {
+            pending.remove(user.getId());
+        }
+
+        User unversioned = copy(user);
+        userDAO.delete(unversioned);
+        if (!ListCache.isShared(user)) {
+            user.setId(unversioned.getId());
+        }
+    }
+
+    @Override
+    public boolean existUsername(String username) throws DAOException {
+        return userDAO.existUsername(username);
+    }
+
+    @Override
+    public boolean existEmail(String email) throws DAOException {
+        return userDAO.existEmail(email);
+    }
+
+    @Override
+    public long count() throws DAOException {
+        return userDAO.count();
+    }
+
+    @Override
+    public long countByAgeRange(int minAge, int maxAge) throws DAOException {
+        return userDAO.countByAgeRange(minAge, maxAge);
+    }
+
+    @Override
+    public SortedMap<Integer, Long> ageHistogram(int bucketWidth) throws DAOException {
+        return userDAO.ageHistogram(bucketWidth);
+    }
+
+    @Override
+    public Map<String, Long> emailDomainCounts() throws DAOException {
+        return userDAO.emailDomainCounts();
+    }
+
+    /**
+     * Write all buffered updates to the decorated DAO now. If writing a batch fails, its users are
+     * written one by one. Users which cannot be written because they are deleted in the meantime or
+     * violate a constraint are discarded and reported to the stderr. On any other failure, the
+     * remaining users are buffered again, unless they are updated in the meantime, and will be
+     * retried by the next flush.
+     * @throws DAOException If writing fails at database level.
+     */
+    public void flush() throws DAOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                flushing = pending;
+                pending = new LinkedHashMap<Long, User>();
+            }
+
+            List<User> users = new ArrayList<User>(flushing.values());
+            long start = System.nanoTime();
+
+            try {
+                for (int i = 0; i < users.size(); i += batchSize) {
+                    write(users, i, Math.min(users.size(), i + batchSize));
+                }
+            } finally {
+                synchronized (this) {
+                    flushing = Collections.emptyMap();
+                }
+                record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Stop the flusher and flush the buffer for the last time. Subsequent updates are written
+     * immediately. Closing an already closed write-behind User DAO has no effect.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+        } catch (DAOException e) {
+            System.err.println("Flushing " + getPendingCount() + " buffered user updates on close"
+                + " failed, they are lost: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Flushing " + getPendingCount() + " buffered user updates on close"
+                + " failed, they are lost: " + e);
+        }
+
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM is shutting down already, the hook will find it closed.
+            }
+        }
+    }
+
+    // Metrics ------------------------------------------------------------------------------------
+
+    /**
+     * Returns the amount of buffered updates which are not being flushed yet.
+     * @return The amount of buffered updates which are not being flushed yet.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the amount of updates which replaced an update of the same user in the buffer.
+     * @return The amount of updates which replaced an update of the same user in the buffer.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the amount of flushes which had anything to write.
+     * @return The amount of flushes which had anything to write.
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * Returns the amount of users written by the flushes.
+     * @return The amount of users written by the flushes.
+     */
+    public long getFlushedCount() {
+        return flushed.get();
+    }
+
+    /**
+     * Returns the amount of updates which are discarded because they could not be written.
+     * @return The amount of updates which are discarded because they could not be written.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the average time a flush took in milliseconds.
+     * @return The average time a flush took in milliseconds.
+     */
+    public double getAverageFlushMillis() {
+        long count = flushes.get();
+        return count > 0 ? flushNanos.get() / 1e6 / count : 0;
+    }
+
+    /**
+     * Returns the longest time a flush took in milliseconds.
+     * @return The longest time a flush took in milliseconds.
+     */
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the buffered or currently flushing user with the given ID, if any.
+     */
+    private synchronized User getBuffered(Long id) {
+        User user = pending.get(id);
+
+        if (user == null) {
+            user = flushing.get(id);
+        }
+
+        return user != null ? copy(user) : null;
+    }
+
+    /**
+     * Write the given range of the given users, falling back to one by one if the batch fails.
+     * On an unexpected failure, including a runtime exception, the remaining users are buffered
+     * again.
+     */
+    private void write(List<User> users, int from, int to) throws DAOException {
+        try {
+            userDAO.updateAll(users.subList(from, to));
+            flushed.addAndGet(to - from);
+            return;
+        } catch (DAOException e) {
+            // Find out which users failed below.
+        } catch (RuntimeException e) {
+            // Find out which users failed below.
+        }
+
+        for (int i = from; i < to; i++) {
+            User user = users.get(i);
+
+            try {
+                userDAO.update(user);
+                flushed.incrementAndGet();
+            } catch (DAOException e) {
+                if (e.getCause() instanceof SQLException
+                    && !(e.getCause() instanceof SQLIntegrityConstraintViolationException))
+                {
+                    requeue(users.subList(i, users.size()));
+                    throw e;
+                }
+                failed.incrementAndGet();
+                System.err.println("Writing buffered update of user " + user.getId()
+                    + " failed, it is discarded: " + e.getMessage());
+            } catch (RuntimeException e) {
+                requeue(users.subList(i, users.size()));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Buffer the given users again, unless they are updated in the meantime.
+     */
+    private synchronized void requeue(List<User> users) {
+        Map<Long, User> requeued = new LinkedHashMap<Long, User>();
+
+        for (User user : users) {
+            requeued.put(user.getId(), user);
+        }
+
+        requeued.putAll(pending);
+        pending = requeued;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (DAOException e) {
+            System.err.println("Flushing buffered user updates failed, retrying later: "
+                + e.getMessage());
+        } catch (RuntimeException e) {
+            // Do not let it stop the periodic flushes.
+            System.err.println("Flushing buffered user updates failed, retrying later: " + e);
+        }
+    }
+
+    private void record(long nanos) {
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+
+        long current = maxFlushNanos.get();
+        while (nanos > current && !maxFlushNanos.compareAndSet(current, nanos)) {
+            current = maxFlushNanos.get();
+        }
+    }
+
+    /**
+     * Returns a copy of the given users without version.
+     */
+    private static List<User> copy(List<User> users) {
+        List<User> copies = new ArrayList<User>(users.size());
+
+        for (User user : users) {
+            copies.add(copy(user));
+        }
+
+        return copies;
+    }
+
+    /**
+     * Returns a copy of the given user with hashed password and without version, so that it is
+     * written regardless of the version and so that later changes of the caller do not affect the
+     * buffer.
+     */
+    private static User copy(User user) {
+        String password = user.getPassword();
+        return new User(user.getId(), user.getUsername(),
+            password != null ? hashMD5IfNecessary(password) : null, user.getEmail(), user.getAge());
+    }
+
+}
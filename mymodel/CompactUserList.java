@@ -0,0 +1,285 @@
+package mymodel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * This class represents a compact read-only list of users for bulk reads. Instead of an User DTO
+ * with a boxed ID, a boxed age and three strings per user, the users are stored in columns: the
+ * IDs and ages in primitive arrays, and the username, password and email address as UTF-8 bytes
+ * in one shared byte array. Passwords which are MD5 hashes, as they usually are, take 16 bytes
+ * instead of 32 characters. A list of a million users thus consists of a handful of arrays instead
+ * of millions of objects, which takes about a quarter of the heap and keeps the garbage collector
+ * idle.
+ * <p>
+ * The column getters decode the requested value only. {@link #get(int)} creates a new User DTO on
+ * every call, which is convenient for existing code, but defeats the purpose in bulk loops. The
+ * version is not stored, since bulk reads are not meant to be updated.
+ *
+ * @author BalusC
+ * @link http://balusc.blogspot.com/2008/07/dao-tutorial-data-layer.html
+ */
+public final class CompactUserList extends AbstractList<User> implements RandomAccess {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    private static final int FIELDS = 3;
+    private static final int USERNAME = 0;
+    private static final int PASSWORD = 1;
+    private static final int EMAIL = 2;
+    private static final byte NULL_USERNAME = 1;
+    private static final byte NULL_PASSWORD = 1 << 1;
+    private static final byte NULL_EMAIL = 1 << 2;
+    private static final byte NULL_AGE = 1 << 3;
+    private static final byte MD5_PASSWORD = 1 << 4;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Properties ---------------------------------------------------------------------------------
+
+    private final int size;
+    private final long[] ids;
+    private final int[] ages;
+    private final byte[] flags;
+    private final int[] ends;
+    private final byte[] bytes;
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private CompactUserList(Builder builder) {
+        this.size = builder.size;
+        this.ids = Arrays.copyOf(builder.ids, size);
+        this.ages = Arrays.copyOf(builder.ages, size);
+        this.flags = Arrays.copyOf(builder.flags, size);
+        this.ends = Arrays.copyOf(builder.ends, size * FIELDS);
+        this.bytes = Arrays.copyOf(builder.bytes, builder.length);
+    }
+
+    // Getters ------------------------------------------------------------------------------------
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a new User DTO of the user at the given index.
+     * @param index The index of the user.
+     * @return A new User DTO of the user at the given index.
+     */
+    @Override
+    public User get(int index) {
+        return new User(getId(index), getUsername(index), getPassword(index), getEmail(index),
+            getAge(index));
+    }
+
+    /**
+     * Returns the ID of the user at the given index.
+     * @param index The index of the user.
+     * @return The ID of the user at the given index.
+     */
+    public long getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    /**
+     * Returns the username of the user at the given index.
+     * @param index The index of the user.
+     * @return The username of the user at the given index.
+     */
+    public String getUsername(int index) {
+        return getString(index, USERNAME, NULL_USERNAME);
+    }
+
+    /**
+     * Returns the password hash of the user at the given index.
+     * @param index The index of the user.
+     * @return The password hash of the user at the given index.
+     */
+    public String getPassword(int index) {
+        if ((flags[checkIndex(index)] & MD5_PASSWORD) == 0) {
+            return getString(index, PASSWORD, NULL_PASSWORD);
+        }
+
+        int start = start(index, PASSWORD);
+        char[] hex = new char[32];
+        for (int i = 0; i < 16; i++) {
+            hex[i * 2] = HEX[(bytes[start + i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[start + i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the email address of the user at the given index.
+     * @param index The index of the user.
+     * @return The email address of the user at the given index, may be null.
+     */
+    public String getEmail(int index) {
+        return getString(index, EMAIL, NULL_EMAIL);
+    }
+
+    /**
+     * Returns the age of the user at the given index. Ages are in the range of the cached boxed
+     * integers, so this does not allocate.
+     * @param index The index of the user.
+     * @return The age of the user at the given index, may be null.
+     */
+    public Integer getAge(int index) {
+        return (flags[checkIndex(index)] & NULL_AGE) == 0 ? Integer.valueOf(ages[index]) : null;
+    }
+
+    /**
+     * Returns the approximate amount of heap bytes taken by the arrays of this list.
+     * @return The approximate amount of heap bytes taken by the arrays of this list.
+     */
+    public long getByteSize() {
+        return 5 * 16L + ids.length * 8L + ages.length * 4L + flags.length + ends.length * 4L
+            + bytes.length;
+    }
+
+    // Helpers ------------------------------------------------------------------------------------
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return index;
+    }
+
+    private String getString(int index, int field, byte nullFlag) {
+        if ((flags[checkIndex(index)] & nullFlag) != 0) {
+            return null;
+        }
+
+        int start = start(index, field);
+        return new String(bytes, start, ends[index * FIELDS + field] - start,
+            StandardCharsets.UTF_8);
+    }
+
+    private int start(int index, int field) {
+        int slot = index * FIELDS + field;
+        return slot > 0 ? ends[slot - 1] : 0;
+    }
+
+    // Nested types -------------------------------------------------------------------------------
+
+    /**
+     * The builder of a compact list of users. Users are added one by one, usually while streaming
+     * them from the database, and the list is built once at the end. A builder is not thread safe.
+     */
+    public static final class Builder {
+        private int size;
+        private long[] ids = new long[16];
+        private int[] ages = new int[16];
+        private byte[] flags = new byte[16];
+        private int[] ends = new int[16 * FIELDS];
+        private byte[] bytes = new byte[16 * 64];
+        private int length;
+
+        /**
+         * Add an user with the given column values.
+         * @param id The ID of the user.
+         * @param username The username of the user.
+         * @param password The password hash of the user.
+         * @param email The email address of the user, may be null.
+         * @param age The age of the user, may be null.
+         * @return This builder.
+         */
+        public Builder add(long id, String username, String password, String email, Integer age)
+        {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                ages = Arrays.copyOf(ages, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                ends = Arrays.copyOf(ends, capacity * FIELDS);
+            }
+
+            byte flag = 0;
+            flag |= addString(username, USERNAME, NULL_USERNAME);
+            flag |= isMD5(password)
+                ? addMD5(password) : addString(password, PASSWORD, NULL_PASSWORD);
+            flag |= addString(email, EMAIL, NULL_EMAIL);
+            flag |= age == null ? NULL_AGE : 0;
+
+            ids[size] = id;
+            ages[size] = age != null ? age : 0;
+            flags[size] = flag;
+            size++;
+            return this;
+        }
+
+        /**
+         * Returns the compact list of the users added so far.
+         * @return The compact list of the users added so far.
+         */
+        public CompactUserList build() {
+            return new CompactUserList(this);
+        }
+
+        private byte addString(String value, int field, byte nullFlag) {
+            if (value == null) {
+                ends[size * FIELDS + field] = length;
+                return nullFlag;
+            }
+
+            int valueLength = value.length();
+            ensureCapacity(valueLength);
+            int start = length;
+
+            for (int i = 0; i < valueLength; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII. Rare enough to just let the String encode it.
+                    byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                    length = start;
+                    ensureCapacity(encoded.length);
+                    System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                    length += encoded.length;
+                    break;
+                }
+                bytes[length++] = (byte) c;
+            }
+
+            ends[size * FIELDS + field] = length;
+            return 0;
+        }
+
+        private byte addMD5(String password) {
+            ensureCapacity(16);
+            for (int i = 0; i < 16; i++) {
+                bytes[length++] = (byte) (Character.digit(password.charAt(i * 2), 16) << 4
+                    | Character.digit(password.charAt(i * 2 + 1), 16));
+            }
+            ends[size * FIELDS + PASSWORD] = length;
+            return MD5_PASSWORD;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        /**
+         * Returns true if the given password is a lowercase hexadecimal MD5 hash, which is how the
+         * DAO layer formats them.
+         */
+        private static boolean isMD5(String password) {
+            if (password == null || password.length() != 32) {
+                return false;
+            }
+            for (int i = 0; i < 32; i++) {
+                char c = password.charAt(i);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -16,6 +16,7 @@ public class User {
     private String password;
     private String email;
     private Integer age;
+    private Long version;
 
     // Constructors -------------------------------------------------------------------------------
 
@@ -94,6 +95,16 @@ public class User {
         return age;
     }
 
+    /**
+     * Returns the version of this User, which is incremented on every update when the data layer
+     * uses optimistic locking. It is null when the version is unknown, in which case an update
+     * overwrites the user regardless of concurrent changes.
+     * @return The version of this User.
+     */
+    public Long getVersion() {
+        return version;
+    }
+
     // Setters ------------------------------------------------------------------------------------
 
     /**
@@ -136,6 +147,14 @@ public class User {
         this.age = age;
     }
 
+    /**
+     * Sets the version of this User. Normally only the data layer sets it.
+     * @param version The version of this User.
+     */
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     // Override -----------------------------------------------------------------------------------
 
     /**
@@ -159,8 +178,8 @@ public class User {
      * @see java.lang.Object#toString()
      */
     public String toString() {
-        return String.format("User[id=%d,username=%s,password=%s,email=%s,age=%d]", 
-            id, username, password, email, age);
+        return String.format("User[id=%d,username=%s,password=%s,email=%s,age=%d,version=%d]", 
+            id, username, password, email, age, version);
     }
 
 }
\ No newline at end of file